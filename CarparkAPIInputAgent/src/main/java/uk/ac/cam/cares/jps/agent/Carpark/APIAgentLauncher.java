@@ -3,36 +3,44 @@ import org.json.JSONObject;
 
 import netscape.javascript.JSObject;
 import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
-import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
 import uk.ac.cam.cares.jps.base.agent.JPSAgent;
 import java.util.*;
 import java.io.IOException;
-import java.time.OffsetDateTime;
 import java.time.chrono.JapaneseChronology;
 
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.BadRequestException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-@WebServlet(urlPatterns = {"/retrieve"})
+@WebServlet(name = "CarparkAgentServlet", urlPatterns = {"/", "/retrieve"}, loadOnStartup = 1)
 
 public class APIAgentLauncher extends JPSAgent
 {
     public static final String Key_AgentProp = "agentProperties";
     public static final String Key_APIProp = "apiProperties";
     public static final String Key_ClientProp = "clientProperties";
+    public static final String Key_Reload = "reload";
     
     private static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
 
 
     private static final String ARGUMENT_MISMATCH_MSG = "Need three properties files in the following order: 1) input agent 2) time series client 3) API connector.";
-    private static final String AGENT_ERROR_MSG = "The CarparkAPI input agent could not be constructed!";
-    private static final String TSCLIENT_ERROR_MSG = "Could not construct the time series client needed by the input agent!";
-    private static final String INITIALIZE_ERROR_MSG = "Could not initialize time series.";
-    private static final String CONNECTOR_ERROR_MSG = "Could not construct the carpark API connector needed to interact with the API!";
-    private static final String GET_READINGS_ERROR_MSG = "Some readings could not be retrieved.";
+
+    // Environment variables holding the properties file paths, as set in the Dockerfile
+    private static final String ENV_AGENTPROPERTIES = "Carpark_AGENTPROPERTIES";
+    private static final String ENV_CLIENTPROPERTIES = "Carpark_CLIENTPROPERTIES";
+    private static final String ENV_APIPROPERTIES = "Carpark_APIPROPERTIES";
+
+    // Components built once and shared by all requests until reloaded
+    private static CarparkAgentContext context;
+    // Runs cycles in-process when enabled in the agent properties
+    private static IngestionScheduler scheduler;
+    // Runs the cycles requested through the asynchronous endpoint
+    private static IngestionJobManager jobManager;
+    private static final int RETAINED_JOBS = 100;
 
     public JSONObject processRequestParameters(JSONObject requestparams, HttpServletRequest request)
     {
@@ -51,8 +59,15 @@ public class APIAgentLauncher extends JPSAgent
             String apiProperties = System.getenv(requestparams.getString(Key_APIProp));
             
             String[] args = new String []{agentProperties,clientProperties,apiProperties};
+            if(requestparams.optBoolean(Key_Reload))
+            {
+                reloadAgent(args);
+            }
             jsonMessage = initializeAgent(args);
-            jsonMessage.accumulate("Result","TimeSeries has been updated");
+            if(CarparkAgentContext.wroteData(jsonMessage))
+            {
+                jsonMessage.accumulate("Result","TimeSeries has been updated");
+            }
 
             requestparams = jsonMessage;
 
@@ -66,7 +81,14 @@ public class APIAgentLauncher extends JPSAgent
     }
     
 
+    @Override
     public boolean validateInput(JSONObject requestparams) throws BadRequestException
+    {
+        return hasValidProperties(requestparams);
+    }
+
+    // True if the request names the three properties files through environment variables that are set
+    public static boolean hasValidProperties(JSONObject requestparams)
     {
         boolean validate = true;
         String agentProperties;
@@ -96,145 +118,189 @@ public class APIAgentLauncher extends JPSAgent
         return validate;
     }
 
-    public static JSONObject initializeAgent(String []args)
+    @Override
+    public void init() throws ServletException
     {
-        if(args.length!=3)
+        super.init();
+        //Build and validate the components once at startup when the properties files are known from the environment
+        String[] args = new String[]{System.getenv(ENV_AGENTPROPERTIES), System.getenv(ENV_CLIENTPROPERTIES), System.getenv(ENV_APIPROPERTIES)};
+        if(args[0]==null || args[1]==null || args[2]==null)
         {
-            Log.error(ARGUMENT_MISMATCH_MSG);
-            throw new JPSRuntimeException(ARGUMENT_MISMATCH_MSG);
+            Log.info("Properties files not set in the environment, agent components will be built on the first request");
+            return;
         }
-
-        Log.debug("Launcher called with the following files: " + String.join(" ",args));
-
-        APIInputAgent agent;
         try
         {
-            agent = new APIInputAgent(args[0]);
-
+            getContext(args).warmUp();
         }
-        catch(IOException e)
+        catch(JPSRuntimeException e)
         {
-            Log.error(AGENT_ERROR_MSG,e);
-            throw new JPSRuntimeException(AGENT_ERROR_MSG,e);
+            Log.error("Agent components could not be built at startup, they will be built on the first request", e);
         }
 
-        Log.info("Input Agent object initialized");
-        JSONObject jsonMessage = new JSONObject();
-        jsonMessage.accumulate("Result","Input Agent Object Initialized");
+        startScheduler(args);
+    }
 
-        TimeSeriesClient<OffsetDateTime> tsclient;
-        try
-        {
-            tsclient = new TimeSeriesClient<>(OffsetDateTime.class, args[1]);
-            agent.setTsClient(tsclient);
-        }
-        catch(IOException e)
+    // Starts the in-process scheduler unless one is already running, so that it never runs twice in the same container
+    private static synchronized void startScheduler(String []args)
+    {
+        if(scheduler!=null)
         {
-            Log.error(TSCLIENT_ERROR_MSG,e);
-            throw new JPSRuntimeException(TSCLIENT_ERROR_MSG, e); 
+            Log.warn("Ingestion scheduler already running, not starting another one");
+            return;
         }
-
-        Log.info("Time Series object initialized");
-        jsonMessage.accumulate("Result","Time Series Client Object Initialized");
-
         try
         {
-            agent.initializeTimeSeriesIfNotExist();
+            scheduler = IngestionScheduler.fromProperties(args[0], () -> initializeAgent(args));
+            if(scheduler!=null)
+            {
+                scheduler.start();
+            }
         }
-        catch(JPSRuntimeException e)
+        catch(IOException e)
         {
-            Log.error(INITIALIZE_ERROR_MSG);
-            throw new JPSRuntimeException(INITIALIZE_ERROR_MSG,e);
+            Log.error("Could not read the schedule settings, cycles will only run on request", e);
         }
+    }
 
-        APIConnector connector;
-        try
+    @Override
+    public void destroy()
+    {
+        synchronized(APIAgentLauncher.class)
         {
-            connector = new APIConnector(args[2]);
+            if(scheduler!=null)
+            {
+                scheduler.close();
+                scheduler = null;
+            }
+            if(jobManager!=null)
+            {
+                jobManager.close();
+                jobManager = null;
+            }
+            if(context!=null)
+            {
+                context.close();
+                context = null;
+            }
         }
-        catch(IOException e)
+        super.destroy();
+    }
+
+    public static JSONObject initializeAgent(String []args)
+    {
+        if(args.length!=3)
         {
-            Log.error(CONNECTOR_ERROR_MSG,e);
-            throw new JPSRuntimeException(CONNECTOR_ERROR_MSG,e);
+            Log.error(ARGUMENT_MISMATCH_MSG);
+            throw new JPSRuntimeException(ARGUMENT_MISMATCH_MSG);
         }
 
-        Log.info("API Connector Object Initialized");
-        jsonMessage.accumulate("Result","API Connector object Initialized");
+        Log.debug("Launcher called with the following files: " + String.join(" ",args));
 
-        JSONObject carparkReadings;
+        return runCycle(args, new IngestionJob());
+    }
 
-        try
-        {
-            carparkReadings = connector.getReadings();
-        }
-        catch(Exception e)
+    // Runs a cycle on behalf of an asynchronous job, reporting its progress to the job
+    public static JSONObject initializeAgent(String []args, IngestionJob job)
+    {
+        if(args.length!=3)
         {
-            Log.error(GET_READINGS_ERROR_MSG,e);
-            throw new JPSRuntimeException(GET_READINGS_ERROR_MSG,e);
+            Log.error(ARGUMENT_MISMATCH_MSG);
+            throw new JPSRuntimeException(ARGUMENT_MISMATCH_MSG);
         }
+        return runCycle(args, job);
+    }
 
-        Log.info(String.format("Retrieved %d carpark readings", carparkReadings.length()));
-        jsonMessage.accumulate("Result","Retrieved"+carparkReadings.getJSONArray("value").length()+" carpark readings");
-
-        if(!carparkReadings.isEmpty())
+    // Runs the cycle on the current components, on the new ones if they are replaced before the cycle could start
+    private static JSONObject runCycle(String []args, IngestionJob job)
+    {
+        while(true)
         {
-            agent.updateData(carparkReadings);
-            Log.info("Data updated with new API Readings");
-            jsonMessage.accumulate("Result","Data updated with new API Readings");
-
+            JSONObject result = getContext(args).tryRunCycle(job);
+            if(result!=null)
+            {
+                return result;
+            }
         }
-        else if(carparkReadings.isEmpty())
+    }
+
+    // Queues a cycle on the job executor and returns its job straight away
+    public static synchronized IngestionJob submitJob(String []args)
+    {
+        if(jobManager==null)
         {
-            Log.info("No new carpark data recorded");
-            jsonMessage.accumulate("Result","No new carpark data recorded");
+            jobManager = new IngestionJobManager(RETAINED_JOBS);
         }
+        return jobManager.submit(job -> initializeAgent(args, job));
+    }
 
-        JSONObject pricingReadings;
+    public static synchronized IngestionJob getJob(String jobId)
+    {
+        return jobManager==null ? null : jobManager.get(jobId);
+    }
 
-        try
+    // Resolves the properties files named in the request parameters, or returns null if they are not defined correctly
+    public static String[] propertiesFromRequest(JSONObject requestparams)
+    {
+        if(!hasValidProperties(requestparams))
         {
-            pricingReadings = connector.getPrices();
+            return null;
         }
-        catch(Exception e)
+        return new String[]{System.getenv(requestparams.getString(Key_AgentProp)), System.getenv(requestparams.getString(Key_ClientProp)), System.getenv(requestparams.getString(Key_APIProp))};
+    }
+
+    // Rebuilds all agent components from the given properties files, e.g. after the mappings or endpoints changed
+    public static void reloadAgent(String []args)
+    {
+        if(args.length!=3)
         {
-            Log.error(GET_READINGS_ERROR_MSG);
-            throw new JPSRuntimeException(GET_READINGS_ERROR_MSG);
+            Log.error(ARGUMENT_MISMATCH_MSG);
+            throw new JPSRuntimeException(ARGUMENT_MISMATCH_MSG);
         }
-        
-        Log.info(String.format("Retrieved pricing readings for %d carparks", pricingReadings.length()));
-        jsonMessage.accumulate("Result","Retrieved"+pricingReadings.getJSONObject("result").getJSONArray("records").length()+"carpark price readings");
-
+        CarparkAgentContext newContext = new CarparkAgentContext(args);
+        newContext.warmUp();
+        closeWhenIdle(swapContext(newContext));
+        Log.info("Agent components reloaded");
+    }
 
-        //To call APIQueryBuilder
-       
-        APIQueryBuilder queryBuilder;
+    // The components built for the last request, or null if none was built yet
+    public static synchronized CarparkAgentContext currentContext()
+    {
+        return context;
+    }
 
-        try
-        {
-            queryBuilder = new APIQueryBuilder(args[0],args[1]);
-            Log.info("QueryBuilder constructed");
-          
-        }
-        catch(Exception e)
+    private static CarparkAgentContext getContext(String []args)
+    {
+        CarparkAgentContext replaced;
+        CarparkAgentContext current;
+        synchronized(APIAgentLauncher.class)
         {
-            Log.error("Could not build the QueryBuilder");
-            throw new JPSRuntimeException("Could not successfully initialise the QueryBuilder Object");
+            if(context!=null && context.matches(args))
+            {
+                return context;
+            }
+            replaced = swapContext(new CarparkAgentContext(args));
+            current = context;
         }
+        closeWhenIdle(replaced);
+        return current;
+    }
 
-        try
-        {
-            queryBuilder.instantiateIfNotInstantiated(carparkReadings,pricingReadings);
-            Log.info("All Data IRIs within Carpark Readings successfully instantiated");
-            jsonMessage.accumulate("Result","All Data IRIs successfully instantiated");
+    // Makes the given components the current ones and returns those they replace, which may still be running a cycle
+    private static synchronized CarparkAgentContext swapContext(CarparkAgentContext newContext)
+    {
+        CarparkAgentContext replaced = context;
+        context = newContext;
+        return replaced;
+    }
 
-        }
-        catch(Exception e)
+    // Closes replaced components once their running cycle has finished, outside the launcher lock so that requests are
+    // served by the new components meanwhile
+    private static void closeWhenIdle(CarparkAgentContext replaced)
+    {
+        if(replaced!=null)
         {
-            Log.error("Could not Instantiate the IRIs successfully");
-            jsonMessage.accumulate("Result","IRIs not instantiated properly");
+            replaced.close();
         }
-
-        
-       return jsonMessage;
     }
 }
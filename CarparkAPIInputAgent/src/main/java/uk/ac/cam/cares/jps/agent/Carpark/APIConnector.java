@@ -1,27 +1,61 @@
 package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import javax.print.attribute.standard.JobHoldUntil;
 
 
 
-public class APIConnector
+public class APIConnector implements Closeable
 {
     private String API_URL = "http://datamall2.mytransport.sg/ltaodataservice/CarParkAvailabilityv2";
     private String PRICING_API_URL = "https://data.gov.sg/api/action/datastore_search?resource_id=85207289-6ae7-4a56-9066-e6090a3684a5&limit=357";
@@ -29,7 +63,59 @@ public class APIConnector
     private String date;
     private String accountKey;
 
+    // HTTP client settings, all durations in milliseconds
+    private int connectTimeout = 5000;
+    private int socketTimeout = 10000;
+    private int requestTimeout = 5000;
+    private long keepAlive = 60000;
+    private int maxConnections = 10;
+    // Advertise gzip/deflate and decode the body ourselves so that wire and decoded sizes can be counted
+    private boolean compression = true;
+
+    // Bytes received on the wire and bytes after decompression, over the lifetime of the connector
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+
+    // Pooled client shared by the availability and pricing requests for the lifetime of the connector
+    private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    // DataMall returns the availability in pages of 500 entries addressed with $skip
+    private boolean pagedFetch = true;
+    private int pageSize = 500;
+    private int maxParallelPages = 4;
+    // Number of pages seen in the previous cycle, used to size the first wave of concurrent requests
+    private volatile int lastPageCount = 1;
+    private ExecutorService pageExecutor;
+    // Runs the asynchronous availability and pricing fetches, kept apart from the page executor so that waiting on pages cannot starve it
+    private ExecutorService requestExecutor;
+
+    // Validators and content of the last response per page, used for conditional requests and change detection
+    private final Map<String, Page> pageCache = new ConcurrentHashMap<>();
+    // Fingerprint of the last reading set handed out by getCarparkReadingsIfChanged
+    private String lastFingerprint;
+
+    // The pricing dataset rarely changes, so it is only revalidated once its TTL has passed
+    private long pricingCacheTtl = 86400000;
+    private String pricingCacheFile;
+    private PricingCache pricingCache;
+    private final AtomicBoolean pricingRefreshRunning = new AtomicBoolean();
+
+    // Deadline, retry budget and hedging applied to every upstream request (milliseconds)
+    private long requestDeadline = 15000;
+    private long totalBudget = 30000;
+    private int maxRetries = 3;
+    private long retryBackoff = 200;
+    private boolean hedging = true;
+    private double hedgePercentile = 0.95;
+    // One policy per endpoint, so that each hedges after the latency of its own requests
+    private RequestPolicy pagePolicy;
+    private RequestPolicy pricingPolicy;
+
     private static final String ERRORMSG = "Carpark data could not be retrieved";
+    // Payload metric labels of the two upstream APIs
+    private static final String SOURCE_AVAILABILITY = "availability";
+    private static final String SOURCE_PRICING = "pricing";
     private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
   
 
@@ -40,6 +126,10 @@ public class APIConnector
         PRICING_API_URL = Pricing_URL;
         date = d;
         accountKey = k;
+        buildHttpClient();
+        buildExecutors();
+        buildRequestPolicies();
+        pricingCache = new PricingCache(pricingCacheTtl, pricingCacheFile==null ? null : Paths.get(pricingCacheFile));
     }
     
 
@@ -48,24 +138,97 @@ public class APIConnector
     public APIConnector(String filepath) throws IOException
     {
         loadAPIConfigs(filepath);
+        buildHttpClient();
+        buildExecutors();
+        buildRequestPolicies();
+        pricingCache = new PricingCache(pricingCacheTtl, pricingCacheFile==null ? null : Paths.get(pricingCacheFile));
     }      
 
-    // Obtains Weather data in JSON format containing key:value pairs
+    // Obtains the carpark availability in JSON format containing key:value pairs
 
     public JSONObject getReadings()
+    {
+        JSONArray values = new JSONArray();
+        for(CarparkReading reading : getCarparkReadings())
+        {
+            values.put(reading.toJSON());
+        }
+        JSONObject readings = new JSONObject();
+        readings.put("value", values);
+        return readings;
+    }
+
+    // Obtains the carpark availability parsed straight off the response stream into typed readings
+
+    public List<CarparkReading> getCarparkReadings()
+    {
+        return fetchReadings().readings;
+    }
+
+    // As getCarparkReadings, but returns an empty Optional if the upstream snapshot is identical to the one last returned here
+
+    public Optional<List<CarparkReading>> getCarparkReadingsIfChanged()
+    {
+        Fetch fetch = fetchReadings();
+        synchronized(this)
+        {
+            if(fetch.fingerprint.equals(lastFingerprint))
+            {
+                LOG.info("Carpark data unchanged since the last cycle, fingerprint " + fetch.fingerprint);
+                return Optional.empty();
+            }
+            lastFingerprint = fetch.fingerprint;
+        }
+        return Optional.of(fetch.readings);
+    }
+
+    // Forgets the last fingerprint so that the next cycle is processed even if the upstream data did not change,
+    // to be called when a cycle fails after its readings were handed out
+    public synchronized void invalidateFingerprint()
+    {
+        lastFingerprint = null;
+    }
+
+    private Fetch fetchReadings()
     {
         try{
             return retrieveData();
         }
-        catch(IOException e)
+        catch(IOException | JSONException e)
         {
             LOG.error(ERRORMSG);
             throw new JPSRuntimeException(ERRORMSG,e);
         }
     }
 
+    // Starts retrieving the availability on a background thread, see getCarparkReadingsIfChanged
+
+    public CompletableFuture<Optional<List<CarparkReading>>> getCarparkReadingsIfChangedAsync()
+    {
+        return CompletableFuture.supplyAsync(this::getCarparkReadingsIfChanged, requestExecutor);
+    }
+
+    // Starts retrieving the pricing on a background thread so that it can overlap with the availability request
+
+    public CompletableFuture<JSONObject> getPricesAsync()
+    {
+        return CompletableFuture.supplyAsync(this::getPrices, requestExecutor);
+    }
+
+    // Serves the pricing from the cache while it is fresh. Once expired the cached copy is still returned and revalidated
+    // in the background, so only an agent without any cached pricing has to wait for the pricing endpoint
+
     public JSONObject getPrices()
     {
+        if(pricingCache.isFresh())
+        {
+            return pricingCache.getPrices();
+        }
+        if(pricingCache.hasPrices())
+        {
+            refreshPricesInBackground();
+            return pricingCache.getPrices();
+        }
         try
         {
             return retreivePricingData();
@@ -77,55 +240,443 @@ public class APIConnector
         }
     }
 
-    private JSONObject retrieveData() throws IOException, JSONException
-    {  
-        String path = API_URL;
+    private void refreshPricesInBackground()
+    {
+        if(!pricingRefreshRunning.compareAndSet(false, true))
+        {
+            return;
+        }
+        requestExecutor.execute(() ->
+        {
+            try
+            {
+                retreivePricingData();
+            }
+            catch(Exception e)
+            {
+                LOG.warn("Could not revalidate the pricing data, the cached copy stays in use", e);
+            }
+            finally
+            {
+                pricingRefreshRunning.set(false);
+            }
+        });
+    }
 
-        try ( CloseableHttpClient httpclient =  HttpClients.createDefault())
+    private Fetch retrieveData() throws IOException, JSONException
+    {
+        if(!pagedFetch)
         {
-            HttpGet readrequest = new HttpGet(path);
-            readrequest.setHeader("AccountKey", accountKey); 
-            try ( CloseableHttpResponse response = httpclient.execute(readrequest))
+            List<Page> pages = new ArrayList<>();
+            pages.add(retrievePage(API_URL));
+            return new Fetch(pages);
+        }
+        return retrievePagedData();
+    }
+
+    // Fetches pages in concurrent waves until a page shorter than the page size marks the end of the dataset.
+    // The first wave is as wide as the previous cycle's page count, so a stable dataset is fetched in a single wave
+    private Fetch retrievePagedData() throws IOException, JSONException
+    {
+        List<Page> pages = new ArrayList<>();
+        int wave = Math.max(1, lastPageCount);
+        boolean complete = false;
+
+        while(!complete)
+        {
+            List<Future<Page>> futures = new ArrayList<>();
+            for(int i=0;i<wave;i++)
             {
-                int status = response.getStatusLine().getStatusCode();
+                String pageUrl = pageUrl((pages.size()+i)*pageSize);
+                futures.add(pageExecutor.submit(() -> retrievePage(pageUrl)));
+            }
 
-                if(status==200) 
+            try
+            {
+                for(Future<Page> future : futures)
                 {
-                    return new JSONObject(EntityUtils.toString(response.getEntity()));
-
+                    Page page = awaitPage(future);
+                    pages.add(page);
+                    complete = page.readings.size() < pageSize;
+                    //Pages past the end can only be empty, whether they fail or not does not matter
+                    if(complete)
+                    {
+                        break;
+                    }
                 }
-                else
+            }
+            finally
+            {
+                //Stops the requests not awaited, after the end of the data or after a failed page
+                for(Future<Page> future : futures)
                 {
-                    throw new HttpResponseException(status,"Data could not be retrieved due to a server error");
+                    future.cancel(true);
                 }
+            }
+            wave = maxParallelPages;
+        }
+
+        lastPageCount = pages.size();
+        Fetch fetch = new Fetch(pages);
+        LOG.debug(String.format("Retrieved %d carpark entries over %d pages", fetch.readings.size(), pages.size()));
+        return fetch;
+    }
 
+    private String pageUrl(int skip)
+    {
+        if(skip==0)
+        {
+            return API_URL;
+        }
+        return API_URL + (API_URL.contains("?") ? "&" : "?") + "$skip=" + skip;
+    }
+
+    private Page awaitPage(Future<Page> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while retrieving carpark data", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
             }
+            throw new IOException(ERRORMSG, e.getCause());
+        }
+    }
 
+    // Conditional GET of one page. A 304 answer reuses the cached page, a 200 answer is parsed while its raw bytes are hashed
+    private Page retrievePage(String path) throws IOException, JSONException
+    {  
+        Page cached = pageCache.get(path);
+        try
+        {
+            return pagePolicy.execute(() -> buildPageRequest(path, cached), readrequest -> executePageRequest(path, cached, readrequest));
+        }
+        catch(IOException | RuntimeException e)
+        {
+            PipelineMetrics.error(PipelineMetrics.STAGE_HTTP_FETCH);
+            throw e;
         }
+    }
 
+    private HttpGet buildPageRequest(String path, Page cached)
+    {
+        HttpGet readrequest = new HttpGet(path);
+        readrequest.setHeader("AccountKey", accountKey); 
+        setAcceptEncoding(readrequest);
+        if(cached!=null && cached.etag!=null)
+        {
+            readrequest.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+        }
+        if(cached!=null && cached.lastModified!=null)
+        {
+            readrequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+        }
+        return readrequest;
+    }
+
+    private Page executePageRequest(String path, Page cached, HttpGet readrequest) throws IOException, JSONException
+    {
+        //The fetch stage ends with the response headers, the body is streamed into the parser and counts as parsing
+        PipelineMetrics.Timer fetchTimer = PipelineMetrics.time(PipelineMetrics.STAGE_HTTP_FETCH);
+        CloseableHttpResponse response;
+        try
+        {
+            response = httpClient.execute(readrequest);
+        }
+        finally
+        {
+            fetchTimer.stop();
+        }
+        try (response)
+        {
+            int status = response.getStatusLine().getStatusCode();
+
+            if(status==200) 
+            {
+                MessageDigest digest = newDigest();
+                List<CarparkReading> readings;
+                try (InputStream content = new DigestInputStream(openContent(response.getEntity(), SOURCE_AVAILABILITY), digest))
+                {
+                    PipelineMetrics.Timer parseTimer = PipelineMetrics.time(PipelineMetrics.STAGE_JSON_PARSE);
+                    try
+                    {
+                        readings = CarparkReadingParser.parse(content);
+                    }
+                    catch(JSONException e)
+                    {
+                        PipelineMetrics.error(PipelineMetrics.STAGE_JSON_PARSE);
+                        throw e;
+                    }
+                    finally
+                    {
+                        parseTimer.stop();
+                    }
+                    //Hash any trailing bytes the parser did not need to read
+                    byte[] buffer = new byte[1024];
+                    while(content.read(buffer)!=-1)
+                    {
+                        //Discard
+                    }
+                }
+                Page page = new Page(readings, toHex(digest.digest()), headerValue(response, HttpHeaders.ETAG), headerValue(response, HttpHeaders.LAST_MODIFIED));
+                pageCache.put(path, page);
+                return page;
+            }
+            else if(status==304 && cached!=null)
+            {
+                EntityUtils.consume(response.getEntity());
+                return cached;
+            }
+            else
+            {
+                // Drain the body so that the connection can go back to the pool
+                EntityUtils.consume(response.getEntity());
+                throw new HttpResponseException(status,"Data could not be retrieved due to a server error");
+            }
+
+        }
+
+    }
+
+    private static String headerValue(CloseableHttpResponse response, String name)
+    {
+        Header header = response.getFirstHeader(name);
+        return header==null ? null : header.getValue();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new JPSRuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length*2);
+        for(byte b : bytes)
+        {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
     }
 
     private JSONObject retreivePricingData() throws IOException, JSONException
+    {
+        try
+        {
+            return pricingPolicy.execute(this::buildPricingRequest, this::executePricingRequest);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            PipelineMetrics.error(PipelineMetrics.STAGE_PRICING_FETCH);
+            throw e;
+        }
+    }
+
+    private HttpGet buildPricingRequest()
     {
         String path = PRICING_API_URL;
 
-        try(CloseableHttpClient httpClient = HttpClients.createDefault())
+        HttpGet readrequest = new HttpGet(path);
+        setAcceptEncoding(readrequest);
+        if(pricingCache.hasPrices() && pricingCache.getEtag()!=null)
         {
-            HttpGet readrequest = new HttpGet(path);
+            readrequest.setHeader(HttpHeaders.IF_NONE_MATCH, pricingCache.getEtag());
+        }
+        if(pricingCache.hasPrices() && pricingCache.getLastModified()!=null)
+        {
+            readrequest.setHeader(HttpHeaders.IF_MODIFIED_SINCE, pricingCache.getLastModified());
+        }
+        return readrequest;
+    }
 
-            try(CloseableHttpResponse response = httpClient.execute(readrequest))
-            {
-                int status = response.getStatusLine().getStatusCode();
+    private JSONObject executePricingRequest(HttpGet readrequest) throws IOException, JSONException
+    {
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_PRICING_FETCH);
+        try(CloseableHttpResponse response = httpClient.execute(readrequest))
+        {
+            int status = response.getStatusLine().getStatusCode();
 
-                if(status==200)
+            if(status==200)
+            {
+                try(Reader reader = new BufferedReader(new InputStreamReader(openContent(response.getEntity(), SOURCE_PRICING), StandardCharsets.UTF_8)))
                 {
-                    return new JSONObject(EntityUtils.toString(response.getEntity()));
+                    JSONObject prices = new JSONObject(new JSONTokener(reader));
+                    pricingCache.update(prices, headerValue(response, HttpHeaders.ETAG), headerValue(response, HttpHeaders.LAST_MODIFIED));
+                    return prices;
                 }
-                else
+            }
+            else if(status==304 && pricingCache.hasPrices())
+            {
+                EntityUtils.consume(response.getEntity());
+                pricingCache.revalidated();
+                return pricingCache.getPrices();
+            }
+            else
+            {
+                EntityUtils.consume(response.getEntity());
+                throw new HttpResponseException(status,"Pricing Data could not be retrieved due to a server");
+            }
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    // Number of availability requests made per cycle, one per page
+    public int getLastPageCount()
+    {
+        return lastPageCount;
+    }
+
+    public long getCompressedBytes()
+    {
+        return compressedBytes.get();
+    }
+
+    public long getDecompressedBytes()
+    {
+        return decompressedBytes.get();
+    }
+
+    private void setAcceptEncoding(HttpGet request)
+    {
+        if(compression)
+        {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        }
+    }
+
+    // Wraps the response body so that it is decompressed while streaming into the parser, counting bytes on both sides
+    private InputStream openContent(HttpEntity entity, String source) throws IOException
+    {
+        CountingInputStream wire = new CountingInputStream(entity.getContent(), compressedBytes);
+        InputStream content = wire;
+        Header encoding = entity.getContentEncoding();
+        if(encoding!=null)
+        {
+            String value = encoding.getValue().trim().toLowerCase();
+            if(value.equals("gzip") || value.equals("x-gzip"))
+            {
+                content = new GZIPInputStream(content);
+            }
+            else if(value.equals("deflate"))
+            {
+                content = new DeflateInputStream(content);
+            }
+        }
+        return new MeteredContent(new CountingInputStream(content, decompressedBytes), wire, source);
+    }
+
+    // Builds the pooled keep-alive client. Connections are reused across cycles and only evicted once idle for longer than the keep-alive
+    private void buildHttpClient()
+    {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .setConnectionRequestTimeout(requestTimeout)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy())
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .disableContentCompression()
+                .build();
+    }
+
+    // Honours the server's Keep-Alive timeout if it sends one, otherwise keeps connections for the configured duration
+    private ConnectionKeepAliveStrategy keepAliveStrategy()
+    {
+        return (response, context) ->
+        {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while(it.hasNext())
+            {
+                HeaderElement he = it.nextElement();
+                if(he.getValue()!=null && he.getName().equalsIgnoreCase("timeout"))
                 {
-                    throw new HttpResponseException(status,"Pricing Data could not be retrieved due to a server");
+                    try
+                    {
+                        return Math.min(Long.parseLong(he.getValue())*1000, keepAlive);
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        //Ignore malformed header and fall back to the configured keep-alive
+                    }
                 }
             }
+            return keepAlive;
+        };
+    }
+
+    private void buildRequestPolicies()
+    {
+        pagePolicy = new RequestPolicy(requestDeadline, totalBudget, maxRetries, retryBackoff, hedging, hedgePercentile);
+        pricingPolicy = new RequestPolicy(requestDeadline, totalBudget, maxRetries, retryBackoff, hedging, hedgePercentile);
+    }
+
+    private void buildExecutors()
+    {
+        pageExecutor = Executors.newFixedThreadPool(maxParallelPages, daemonThreadFactory("carpark-page-fetch-"));
+        requestExecutor = Executors.newFixedThreadPool(2, daemonThreadFactory("carpark-request-"));
+    }
+
+    private static ThreadFactory daemonThreadFactory(String prefix)
+    {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public void close() throws IOException
+    {
+        if(pagePolicy!=null)
+        {
+            pagePolicy.close();
+        }
+        if(pricingPolicy!=null)
+        {
+            pricingPolicy.close();
+        }
+        if(requestExecutor!=null)
+        {
+            requestExecutor.shutdownNow();
+        }
+        if(pageExecutor!=null)
+        {
+            pageExecutor.shutdownNow();
+        }
+        if(httpClient!=null)
+        {
+            httpClient.close();
+            connectionManager.close();
         }
     }
 
@@ -159,8 +710,166 @@ public class APIConnector
             {
                 throw new IOException("The file is missing: \"carpark.accountKey=<accountKey>\"");
             }
+
+            //Optional HTTP client settings, defaults are kept if absent
+            connectTimeout = Integer.parseInt(prop.getProperty("http.connect_timeout", String.valueOf(connectTimeout)));
+            socketTimeout = Integer.parseInt(prop.getProperty("http.socket_timeout", String.valueOf(socketTimeout)));
+            requestTimeout = Integer.parseInt(prop.getProperty("http.request_timeout", String.valueOf(requestTimeout)));
+            keepAlive = Long.parseLong(prop.getProperty("http.keep_alive", String.valueOf(keepAlive)));
+            maxConnections = Integer.parseInt(prop.getProperty("http.max_connections", String.valueOf(maxConnections)));
+            compression = Boolean.parseBoolean(prop.getProperty("http.compression", String.valueOf(compression)));
+
+            //Optional deadline, retry and hedging settings
+            requestDeadline = Long.parseLong(prop.getProperty("http.request_deadline", String.valueOf(requestDeadline)));
+            totalBudget = Long.parseLong(prop.getProperty("http.total_budget", String.valueOf(totalBudget)));
+            maxRetries = Integer.parseInt(prop.getProperty("http.max_retries", String.valueOf(maxRetries)));
+            retryBackoff = Long.parseLong(prop.getProperty("http.retry_backoff", String.valueOf(retryBackoff)));
+            hedging = Boolean.parseBoolean(prop.getProperty("http.hedging", String.valueOf(hedging)));
+            hedgePercentile = Double.parseDouble(prop.getProperty("http.hedge_percentile", String.valueOf(hedgePercentile)));
+
+            //Optional pricing settings
+            PRICING_API_URL = prop.getProperty("pricing.api_url", PRICING_API_URL);
+            pricingCacheTtl = Long.parseLong(prop.getProperty("pricing.cache_ttl", String.valueOf(pricingCacheTtl)));
+            pricingCacheFile = prop.getProperty("pricing.cache_file");
+
+            //Optional paging settings for the availability endpoint
+            pagedFetch = Boolean.parseBoolean(prop.getProperty("carpark.paged_fetch", String.valueOf(pagedFetch)));
+            pageSize = Integer.parseInt(prop.getProperty("carpark.page_size", String.valueOf(pageSize)));
+            maxParallelPages = Integer.parseInt(prop.getProperty("carpark.max_parallel_pages", String.valueOf(maxParallelPages)));
             
+            checkConnectionPool();
+        }
+    }
+
+    // The pages of a wave and the pricing request, each with its hedged copy if hedging, must all get a pooled connection.
+    // Otherwise they wait for one until the connection request timeout fails them, which defeats the hedge
+    private void checkConnectionPool() throws IOException
+    {
+        if(maxParallelPages<1)
+        {
+            throw new IOException("carpark.max_parallel_pages must be at least 1");
+        }
+        int needed = (maxParallelPages + 1)*(hedging ? 2 : 1);
+        if(needed > maxConnections)
+        {
+            throw new IOException(String.format("http.max_connections=%d is too small for carpark.max_parallel_pages=%d%s, it must be at least %d",
+                    maxConnections, maxParallelPages, hedging ? " with http.hedging" : "", needed));
+        }
+    }
 
+    // Readings and validators of one retrieved page
+    private static final class Page
+    {
+        private final List<CarparkReading> readings;
+        private final String digest;
+        private final String etag;
+        private final String lastModified;
+
+        private Page(List<CarparkReading> readings, String digest, String etag, String lastModified)
+        {
+            this.readings = readings;
+            this.digest = digest;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // The merged readings of all pages of one cycle together with a fingerprint over the page digests
+    private static final class Fetch
+    {
+        private final List<CarparkReading> readings;
+        private final String fingerprint;
+
+        private Fetch(List<Page> pages)
+        {
+            int total = 0;
+            for(Page page : pages)
+            {
+                total += page.readings.size();
+            }
+            readings = new ArrayList<>(total);
+            MessageDigest digest = newDigest();
+            for(Page page : pages)
+            {
+                readings.addAll(page.readings);
+                digest.update(page.digest.getBytes(StandardCharsets.US_ASCII));
+            }
+            fingerprint = toHex(digest.digest());
+        }
+    }
+
+    // Reports the size of one response body, as received and as decoded, once it is closed
+    private static final class MeteredContent extends FilterInputStream
+    {
+        private final CountingInputStream wire;
+        private final String source;
+
+        private MeteredContent(CountingInputStream decoded, CountingInputStream wire, String source)
+        {
+            super(decoded);
+            this.wire = wire;
+            this.source = source;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                PipelineMetrics.payload(source, "wire", wire.count);
+                PipelineMetrics.payload(source, "decoded", ((CountingInputStream) in).count);
+            }
+        }
+    }
+
+    // Adds the number of bytes read through the stream to a counter
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private final AtomicLong counter;
+        // Bytes read through this stream alone
+        private long count;
+
+        private CountingInputStream(InputStream in, AtomicLong counter)
+        {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if(b!=-1)
+            {
+                counter.incrementAndGet();
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if(n>0)
+            {
+                counter.addAndGet(n);
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            counter.addAndGet(skipped);
+            count += skipped;
+            return skipped;
         }
     }
 
@@ -1,22 +1,22 @@
 package uk.ac.cam.cares.jps.agent.Carpark;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.jooq.exception.DataAccessException;
 import uk.ac.cam.cares.jps.base.util.JSONKeyToIRIMapper;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesSparql;
 
-import java.text.SimpleDateFormat;
 import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.logging.log4j.LogManager;
@@ -27,12 +27,34 @@ public class APIInputAgent
 {
     public static final Logger Log = LogManager.getLogger(APIAgentLauncher.class);
     private TimeSeriesClient<OffsetDateTime> tsclient;
+    // Writes all the time series of a cycle in one transaction, each is added through tsclient when not set
+    private BulkTimeSeriesWriter bulkWriter;
     private List<JSONKeyToIRIMapper> mappings;
+    // Column layout of each mapping's time series, in the same order as mappings
+    private List<ColumnPlan> plans;
+    // Column layout of each time series table the mappings are stored in, written and pruned separately as keys added
+    // to a mapping later are initialised into a table of their own. One per mapping until the tables are known
+    private List<ColumnPlan> tablePlans;
+    // Slot of every carpark and lot type, seeded with the mapped keys
+    private final ReadingDictionary dictionary = new ReadingDictionary();
+    // Latest time written to each time series table, keyed by the first data IRI of its table plan
+    private final WriteWatermarks watermarks = new WriteWatermarks();
+    // Table of each mapped IRI found or made to have a time series. IRIs initialised by this agent share the table of
+    // the first IRI initialised with them, whose name is not looked up
+    private final Map<String, String> tables = new HashMap<>();
+    // Last frame written in sparse mode, null when every cycle writes every value
+    private ChangeTracker changes;
+    // Cycles held back to be written together, null when every cycle is written straight away
+    private WriteBehindBuffer writeBehind;
     public static final String generatedIRIPrefix = TimeSeriesSparql.ns_kb + "Carpark";
     public static final String timeUnit = OffsetDateTime.class.getSimpleName();
     public static final String timestampKey = "time";
     //public static final String status = "qcstatus";
     public static final ZoneOffset ZONE_OFFSET = ZoneOffset.UTC;
+    // Value written for a mapped key without a reading in the cycle
+    private static final List<Double> NAN_VALUES = Collections.singletonList(Double.NaN);
+    // Value written in sparse mode for a key unchanged since the previous cycle
+    private static final List<Double> NULL_VALUES = Collections.singletonList(null);
  
 
 
@@ -62,6 +84,17 @@ public class APIInputAgent
             }
 
             readmappings(mappingFolder);
+
+            if(Boolean.parseBoolean(prop.getProperty("Carpark.sparse.enabled", "false")))
+            {
+                changes = new ChangeTracker(Integer.parseInt(prop.getProperty("Carpark.sparse.keyframe_interval", "60")));
+            }
+            if(Boolean.parseBoolean(prop.getProperty("Carpark.write_behind.enabled", "false")))
+            {
+                writeBehind = new WriteBehindBuffer(Integer.parseInt(prop.getProperty("Carpark.write_behind.max_cycles", "10")),
+                        Long.parseLong(prop.getProperty("Carpark.write_behind.max_age", "600"))*1000,
+                        Long.parseLong(prop.getProperty("Carpark.write_behind.max_bytes", "16777216")));
+            }
         }
 
     }
@@ -71,14 +104,76 @@ public class APIInputAgent
         return mappings.size();
     }
 
+    // JSON key of every mapped data IRI, keyed by IRI
+    public Map<String, String> getKeysByIRI()
+    {
+        Map<String, String> keys = new HashMap<>();
+        for(JSONKeyToIRIMapper mapping : mappings)
+        {
+            for(String key : mapping.getAllJSONKeys())
+            {
+                keys.put(mapping.getIRI(key), key);
+            }
+        }
+        return keys;
+    }
+
     public void setTsClient(TimeSeriesClient<OffsetDateTime> tsclient)
     {
         this.tsclient = tsclient;
     }
 
+    public void setBulkWriter(BulkTimeSeriesWriter bulkWriter)
+    {
+        this.bulkWriter = bulkWriter;
+    }
+
+    // Loads the latest time of every time series in one go. Series left unknown fall back to the time series client
+    public void loadWatermarks(TimeSeriesDatabase database)
+    {
+        List<String> iris = new ArrayList<>(tablePlans.size());
+        for(ColumnPlan plan : tablePlans)
+        {
+            iris.add(plan.getIRI(0));
+        }
+        try(Connection connection = database.connect())
+        {
+            for(Map.Entry<String, OffsetDateTime> maxTime : database.lookupMaxTimes(connection, iris).entrySet())
+            {
+                watermarks.set(maxTime.getKey(), maxTime.getValue());
+            }
+            Log.info(String.format("Loaded the write watermarks of %d out of %d time series", watermarks.size(), iris.size()));
+        }
+        catch(SQLException e)
+        {
+            if(!TimeSeriesDatabase.isMissingCentralTable(e))
+            {
+                Log.warn("Could not load the write watermarks, the latest times will be read series by series", e);
+            }
+        }
+    }
+
+    // Assigns the keys of the mapping their dictionary slots and fixes the order and class of its columns
+    private ColumnPlan compilePlan(JSONKeyToIRIMapper mapping)
+    {
+        List<String> keys = mapping.getAllJSONKeys();
+        List<String> iris = new ArrayList<>(keys.size());
+        int[] slots = new int[keys.size()];
+        List<Class<?>> types = new ArrayList<>(keys.size());
+        for(int i=0;i<keys.size();i++)
+        {
+            String iri = mapping.getIRI(keys.get(i));
+            iris.add(iri);
+            slots[i] = dictionary.slot(keys.get(i));
+            types.add(getClassFromJSONKey(iri));
+        }
+        return new ColumnPlan(iris, slots, types);
+    }
+
     private void readmappings(String mappingfolder) throws IOException
     {
         mappings = new ArrayList<>();
+        plans = new ArrayList<>();
         File folder = new File(mappingfolder);
         File[] mappingFiles = folder.listFiles();
 
@@ -97,216 +192,370 @@ public class APIInputAgent
             {
                 JSONKeyToIRIMapper mapper = new JSONKeyToIRIMapper(APIInputAgent.generatedIRIPrefix, mappingFile.getAbsolutePath());
                 mappings.add(mapper);
+                plans.add(compilePlan(mapper));
                 mapper.saveToFile(mappingFile.getAbsolutePath());
             }
         }
+        tablePlans = plans;
     }
 
-    public void initializeTimeSeriesIfNotExist()
+    // Initialises the time series of the mapped IRIs that do not have one yet, after checking all IRIs in one query,
+    // and splits the plans by the table each column is stored in
+    public void initializeTimeSeriesIfNotExist(TimeSeriesDatabase database)
     {
-        for(JSONKeyToIRIMapper mapping:mappings)
+        Map<String, String> existing = tablesOf(database);
+        List<ColumnPlan> split = new ArrayList<>(plans.size());
+        for(ColumnPlan plan:plans)
         {
-            List<String> iris = mapping.getAllIRIs();
-            if(!timeSeriesExist(iris))
+            Map<String, List<Integer>> columnsByTable = new LinkedHashMap<>();
+            List<Integer> missing = new ArrayList<>();
+            for(int i=0;i<plan.size();i++)
+            {
+                String table = existing.get(plan.getIRI(i));
+                if(table==null)
+                {
+                    missing.add(i);
+                }
+                else
+                {
+                    columnsByTable.computeIfAbsent(table, t -> new ArrayList<>()).add(i);
+                }
+            }
+            if(!missing.isEmpty())
             {
-                List<Class<?>> classes = iris.stream().map(this::getClassFromJSONKey).collect(Collectors.toList());
-                // TO clarify later on Google.
-                
+                ColumnPlan missingPlan = plan.select(missing);
+                List<Class<?>> classes = new ArrayList<>(missing.size());
+                for(int i=0;i<missingPlan.size();i++)
+                {
+                    classes.add(missingPlan.getType(i));
+                }
                 try
                 {
-                    tsclient.initTimeSeries(iris,classes,timeUnit);
-                    Log.info(String.format("Initialized time series with the following IRIs: %s", String.join(", ", iris)));
-                
+                    tsclient.initTimeSeries(missingPlan.getIRIs(),classes,timeUnit);
+                    Log.info(String.format("Initialized time series with the following IRIs: %s", String.join(", ", missingPlan.getIRIs())));
                 }
                 catch(Exception e)
                 {
                     throw new JPSRuntimeException("Could not instantiate TimeSeries");
                 }
+                for(String iri:missingPlan.getIRIs())
+                {
+                    tables.put(iri, missingPlan.getIRI(0));
+                }
+                columnsByTable.put(missingPlan.getIRI(0), missing);
+            }
+            for(List<Integer> columns:columnsByTable.values())
+            {
+                split.add(columns.size()==plan.size() ? plan : plan.select(columns));
             }
         }
+        tablePlans = split;
     }
-    private boolean timeSeriesExist(List<String> iris)
+
+    // The table of every mapped IRI known to have a time series, only asking the database about those not known yet
+    private Map<String, String> tablesOf(TimeSeriesDatabase database)
     {
-        for (String iri:iris)
+        List<String> unknown = new ArrayList<>();
+        for(ColumnPlan plan:plans)
         {
-            try
+            for(String iri:plan.getIRIs())
             {
-                if(!tsclient.checkDataHasTimeSeries(iri))
+                if(!tables.containsKey(iri))
                 {
-                    return false;
+                    unknown.add(iri);
                 }
             }
-            catch(DataAccessException e)
+        }
+        if(unknown.isEmpty())
+        {
+            return tables;
+        }
+        try(Connection connection = database.connect())
+        {
+            for(TimeSeriesDatabase.Column column:database.lookupColumns(connection, unknown).values())
+            {
+                tables.put(column.getDataIRI(), column.getTableName());
+            }
+        }
+        catch(SQLException e)
+        {
+            //No time series at all before the first one is initialised
+            if(!TimeSeriesDatabase.isMissingCentralTable(e))
             {
-                if (e.getMessage().contains("ERROR: relation \"dbTable\" does not exist")) 
-                {
-                    return false;
-                }
-                else 
-                {
-                    throw e;
-                }
+                throw new JPSRuntimeException("Could not check which time series exist", e);
             }
         }
-        return true;
+        return tables;
     }
 
     public void updateData(JSONObject carparkReadings) throws IllegalArgumentException
     {
-        Map <String, List<?>> carparkReadingsMap = new HashMap<>();
+        List<CarparkReading> readings;
         try
         {
-            carparkReadingsMap = jsonObjectToMap(carparkReadings);
+            readings = CarparkReading.fromJSONArray(carparkReadings.getJSONArray("value"));
         }
         catch (Exception e) 
         {
             throw new JPSRuntimeException (e.toString());
         }
+        updateData(readings);
+    }
 
+    public void updateData(List<CarparkReading> carparkReadings) throws IllegalArgumentException
+    {
+        if(carparkReadings.isEmpty())
+        {
+            throw new IllegalArgumentException("Readings can not be empty!");
+        }
+        ReadingDictionary.Frame frame;
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_ENCODE_READINGS);
+        try
+        {
+            //All readings of a cycle share one timestamp, to the second as before
+            frame = dictionary.encode(carparkReadings, OffsetDateTime.now(ZONE_OFFSET).truncatedTo(ChronoUnit.SECONDS));
+        }
+        finally
+        {
+            timer.stop();
+        }
+        writeReadings(frame);
+        //Readers of the latest availability only see readings that made it into the database, or into the write-behind
+        //buffer if enabled
+        AvailabilitySnapshot.publish(carparkReadings, frame.getTimestamp().toInstant());
+    }
 
-        if(!carparkReadings.isEmpty())
+    // Synchronized with the flushes of the write-behind buffer. With write-behind a frame is recorded by the change
+    // tracker once it is buffered rather than written: buffered cycles are kept until they are written, in order, and a
+    // cycle that could not be buffered or flushed resets the tracker so that the next one is a keyframe
+    private synchronized void writeReadings(ReadingDictionary.Frame frame)
+    {
+        //Null unless the values of the previous frame are known to be in the database
+        ReadingDictionary.Frame baseline = changes==null ? null : changes.baseline();
+        List<TimeSeries<OffsetDateTime>> timeSeries;
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_CONVERT_TIME_SERIES);
+        try
         {
-            List<TimeSeries<OffsetDateTime>> timeSeries;
-            try
-            {
-                timeSeries = convertReadingsToTimeSeries(carparkReadingsMap);
-            }
-            catch (NoSuchElementException e)    
+            timeSeries = convertReadingsToTimeSeries(frame, baseline);
+        }
+        catch (NoSuchElementException e)    
+        {
+            PipelineMetrics.error(PipelineMetrics.STAGE_CONVERT_TIME_SERIES);
+            throw new IllegalArgumentException("Readings cannot be converted to ProperTimeSeries",e);
+        }
+        finally
+        {
+            timer.stop();
+        }
+        if (changes==null)
+        {
+            writeOrBuffer(timeSeries);
+            return;
+        }
+        try
+        {
+            writeOrBuffer(timeSeries);
+        }
+        catch (RuntimeException e)
+        {
+            changes.reset();
+            throw e;
+        }
+        changes.written(frame, baseline==null);
+    }
+
+    private void writeOrBuffer(List<TimeSeries<OffsetDateTime>> timeSeries)
+    {
+        if (writeBehind==null)
+        {
+            writeTimeSeries(timeSeries);
+            return;
+        }
+        if (writeBehind.isFull())
+        {
+            //The cycles kept by a failed flush take up the whole buffer, this cycle is dropped unless they can be written
+            flushWriteBehind();
+        }
+        if (writeBehind.add(timeSeries, System.currentTimeMillis()))
+        {
+            flushWriteBehind();
+        }
+    }
+
+    public boolean isWriteBehind()
+    {
+        return writeBehind!=null;
+    }
+
+    // Writes out the buffered cycles if the buffer has reached its age or another bound, to be called periodically
+    public synchronized void flushIfDue()
+    {
+        if (writeBehind!=null && writeBehind.isDue(System.currentTimeMillis()))
+        {
+            flushWriteBehind();
+        }
+    }
+
+    // Writes out all buffered cycles, e.g. on shutdown
+    public synchronized void flush()
+    {
+        if (writeBehind!=null && !writeBehind.isEmpty())
+        {
+            flushWriteBehind();
+        }
+    }
+
+    // The buffer is only cleared once written. After a failure its cycles are written again by the next flush, which
+    // prunes the rows that made it into the database, while new cycles are added up to max_bytes
+    private void flushWriteBehind()
+    {
+        int cycles = writeBehind.getCycles();
+        List<TimeSeries<OffsetDateTime>> timeSeries = writeBehind.getTimeSeries();
+        try
+        {
+            writeTimeSeries(timeSeries);
+        }
+        catch (RuntimeException e)
+        {
+            Log.error(String.format("Could not write %d buffered cycles, keeping them for the next flush", cycles));
+            throw e;
+        }
+        writeBehind.clear();
+        Log.debug(String.format("Flushed %d buffered cycles into %d time series", cycles, timeSeries.size()));
+    }
+
+    private void writeTimeSeries(List<TimeSeries<OffsetDateTime>> timeSeries)
+    {
+        List<TimeSeries<OffsetDateTime>> pending = new ArrayList<>(timeSeries.size());
+        for (TimeSeries<OffsetDateTime> ts : timeSeries) 
+        {
+            String watermarkIRI = ts.getDataIRIs().get(0);
+            // Current maximum time to avoid duplicate entries (can be null if no data is in the database yet)
+            OffsetDateTime endDataTime;
+            if (watermarks.isKnown(watermarkIRI))
             {
-                throw new IllegalArgumentException("Readings cannot be converted to ProperTimeSeries",e);
+                endDataTime = watermarks.get(watermarkIRI);
             }
-            for (TimeSeries<OffsetDateTime> ts : timeSeries) 
+            else
             {
-                // Retrieve current maximum time to avoid duplicate entries (can be null if no data is in the database yet)
-                OffsetDateTime endDataTime;
-                try 
+                PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_GET_MAX_TIME);
+                try
                  {
-                	endDataTime= tsclient.getMaxTime(ts.getDataIRIs().get(0));      
+                	endDataTime= tsclient.getMaxTime(watermarkIRI);      
                  } 
                  catch (Exception e) 
                  {
+                    PipelineMetrics.error(PipelineMetrics.STAGE_GET_MAX_TIME);
                 	throw new JPSRuntimeException("Could not get max time!");
                  }
-                 
-                OffsetDateTime startCurrentTime = ts.getTimes().get(0);
-                // If there is already a maximum time
-                if (endDataTime != null) 
+                 finally
+                 {
+                    timer.stop();
+                 }
+                watermarks.set(watermarkIRI, endDataTime);
+            }
+             
+            OffsetDateTime startCurrentTime = ts.getTimes().get(0);
+            // If there is already a maximum time
+            if (endDataTime != null) 
+            {
+                // If the new data overlaps with existing timestamps, prune the new ones. A row at the max time itself is
+                // already stored, e.g. when the write-behind buffer retries a partly written flush
+                if (!startCurrentTime.isAfter(endDataTime))
+                    ts = pruneTimeSeries(ts, endDataTime);
+            }
+            // Only update if there actually is data
+            if (!ts.getTimes().isEmpty() && bulkWriter!=null)
+            {
+                pending.add(ts);
+            }
+            else if (!ts.getTimes().isEmpty()) 
+            {
+            	PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_ADD_TIME_SERIES);
+            	try
                 {
-                    // If the new data overlaps with existing timestamps, prune the new ones
-                    if (startCurrentTime.isBefore(endDataTime))
-                        ts = pruneTimeSeries(ts, endDataTime);
+                  tsclient.addTimeSeriesData(ts);
+                  watermarks.advance(watermarkIRI, ts.getTimes().get(ts.getTimes().size() - 1));
+                  Log.debug(String.format("Time series updated for following IRIs: %s", String.join(", ", ts.getDataIRIs())));
                 }
-                // Only update if there actually is data
-                if (!ts.getTimes().isEmpty()) 
+                catch (Exception e)
                 {
-                	try 
-                    {
-                      tsclient.addTimeSeriesData(ts);
-                      Log.debug(String.format("Time series updated for following IRIs: %s", String.join(", ", ts.getDataIRIs())));
-                    }
-                    catch (Exception e)
-                    {
-                	   throw new JPSRuntimeException("Could not add timeseries!");
-                    } 
+                   PipelineMetrics.error(PipelineMetrics.STAGE_ADD_TIME_SERIES);
+                   //Whatever made it into the database is read back before the next write
+                   watermarks.invalidate(watermarkIRI);
+            	   throw new JPSRuntimeException("Could not add timeseries!");
+                } 
+                finally
+                {
+                   timer.stop();
                 }
             }
         }
-        else 
+        if (!pending.isEmpty())
         {
-            throw new IllegalArgumentException("Readings can not be empty!");
+            writeBulk(pending);
         }
     }
 
-    private Map<String, List<?>> jsonObjectToMap(JSONObject readings) {
-
-        // First save the values as Object //
-        
-        Map<String, List<?>> readingsMap = new HashMap<>();
-        
-        Map<String, List<Object>> firstMap = new HashMap<>();
-        
-        JSONArray jsArr;
-        try {
-            
-            jsArr = readings.getJSONArray("value");
-            for(int i=0; i<jsArr.length();i++)
+    private void writeBulk(List<TimeSeries<OffsetDateTime>> timeSeries)
+    {
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_ADD_TIME_SERIES);
+        try
+        {
+            long rows = bulkWriter.write(timeSeries);
+            Log.debug(String.format("Wrote %d rows of %d time series", rows, timeSeries.size()));
+        }
+        catch (SQLException e)
+        {
+            PipelineMetrics.error(PipelineMetrics.STAGE_ADD_TIME_SERIES);
+            //The transaction was rolled back, but the max times are read back to be safe
+            for (TimeSeries<OffsetDateTime> ts : timeSeries)
             {
-                JSONObject currentEntry = jsArr.getJSONObject(i);
-                
-                String key1 = "AvailableLots";
-                Object value = currentEntry.get(key1);
-                String key = key1+"_"+currentEntry.get("CarParkID")+"_"+currentEntry.get("LotType");
-                firstMap.put(key,new ArrayList<>());
-
-                firstMap.get(key).add(value);
-
-                List<Object> valuesUntyped = firstMap.get(key);
-                List<?> valuesTyped = valuesUntyped.stream().map(x -> ((Number) x).intValue()).collect(Collectors.toList());
-
-                readingsMap.put(key,valuesTyped);
+                watermarks.invalidate(ts.getDataIRIs().get(0));
             }
-            long timestamp = System.currentTimeMillis();
-            Date date = new java.util.Date(timestamp);
-            SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            
-            Object ts = sdf.format(date);
-
-            String k = "time";
-            firstMap.put(k,new ArrayList<>());
-            firstMap.get(k).add(ts);
-
-            List<Object> valueUntyped = firstMap.get(k);
-            List<?> valueTyped = valueUntyped.stream().map(Object::toString).collect(Collectors.toList());
-
-            readingsMap.put(k,valueTyped);
-            
-        } catch (Exception e) {
-            throw new JPSRuntimeException("Readings can not be empty!", e);
-        }   
-      
-        return readingsMap;
-
+            Log.error("Could not write the time series of the cycle", e);
+            throw new JPSRuntimeException("Could not add timeseries!", e);
+        }
+        finally
+        {
+            timer.stop();
+        }
+        for (TimeSeries<OffsetDateTime> ts : timeSeries)
+        {
+            watermarks.advance(ts.getDataIRIs().get(0), ts.getTimes().get(ts.getTimes().size() - 1));
+        }
     }
 
-
-    private List<TimeSeries<OffsetDateTime>> convertReadingsToTimeSeries(Map<String, List<?>> carparkReadings)
+    // Every value of each table, or in sparse mode only those changed since the baseline with tables left out entirely
+    // when none of their values changed
+    private List<TimeSeries<OffsetDateTime>> convertReadingsToTimeSeries(ReadingDictionary.Frame frame, ReadingDictionary.Frame baseline)
     throws  NoSuchElementException 
     {
-       // Extract the timestamps by mapping the private conversion method on the list items
-       // that are supposed to be string (toString() is necessary as the map contains lists of different types)
-
-       List<OffsetDateTime> carparkTimestamps = carparkReadings.get(APIInputAgent.timestampKey).stream().map(timestamp -> (convertStringToOffsetDateTime(timestamp.toString()))).collect(Collectors.toList());
+       List<OffsetDateTime> times = Collections.singletonList(frame.getTimestamp());
        try{
         // Construct a time series object for each mapping
-        List<TimeSeries<OffsetDateTime>> timeSeries = new ArrayList<>();
-        for (JSONKeyToIRIMapper mapping: mappings)
-        {
-            // Initialize the list of IRIs
-            List<String> iris = new ArrayList<>();
-            // Initialize the list of list of values
-            List<List<?>> values = new ArrayList<>();
-            List<Double> NaN = new ArrayList<>();
-            NaN.add(Double.NaN);
-            List<?> NaNTyped = NaN.stream().map(x -> ((Number) x).doubleValue()).collect(Collectors.toList());
-            for(String key: mapping.getAllJSONKeys()) 
+        List<TimeSeries<OffsetDateTime>> timeSeries = new ArrayList<>(tablePlans.size());
+        for (ColumnPlan plan: tablePlans)
+        {
+            List<?>[] values = new List<?>[plan.size()];
+            boolean changed = false;
+            for(int i=0;i<values.length;i++) 
             {
-                // Add IRI
-                iris.add(mapping.getIRI(key));
-                if (carparkReadings.containsKey(key)) 
+                int slot = plan.getSlot(i);
+                if (!ChangeTracker.changed(baseline, frame, slot))
                 {
-                    values.add(carparkReadings.get(key));
-                }
-                else 
-                {
-                    values.add(NaNTyped);
+                    values[i] = NULL_VALUES;
+                    continue;
                 }
+                changed = true;
+                values[i] = frame.has(slot) ? Collections.singletonList(frame.get(slot)) : NAN_VALUES;
             }  
-          List<OffsetDateTime> times = carparkTimestamps;
+          if (!changed)
+          {
+              continue;
+          }
           // Create the time series object and add it to the list
-   
-         TimeSeries<OffsetDateTime> currentTimeSeries = new TimeSeries<>(times, iris, values);
-         timeSeries.add(currentTimeSeries);
+         timeSeries.add(new TimeSeries<>(times, plan.getIRIs(), Arrays.asList(values)));
         }
 
      return timeSeries;
@@ -316,19 +565,6 @@ public class APIInputAgent
    }
    
    
-   private OffsetDateTime convertStringToOffsetDateTime(String timestamp)  
-   {
- // Convert first to a local time
- LocalDateTime localTime = LocalDateTime.parse(timestamp);
- // Then add the zone id
- return OffsetDateTime.of(localTime, ZoneOffset.UTC) ;
-   }
-
-
-
-
-
-
    private TimeSeries<OffsetDateTime> pruneTimeSeries(TimeSeries<OffsetDateTime> timeSeries, OffsetDateTime timeThreshold) 
    {
      // Find the index from which to start
@@ -222,8 +222,20 @@ public class APIQueryBuilder
     public void instantiateIfNotInstantiated(JSONObject carparkReadings, JSONObject prices)
     {
         readings = carparkReadings;
+        instantiateIfNotInstantiated(CarparkReading.fromJSONArray(carparkReadings.getJSONArray("value")), prices);
+    }
+
+    public void instantiateIfNotInstantiated(List<CarparkReading> carparkReadings, JSONObject prices)
+    {
         priceReadings = prices;
 
+        //Index the readings once by carpark instead of scanning all of them for every IRI
+        Map<String, CarparkReading> readingsByID = new HashMap<>();
+        for(CarparkReading reading : carparkReadings)
+        {
+            readingsByID.put(reading.getCarparkID(), reading);
+        }
+
         List<String> iris;
 
         JSONArray carparkRates = priceReadings.getJSONObject("result").getJSONArray("records");
@@ -249,14 +261,14 @@ public class APIQueryBuilder
     
                 try
                 {
-                    JSONArray qR = kbClient.executeQuery();
+                    JSONArray qR = executeQuery("data_iri_type");
     
                     if(qR.isEmpty())
                     {
                         TriplePattern P1 = iri(iri).isA(AvailableLots);
                         InsertDataQuery insert = Queries.INSERT_DATA(P1);
                         insert.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert.getQueryString());
+                        executeUpdate("insert_data_iri_type", insert.getQueryString());
                     }
                     else
                     {
@@ -286,7 +298,7 @@ public class APIQueryBuilder
                     InsertDataQuery insert2 = Queries.INSERT_DATA(updatePattern);
                     insert2.prefix(PREFIX_ONTOCARPARK);
     
-                    kbClient.executeUpdate(insert2.getQueryString());
+                    executeUpdate("insert_lot_type", insert2.getQueryString());
                 }
                 else if(lotType.equalsIgnoreCase("H"))
                 {
@@ -294,7 +306,7 @@ public class APIQueryBuilder
                     InsertDataQuery insert2 = Queries.INSERT_DATA(updatePattern);
                     insert2.prefix(PREFIX_ONTOCARPARK);
     
-                    kbClient.executeUpdate(insert2.getQueryString());
+                    executeUpdate("insert_lot_type", insert2.getQueryString());
                 }
                 else
                 {
@@ -302,7 +314,7 @@ public class APIQueryBuilder
                     InsertDataQuery insert2 = Queries.INSERT_DATA(updatePattern);
                     insert2.prefix(PREFIX_ONTOCARPARK);
     
-                    kbClient.executeUpdate(insert2.getQueryString());
+                    executeUpdate("insert_lot_type", insert2.getQueryString());
                 }
     
                 //Creating IRI to check for multiple LotType
@@ -318,12 +330,12 @@ public class APIQueryBuilder
     
                 try
                 {
-                    JSONArray queryResult = kbClient.executeQuery();
+                    JSONArray queryResult = executeQuery("carpark_by_id");
                     TriplePattern pattern1;
     
                     if(!queryResult.isEmpty())
                     {
-                        result = kbClient.executeQuery().getJSONObject(0).getString("carparkIRI");
+                        result = executeQuery("carpark_by_id").getJSONObject(0).getString("carparkIRI");
                         pattern1 = iri(result).has(hasLotType,iri(lotTypeIri));
                     }
                     else
@@ -334,12 +346,12 @@ public class APIQueryBuilder
                     }
                     InsertDataQuery insert3 = Queries.INSERT_DATA(pattern1);
                     insert3.prefix(PREFIX_ONTOCARPARK);
-                    kbClient.executeUpdate(insert3.getQueryString());
+                    executeUpdate("insert_carpark_lot_type", insert3.getQueryString());
     
                     TriplePattern pattern8 = iri(result).isA(Carpark);
                     InsertDataQuery insert10 = Queries.INSERT_DATA(pattern8);
                     insert10.prefix(PREFIX_ONTOCARPARK);
-                    kbClient.executeUpdate(insert10.getQueryString());
+                    executeUpdate("insert_carpark_type", insert10.getQueryString());
     
     
                     //TriplePattern to link LotType IRI to data Iri
@@ -347,7 +359,7 @@ public class APIQueryBuilder
                     TriplePattern updatePattern = iri(lotTypeIri).has(hasLots,iri(iri));
                     InsertDataQuery insertUpdate = Queries.INSERT_DATA(updatePattern);
                     insertUpdate.prefix(PREFIX_ONTOCARPARK);
-                    kbClient.executeUpdate(insertUpdate.getQueryString());
+                    executeUpdate("insert_lot_type_lots", insertUpdate.getQueryString());
                 }
                 catch(Exception e)
                 {
@@ -366,7 +378,7 @@ public class APIQueryBuilder
     
                 try
                 {
-                    JSONArray queryResult1 = kbClient.executeQuery();
+                    JSONArray queryResult1 = executeQuery("carpark_location");
                    
                     if(!queryResult1.isEmpty())
                     {
@@ -378,42 +390,26 @@ public class APIQueryBuilder
                         TriplePattern pattern2 = iri(result).has(hasLocation, iri(build2));
                         InsertDataQuery insert4 = Queries.INSERT_DATA(pattern2);
                         insert4.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert4.getQueryString());
+                        executeUpdate("insert_location", insert4.getQueryString());
     
                         //Obtaining Location
                         TriplePattern pattern3 = iri(build2).isA(Location);
                         InsertDataQuery insert5 = Queries.INSERT_DATA(pattern3);
                         insert5.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert5.getQueryString());
+                        executeUpdate("insert_location_type", insert5.getQueryString());
     
                         String loc="";
                         String agency = "";
                         String Devlabel="";
 
-                        try
+                        //Look up the reading with the correct ID and then store the Location and Agency
+                        CarparkReading carparkReading = readingsByID.get(CarparkID);
+                        if(carparkReading!=null)
                         {
-                           JSONArray jsArr;
-                           jsArr = readings.getJSONArray("value"); 
-                           for(int i=0; i<jsArr.length();i++)
-                            {
-                                JSONObject currentObject = jsArr.getJSONObject(i);
-                                String ID = currentObject.getString("CarParkID");
-                                //Check for the correct iD and then store the Location and Agency
-                                if(ID.equals(CarparkID))
-                                {
-                                    loc = currentObject.getString("Location");
-                                    agency = currentObject.getString("Agency");
-                                    Devlabel = currentObject.getString("Development");
-
-                                    //Storing the values in String variables
-                                }
-                            }
-    
+                            loc = carparkReading.getLocation();
+                            agency = carparkReading.getAgency();
+                            Devlabel = carparkReading.getDevelopment();
                         }
-                        catch (Exception e) 
-                        {
-                           throw new JPSRuntimeException("Readings can not be empty!", e);
-                        }   
     
                         //Extracting out the Lat and Longitude and converting it into a Double 
                         StringTokenizer str = new StringTokenizer(loc, " ");
@@ -425,19 +421,19 @@ public class APIQueryBuilder
                         TriplePattern pattern4 = iri(build2).has(hasLatitude,lat);
                         InsertDataQuery insert6 = Queries.INSERT_DATA(pattern4);
                         insert6.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert6.getQueryString());
+                        executeUpdate("insert_latitude", insert6.getQueryString());
     
                         //TriplePattern for Longitude
                         TriplePattern pattern5 = iri(build2).has(hasLongitude,lon);
                         InsertDataQuery insert7 = Queries.INSERT_DATA(pattern5);
                         insert7.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert7.getQueryString());
+                        executeUpdate("insert_longitude", insert7.getQueryString());
     
                         //TriplePattern for Agency
                         TriplePattern pattern6 = iri(result).has(hasAgency,agency);
                         InsertDataQuery insert8 = Queries.INSERT_DATA(pattern6);
                         insert8.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert8.getQueryString());
+                        executeUpdate("insert_agency", insert8.getQueryString());
     
     
                         //TriplePattern for CarparkID
@@ -445,14 +441,14 @@ public class APIQueryBuilder
                         TriplePattern pattern7 = iri(result).has(hasID, CarparkID);
                         InsertDataQuery insert9 = Queries.INSERT_DATA(pattern7);
                         insert9.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert9.getQueryString());
+                        executeUpdate("insert_carpark_id", insert9.getQueryString());
 
                         //TriplePattern for Label(Development)
 
                         TriplePattern pattern8 = iri(result).has(label,Devlabel);
                         InsertDataQuery insert10 = Queries.INSERT_DATA(pattern8);
                         insert10.prefix(PREFIX_RDFS);
-                        kbClient.executeUpdate(insert10.getQueryString());
+                        executeUpdate("insert_label", insert10.getQueryString());
 
 
                         //FuzzyMatching for the carpark Prices
@@ -510,17 +506,17 @@ public class APIQueryBuilder
                         TriplePattern pattern9 = iri(result).has(hasWeekdayRates,weekday);
                         InsertDataQuery insert11 = Queries.INSERT_DATA(pattern9);
                         insert11.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert11.getQueryString());
+                        executeUpdate("insert_weekday_rates", insert11.getQueryString());
 
                         TriplePattern pattern10 = iri(result).has(hasSaturdayRates,saturdayRate);
                         InsertDataQuery insert12 = Queries.INSERT_DATA(pattern10);
                         insert12.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert12.getQueryString());
+                        executeUpdate("insert_saturday_rates", insert12.getQueryString());
 
                         TriplePattern pattern11 = iri(result).has(hasSundayAndPHRates,sundayAndPHRates);
                         InsertDataQuery insert13 = Queries.INSERT_DATA(pattern11);
                         insert13.prefix(PREFIX_ONTOCARPARK);
-                        kbClient.executeUpdate(insert13.getQueryString());
+                        executeUpdate("insert_sunday_ph_rates", insert13.getQueryString());
 
 
                         //Looping through for subsequent IRIs
@@ -540,4 +536,31 @@ public class APIQueryBuilder
         }
     }
 
+    // Runs the query last set on the client, timing it under the given operation name
+    private JSONArray executeQuery(String operation)
+    {
+        PipelineMetrics.Timer timer = PipelineMetrics.timeSparql(PipelineMetrics.SPARQL_QUERY, operation);
+        try
+        {
+            return kbClient.executeQuery();
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    private void executeUpdate(String operation, String update)
+    {
+        PipelineMetrics.Timer timer = PipelineMetrics.timeSparql(PipelineMetrics.SPARQL_UPDATE, operation);
+        try
+        {
+            kbClient.executeUpdate(update);
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
 }
@@ -0,0 +1,125 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Derives the interval until the next poll from how much the availability changed in recent cycles. Busy periods
+ * halve the interval down to the configured minimum, quiet periods stretch it up to the maximum. The minimum is
+ * raised further if polling that often would exceed the daily API request quota.
+ */
+public class AdaptivePollController
+{
+    // Share of readings that changed, smoothed over cycles, above which polling speeds up and below which it backs off
+    private static final double HIGH_ACTIVITY = 0.05;
+    private static final double LOW_ACTIVITY = 0.01;
+    private static final double SMOOTHING = 0.5;
+    private static final double BACKOFF_FACTOR = 1.5;
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final long dailyQuota;
+
+    private final Map<String, Integer> previousLots = new HashMap<>();
+    private double activity;
+    private long interval;
+    private int lastChangedCount;
+    private double lastMeanDelta;
+
+    // Intervals in seconds, a dailyQuota of 0 means the API quota is not limiting
+    public AdaptivePollController(long minInterval, long maxInterval, long dailyQuota)
+    {
+        if(minInterval<=0 || maxInterval<minInterval)
+        {
+            throw new IllegalArgumentException("Poll interval bounds must satisfy 0 < min <= max");
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.dailyQuota = dailyQuota;
+        this.interval = minInterval;
+    }
+
+    public static AdaptivePollController fromProperties(String propertiesFile) throws IOException
+    {
+        try(InputStream input = new FileInputStream(propertiesFile))
+        {
+            Properties prop = new Properties();
+            prop.load(input);
+            return new AdaptivePollController(Long.parseLong(prop.getProperty("Carpark.poll.min_interval", "60")),
+                    Long.parseLong(prop.getProperty("Carpark.poll.max_interval", "900")),
+                    Long.parseLong(prop.getProperty("Carpark.poll.daily_quota", "0")));
+        }
+    }
+
+    // Records the readings of a cycle that made requestsPerCycle calls to the API and returns the next interval
+    public synchronized long observe(List<CarparkReading> readings, int requestsPerCycle)
+    {
+        int changed = 0;
+        long totalDelta = 0;
+        for(CarparkReading reading : readings)
+        {
+            Integer previous = previousLots.put(reading.getKey(), reading.getAvailableLots());
+            if(previous!=null && previous!=reading.getAvailableLots())
+            {
+                changed++;
+                totalDelta += Math.abs(reading.getAvailableLots() - previous);
+            }
+        }
+        lastChangedCount = changed;
+        lastMeanDelta = changed==0 ? 0 : (double) totalDelta/changed;
+        return adjust(readings.isEmpty() ? 0 : (double) changed/readings.size(), requestsPerCycle);
+    }
+
+    // Records a cycle whose upstream snapshot was identical to the previous one
+    public synchronized long observeUnchanged(int requestsPerCycle)
+    {
+        lastChangedCount = 0;
+        lastMeanDelta = 0;
+        return adjust(0, requestsPerCycle);
+    }
+
+    private long adjust(double changedShare, int requestsPerCycle)
+    {
+        activity = SMOOTHING*changedShare + (1-SMOOTHING)*activity;
+        if(activity>HIGH_ACTIVITY)
+        {
+            interval = interval/2;
+        }
+        else if(activity<LOW_ACTIVITY)
+        {
+            interval = (long) Math.ceil(interval*BACKOFF_FACTOR);
+        }
+        interval = Math.max(quotaFloor(requestsPerCycle), Math.min(maxInterval, Math.max(minInterval, interval)));
+        return interval;
+    }
+
+    // Shortest interval at which the given number of requests per cycle stays within the daily quota
+    private long quotaFloor(int requestsPerCycle)
+    {
+        if(dailyQuota<=0)
+        {
+            return minInterval;
+        }
+        return (long) Math.ceil((double) SECONDS_PER_DAY*Math.max(1, requestsPerCycle)/dailyQuota);
+    }
+
+    public synchronized long getInterval()
+    {
+        return interval;
+    }
+
+    public synchronized int getLastChangedCount()
+    {
+        return lastChangedCount;
+    }
+
+    public synchronized double getLastMeanDelta()
+    {
+        return lastMeanDelta;
+    }
+}
@@ -0,0 +1,415 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server-Sent Events fan-out of availability changes. Each published snapshot is compared with the previous one and the
+ * lot types whose AvailableLots changed become one event with an increasing ID. An event is encoded once for all
+ * unfiltered subscribers and once per distinct filter, then queued to every subscriber and written by a small pool of
+ * writer threads. Sinks are non-blocking: a subscriber is only written to while its sink is ready and is resumed by the
+ * sink once it is ready again, so a slow client never holds up the cycle, a writer thread or the other clients, and is
+ * dropped once too many frames are queued for it. Recent events are retained so that a client reconnecting with its
+ * last event ID only receives what it missed.
+ */
+public class AvailabilityDeltaStream
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String EVENT_AVAILABILITY = "availability";
+    // Sent when the events after the client's last event ID are no longer retained, the client should refetch /availability
+    public static final String EVENT_RESET = "reset";
+
+    private static final byte[] HEARTBEAT = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int retainedEvents;
+    private final int maxQueuedFrames;
+    private final Deque<Event> history = new ArrayDeque<>();
+    private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+    private final ExecutorService writers;
+    private long lastEventId;
+
+    public AvailabilityDeltaStream(int retainedEvents, int maxQueuedFrames, int writerThreads)
+    {
+        this.retainedEvents = retainedEvents;
+        this.maxQueuedFrames = maxQueuedFrames;
+        //IDs continue from the clock so that the IDs of an earlier run are all older than the ones of this run
+        this.lastEventId = System.currentTimeMillis();
+        AtomicInteger count = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "carpark-sse-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Publishes the changes between two snapshots as one event, previous being null for the first snapshot.
+    // Returns the event ID, or -1 if nothing changed
+    public long publish(AvailabilitySnapshot previous, AvailabilitySnapshot current)
+    {
+        List<Change> changes = diff(previous, current);
+        if(changes.isEmpty())
+        {
+            return -1;
+        }
+        synchronized(this)
+        {
+            Event event = new Event(++lastEventId, current.getTimestamp().toString(), changes);
+            history.addLast(event);
+            while(history.size()>retainedEvents)
+            {
+                history.removeFirst();
+            }
+            for(Subscriber subscriber : subscribers)
+            {
+                subscriber.send(event.frame(subscriber.filter));
+            }
+            return event.id;
+        }
+    }
+
+    // Registers a subscriber, first replaying the retained events after lastEventId if it is not null
+    public Subscriber subscribe(Filter filter, Long lastEventId, Sink sink)
+    {
+        Subscriber subscriber = new Subscriber(filter, sink);
+        synchronized(this)
+        {
+            if(lastEventId!=null && lastEventId!=this.lastEventId)
+            {
+                Event oldest = history.peekFirst();
+                //An ID ahead of ours was issued before a restart
+                if(oldest==null || oldest.id>lastEventId+1 || lastEventId>this.lastEventId)
+                {
+                    subscriber.send(frame(this.lastEventId, EVENT_RESET, "{}"));
+                }
+                else
+                {
+                    for(Event event : history)
+                    {
+                        if(event.id>lastEventId)
+                        {
+                            subscriber.send(event.frame(filter));
+                        }
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+        }
+        return subscriber;
+    }
+
+    // Keeps idle connections alive and detects the ones the clients have dropped
+    public void heartbeat()
+    {
+        for(Subscriber subscriber : subscribers)
+        {
+            subscriber.send(HEARTBEAT);
+        }
+    }
+
+    public int getSubscriberCount()
+    {
+        return subscribers.size();
+    }
+
+    public void close()
+    {
+        for(Subscriber subscriber : subscribers)
+        {
+            subscriber.close();
+        }
+        writers.shutdownNow();
+    }
+
+    static List<Change> diff(AvailabilitySnapshot previous, AvailabilitySnapshot current)
+    {
+        Map<String, Integer> before = new HashMap<>();
+        if(previous!=null)
+        {
+            for(CarparkReading reading : previous.getReadings())
+            {
+                before.put(reading.getKey(), reading.getAvailableLots());
+            }
+        }
+        List<Change> changes = new ArrayList<>();
+        for(CarparkReading reading : current.getReadings())
+        {
+            Integer lots = before.get(reading.getKey());
+            if(lots==null || lots!=reading.getAvailableLots())
+            {
+                changes.add(new Change(reading, lots));
+            }
+        }
+        return changes;
+    }
+
+    private static byte[] frame(long id, String event, String data)
+    {
+        return ("id: " + id + "\nevent: " + event + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Where the frames of one subscriber are written, typically the non-blocking output stream of a servlet async
+     * context. A sink that was not ready calls Subscriber.resume once it can be written to again.
+     */
+    public interface Sink
+    {
+        // Whether a frame can be written without blocking
+        boolean isReady();
+
+        // Only called after isReady returned true
+        void write(byte[] frame) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Restricts a subscription to some carparks and/or areas. An empty set does not restrict.
+     */
+    public static final class Filter
+    {
+        public static final Filter ALL = new Filter(Collections.emptySet(), Collections.emptySet());
+
+        private final Set<String> carparkIDs;
+        private final Set<String> areas;
+        private final String key;
+
+        public Filter(Set<String> carparkIDs, Set<String> areas)
+        {
+            this.carparkIDs = new TreeSet<>(carparkIDs);
+            this.areas = new TreeSet<>(areas);
+            this.key = this.carparkIDs + "|" + this.areas;
+        }
+
+        // Parses comma separated lists, either of which may be null
+        public static Filter parse(String carparkIDs, String areas)
+        {
+            Set<String> ids = split(carparkIDs);
+            Set<String> areaSet = split(areas);
+            return ids.isEmpty() && areaSet.isEmpty() ? ALL : new Filter(ids, areaSet);
+        }
+
+        private static Set<String> split(String list)
+        {
+            Set<String> values = new TreeSet<>();
+            if(list!=null)
+            {
+                for(String value : list.split(","))
+                {
+                    if(!value.trim().isEmpty())
+                    {
+                        values.add(value.trim());
+                    }
+                }
+            }
+            return values;
+        }
+
+        private boolean isAll()
+        {
+            return carparkIDs.isEmpty() && areas.isEmpty();
+        }
+
+        private boolean accepts(Change change)
+        {
+            return (carparkIDs.isEmpty() || carparkIDs.contains(change.carparkID)) && (areas.isEmpty() || areas.contains(change.area));
+        }
+    }
+
+    static final class Change
+    {
+        private final String carparkID;
+        private final String area;
+        // The change encoded once, as it appears in every frame that carries it
+        private final String json;
+
+        private Change(CarparkReading reading, Integer previousLots)
+        {
+            this.carparkID = reading.getCarparkID();
+            this.area = reading.getArea();
+            JSONObject change = new JSONObject()
+                    .put("CarParkID", reading.getCarparkID())
+                    .put("Area", reading.getArea())
+                    .put("LotType", reading.getLotType())
+                    .put("AvailableLots", reading.getAvailableLots());
+            if(previousLots!=null)
+            {
+                change.put("PreviousLots", previousLots.intValue());
+            }
+            this.json = change.toString();
+        }
+    }
+
+    private static final class Event
+    {
+        private final long id;
+        private final String timestamp;
+        private final List<Change> changes;
+        // Frames already encoded for this event, keyed by filter
+        private final Map<String, byte[]> frames = new ConcurrentHashMap<>();
+
+        private Event(long id, String timestamp, List<Change> changes)
+        {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.changes = changes;
+        }
+
+        // Returns null if none of the changes passes the filter
+        private byte[] frame(Filter filter)
+        {
+            byte[] frame = frames.computeIfAbsent(filter.key, key -> encode(filter));
+            return frame.length==0 ? null : frame;
+        }
+
+        private byte[] encode(Filter filter)
+        {
+            StringBuilder data = new StringBuilder(64 + changes.size()*96);
+            data.append("{\"timestamp\":").append(JSONObject.quote(timestamp)).append(",\"changes\":[");
+            boolean first = true;
+            for(Change change : changes)
+            {
+                if(filter.isAll() || filter.accepts(change))
+                {
+                    if(!first)
+                    {
+                        data.append(',');
+                    }
+                    data.append(change.json);
+                    first = false;
+                }
+            }
+            if(first)
+            {
+                return new byte[0];
+            }
+            data.append("]}");
+            return AvailabilityDeltaStream.frame(id, EVENT_AVAILABILITY, data.toString());
+        }
+    }
+
+    /**
+     * One connected client with its own queue of frames waiting to be written.
+     */
+    public final class Subscriber
+    {
+        private final Filter filter;
+        private final Sink sink;
+        private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        // Requests to drain the queue, only the one that finds no other drain running submits one
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Subscriber(Filter filter, Sink sink)
+        {
+            this.filter = filter;
+            this.sink = sink;
+        }
+
+        private void send(byte[] frame)
+        {
+            if(frame==null || closed.get())
+            {
+                return;
+            }
+            if(queued.incrementAndGet()>maxQueuedFrames)
+            {
+                //The client cannot keep up, it can resume from its last event ID once reconnected
+                LOG.warn("Dropping a Server-Sent Events client that fell " + maxQueuedFrames + " frames behind");
+                close();
+                return;
+            }
+            queue.add(frame);
+            requestDrain();
+        }
+
+        // Called by the sink once it is ready to be written to again
+        public void resume()
+        {
+            requestDrain();
+        }
+
+        private void requestDrain()
+        {
+            if(drainRequests.getAndIncrement()==0)
+            {
+                try
+                {
+                    writers.execute(this::drain);
+                }
+                catch(RuntimeException e)
+                {
+                    close();
+                }
+            }
+        }
+
+        private void drain()
+        {
+            int requests = 1;
+            do
+            {
+                //Stops as soon as the sink would block, it resumes the subscriber once it is ready again
+                while(!queue.isEmpty() && sink.isReady())
+                {
+                    byte[] frame = queue.poll();
+                    if(frame==null)
+                    {
+                        //Cleared by close
+                        return;
+                    }
+                    queued.decrementAndGet();
+                    try
+                    {
+                        sink.write(frame);
+                    }
+                    catch(IOException e)
+                    {
+                        close();
+                        return;
+                    }
+                }
+                //Frames queued or a resume while this drain was running are handled before returning
+                requests = drainRequests.addAndGet(-requests);
+            }
+            while(requests!=0);
+        }
+
+        public void close()
+        {
+            if(closed.compareAndSet(false, true))
+            {
+                subscribers.remove(this);
+                queue.clear();
+                sink.close();
+            }
+        }
+
+        public boolean isClosed()
+        {
+            return closed.get();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the latest availability held in memory. GET /availability returns every carpark, GET /availability/<CarParkID>
+ * a single one. The bodies are serialised once per cycle and carry a strong ETag of the readings alone, so a client
+ * polling with If-None-Match gets a 304 until a cycle changes its data. The time of that cycle is sent as Last-Modified.
+ */
+@WebServlet(urlPatterns = {"/availability", "/availability/*"})
+
+public class AvailabilityServlet extends HttpServlet
+{
+    private static final String NOT_READY_MSG = "No availability has been retrieved yet";
+    private static final String UNKNOWN_CARPARK_MSG = "No availability found for carpark ";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        AvailabilitySnapshot snapshot = AvailabilitySnapshot.current();
+        if(snapshot==null)
+        {
+            writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, NOT_READY_MSG);
+            return;
+        }
+
+        String carparkID = carparkID(request);
+        AvailabilitySnapshot.Body body = carparkID==null ? snapshot.getBody() : snapshot.getBody(carparkID);
+        if(body==null)
+        {
+            writeError(response, HttpServletResponse.SC_NOT_FOUND, UNKNOWN_CARPARK_MSG + carparkID);
+            return;
+        }
+
+        response.setHeader("ETag", body.getEtag());
+        response.setDateHeader("Last-Modified", body.getLastModified().toEpochMilli());
+        //Clients may keep the body but must revalidate it, as any cycle may change it
+        response.setHeader("Cache-Control", "no-cache");
+        if(matches(request.getHeader("If-None-Match"), body.getEtag()))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] bytes = body.getBytes();
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+
+    // The carpark is taken from the path, /availability/<CarParkID>, or from the carparkId parameter
+    private static String carparkID(HttpServletRequest request)
+    {
+        String path = request.getPathInfo();
+        if(path!=null && path.length()>1)
+        {
+            return path.substring(1);
+        }
+        return request.getParameter("carparkId");
+    }
+
+    // If-None-Match may list several tags, possibly weak, or be *
+    static boolean matches(String ifNoneMatch, String etag)
+    {
+        if(ifNoneMatch==null)
+        {
+            return false;
+        }
+        for(String tag : ifNoneMatch.split(","))
+        {
+            String candidate = tag.trim();
+            if(candidate.startsWith("W/"))
+            {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals("*") || candidate.equals(etag))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeError(HttpServletResponse response, int status, String message) throws IOException
+    {
+        byte[] bytes = new JSONObject().put("Result", message).toString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+}
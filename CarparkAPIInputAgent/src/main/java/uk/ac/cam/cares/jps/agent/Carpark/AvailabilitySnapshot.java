@@ -0,0 +1,216 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The latest availability of every carpark and lot type, as written by the last successful cycle. A snapshot is never
+ * modified once built: each cycle builds a new one, serialises it once, and swaps it in atomically so that readers
+ * always see a complete cycle without locking. The bodies hold the readings only, the time they were last modified is
+ * kept next to them, so that their ETags only change when the readings do.
+ */
+public final class AvailabilitySnapshot
+{
+    private static final AtomicReference<AvailabilitySnapshot> CURRENT = new AtomicReference<>();
+    // Locations of the carparks of the current snapshot, updated on every publish
+    private static final CarparkLocationIndex LOCATIONS = new CarparkLocationIndex();
+    // Changes between consecutive snapshots, pushed to Server-Sent Events clients
+    private static final AvailabilityDeltaStream DELTAS = new AvailabilityDeltaStream(256, 64, 2);
+
+    private final Instant timestamp;
+    private final List<CarparkReading> readings;
+    // Readings of each carpark, one per lot type
+    private final Map<String, List<CarparkReading>> byCarpark;
+    private final Body all;
+    private final Map<String, Body> carparkBodies;
+
+    // Bodies whose readings are unchanged since the previous snapshot are taken over, with the time they were last modified
+    private AvailabilitySnapshot(List<CarparkReading> readings, Instant timestamp, AvailabilitySnapshot previous)
+    {
+        this.timestamp = timestamp;
+        this.readings = Collections.unmodifiableList(new ArrayList<>(readings));
+
+        Map<String, List<CarparkReading>> grouped = new LinkedHashMap<>();
+        for(CarparkReading reading : readings)
+        {
+            grouped.computeIfAbsent(reading.getCarparkID(), id -> new ArrayList<>()).add(reading);
+        }
+
+        JSONArray carparks = new JSONArray();
+        Map<String, Body> bodies = new HashMap<>(grouped.size()*2);
+        Map<String, List<CarparkReading>> immutableGroups = new HashMap<>(grouped.size()*2);
+        for(Map.Entry<String, List<CarparkReading>> carpark : grouped.entrySet())
+        {
+            JSONObject json = carparkToJSON(carpark.getKey(), carpark.getValue());
+            carparks.put(json);
+            Body unchanged = previous==null ? null : previous.carparkBodies.get(carpark.getKey());
+            bodies.put(carpark.getKey(), Body.of(new JSONObject().put("carpark", json), timestamp, unchanged));
+            immutableGroups.put(carpark.getKey(), Collections.unmodifiableList(carpark.getValue()));
+        }
+        this.byCarpark = Collections.unmodifiableMap(immutableGroups);
+        this.carparkBodies = Collections.unmodifiableMap(bodies);
+        this.all = Body.of(new JSONObject().put("carparks", carparks), timestamp, previous==null ? null : previous.all);
+    }
+
+    // Builds a snapshot of the given readings and makes it the one served to readers. Synchronized so that each snapshot
+    // is built on the one it replaces
+    public static synchronized AvailabilitySnapshot publish(List<CarparkReading> readings, Instant timestamp)
+    {
+        AvailabilitySnapshot previous = CURRENT.get();
+        AvailabilitySnapshot snapshot = new AvailabilitySnapshot(readings, timestamp, previous);
+        LOCATIONS.update(readings);
+        CURRENT.set(snapshot);
+        DELTAS.publish(previous, snapshot);
+        return snapshot;
+    }
+
+    // Returns null until the first cycle has written its readings
+    public static AvailabilitySnapshot current()
+    {
+        return CURRENT.get();
+    }
+
+    public static CarparkLocationIndex locations()
+    {
+        return LOCATIONS;
+    }
+
+    public static AvailabilityDeltaStream deltas()
+    {
+        return DELTAS;
+    }
+
+    // Forgets the current snapshot, for tests
+    static synchronized void clear()
+    {
+        CURRENT.set(null);
+        LOCATIONS.update(Collections.emptyList());
+    }
+
+    private static JSONObject carparkToJSON(String carparkID, List<CarparkReading> readings)
+    {
+        CarparkReading first = readings.get(0);
+        JSONObject lots = new JSONObject();
+        for(CarparkReading reading : readings)
+        {
+            lots.put(reading.getLotType(), reading.getAvailableLots());
+        }
+        return new JSONObject()
+                .put("CarParkID", carparkID)
+                .put("Area", first.getArea())
+                .put("Development", first.getDevelopment())
+                .put("Location", first.getLocation())
+                .put("Agency", first.getAgency())
+                .put("AvailableLots", lots);
+    }
+
+    public Instant getTimestamp()
+    {
+        return timestamp;
+    }
+
+    public List<CarparkReading> getReadings()
+    {
+        return readings;
+    }
+
+    // Returns an empty list for an unknown carpark
+    public List<CarparkReading> getReadings(String carparkID)
+    {
+        return byCarpark.getOrDefault(carparkID, Collections.emptyList());
+    }
+
+    public int getCarparkCount()
+    {
+        return byCarpark.size();
+    }
+
+    public Body getBody()
+    {
+        return all;
+    }
+
+    // Returns null for an unknown carpark
+    public Body getBody(String carparkID)
+    {
+        return carparkBodies.get(carparkID);
+    }
+
+    /**
+     * A JSON document serialised once, with the strong ETag of its bytes and the time of the cycle that last changed them.
+     */
+    public static final class Body
+    {
+        private final byte[] bytes;
+        private final String etag;
+        private final Instant lastModified;
+
+        private Body(byte[] bytes, String etag, Instant lastModified)
+        {
+            this.bytes = bytes;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        // Returns the previous body if the document has not changed, so that it keeps its bytes and modification time
+        private static Body of(JSONObject json, Instant timestamp, Body previous)
+        {
+            byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+            String etag = "\"" + hash(bytes) + "\"";
+            if(previous!=null && previous.etag.equals(etag))
+            {
+                return previous;
+            }
+            return new Body(bytes, etag, timestamp);
+        }
+
+        // The array is shared, callers must not modify it
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        public String getEtag()
+        {
+            return etag;
+        }
+
+        public Instant getLastModified()
+        {
+            return lastModified;
+        }
+
+        private static String hash(byte[] bytes)
+        {
+            MessageDigest digest;
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new JPSRuntimeException("SHA-256 is not available", e);
+            }
+            byte[] hash = digest.digest(bytes);
+            StringBuilder sb = new StringBuilder(32);
+            //The first 128 bits are plenty to tell two versions apart
+            for(int i=0;i<16;i++)
+            {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        }
+    }
+}
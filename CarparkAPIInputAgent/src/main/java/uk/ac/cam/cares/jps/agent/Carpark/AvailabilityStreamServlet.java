@@ -0,0 +1,168 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Server-Sent Events stream of availability changes. GET /availability/stream keeps the connection open and pushes an
+ * "availability" event after every cycle that changed some lots. carparkId and area take comma separated lists to only
+ * receive the changes of those carparks or areas. A client reconnecting with the Last-Event-ID header, or the
+ * lastEventId parameter, first receives the events it missed, or a "reset" event if they are no longer retained.
+ * Frames are written with non-blocking I/O, a client that does not read is dropped once it falls too far behind.
+ */
+@WebServlet(urlPatterns = {"/availability/stream"}, asyncSupported = true)
+
+public class AvailabilityStreamServlet extends HttpServlet
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final long HEARTBEAT_SECONDS = 15;
+
+    private ScheduledExecutorService heartbeat;
+
+    @Override
+    public void init()
+    {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "carpark-sse-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> AvailabilitySnapshot.deltas().heartbeat(), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy()
+    {
+        heartbeat.shutdownNow();
+        AvailabilitySnapshot.deltas().close();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        Long lastEventId = lastEventId(request);
+        AvailabilityDeltaStream.Filter filter = AvailabilityDeltaStream.Filter.parse(request.getParameter("carparkId"), request.getParameter("area"));
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        //Stop proxies from buffering the stream
+        response.setHeader("X-Accel-Buffering", "no");
+        response.flushBuffer();
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        ServletOutputStream out = response.getOutputStream();
+        //Set by the first onWritePossible, the stream is only non-blocking once the write listener is registered
+        AtomicBoolean listening = new AtomicBoolean();
+        AvailabilityDeltaStream.Subscriber subscriber = AvailabilitySnapshot.deltas().subscribe(filter, lastEventId, new AvailabilityDeltaStream.Sink()
+        {
+            @Override
+            public boolean isReady()
+            {
+                return listening.get() && out.isReady();
+            }
+
+            @Override
+            public void write(byte[] frame) throws IOException
+            {
+                out.write(frame);
+                //Whatever could not be written yet is sent by the container, which then calls onWritePossible
+                if(out.isReady())
+                {
+                    out.flush();
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                try
+                {
+                    async.complete();
+                }
+                catch(IllegalStateException e)
+                {
+                    //Already completed by the container
+                }
+            }
+        });
+
+        out.setWriteListener(new WriteListener()
+        {
+            public void onWritePossible()
+            {
+                listening.set(true);
+                subscriber.resume();
+            }
+
+            public void onError(Throwable t)
+            {
+                LOG.debug("Server-Sent Events client disconnected", t);
+                subscriber.close();
+            }
+        });
+
+        async.addListener(new AsyncListener()
+        {
+            public void onComplete(AsyncEvent event)
+            {
+                subscriber.close();
+            }
+
+            public void onTimeout(AsyncEvent event)
+            {
+                subscriber.close();
+            }
+
+            public void onError(AsyncEvent event)
+            {
+                LOG.debug("Server-Sent Events client disconnected", event.getThrowable());
+                subscriber.close();
+            }
+
+            public void onStartAsync(AsyncEvent event)
+            {
+            }
+        });
+    }
+
+    private static Long lastEventId(HttpServletRequest request)
+    {
+        String id = request.getHeader("Last-Event-ID");
+        if(id==null)
+        {
+            id = request.getParameter("lastEventId");
+        }
+        if(id==null)
+        {
+            return null;
+        }
+        try
+        {
+            return Long.parseLong(id.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the time series of a whole cycle, or of a backlog of cycles, with one PostgreSQL COPY per time series table
+ * inside a single transaction, instead of one insert and commit per time series through the time series client.
+ * Either every row is written or none is. The rows are not checked against those already stored, callers prune them
+ * first as they would before adding them through the client.
+ */
+public class BulkTimeSeriesWriter
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private final TimeSeriesDatabase database;
+    // Where each data IRI is stored, which does not change once its time series is initialised
+    private final Map<String, TimeSeriesDatabase.Column> columns = new ConcurrentHashMap<>();
+
+    public BulkTimeSeriesWriter(TimeSeriesDatabase database)
+    {
+        this.database = database;
+    }
+
+    // Writes all the time series in one transaction and returns the number of rows written
+    public long write(List<TimeSeries<OffsetDateTime>> timeSeries) throws SQLException
+    {
+        long rows = 0;
+        try(Connection connection = database.connect())
+        {
+            connection.setAutoCommit(false);
+            try
+            {
+                resolveColumns(connection, timeSeries);
+                CopyManager copy = connection.unwrap(PGConnection.class).getCopyAPI();
+                for(TimeSeries<OffsetDateTime> ts : timeSeries)
+                {
+                    for(Map.Entry<String, List<String>> table : byTable(ts).entrySet())
+                    {
+                        rows += copy.copyIn(copyStatement(table.getKey(), table.getValue()), new StringReader(toCSV(ts, table.getValue())));
+                    }
+                }
+                connection.commit();
+            }
+            catch(SQLException | IOException | RuntimeException e)
+            {
+                //A failed rollback must not hide why the write failed, the connection is discarded either way
+                try
+                {
+                    connection.rollback();
+                }
+                catch(SQLException rollbackFailure)
+                {
+                    e.addSuppressed(rollbackFailure);
+                }
+                if(e instanceof SQLException)
+                {
+                    throw (SQLException) e;
+                }
+                throw new SQLException("Bulk write of " + timeSeries.size() + " time series failed", e);
+            }
+        }
+        LOG.debug(String.format("Wrote %d rows of %d time series in one transaction", rows, timeSeries.size()));
+        return rows;
+    }
+
+    // Looks up the IRIs not seen before in one query
+    private void resolveColumns(Connection connection, List<TimeSeries<OffsetDateTime>> timeSeries) throws SQLException
+    {
+        Set<String> unknown = new HashSet<>();
+        for(TimeSeries<OffsetDateTime> ts : timeSeries)
+        {
+            for(String iri : ts.getDataIRIs())
+            {
+                if(!columns.containsKey(iri))
+                {
+                    unknown.add(iri);
+                }
+            }
+        }
+        if(unknown.isEmpty())
+        {
+            return;
+        }
+        columns.putAll(database.lookupColumns(connection, unknown));
+        for(String iri : unknown)
+        {
+            if(!columns.containsKey(iri))
+            {
+                throw new SQLException("No time series is initialised for " + iri);
+            }
+        }
+    }
+
+    // The data IRIs of the time series grouped by the table they are stored in. IRIs added to a mapping later are
+    // initialised into a table of their own
+    private Map<String, List<String>> byTable(TimeSeries<OffsetDateTime> ts)
+    {
+        Map<String, List<String>> tables = new LinkedHashMap<>(2);
+        for(String iri : ts.getDataIRIs())
+        {
+            tables.computeIfAbsent(columns.get(iri).getTableName(), t -> new ArrayList<>()).add(iri);
+        }
+        return tables;
+    }
+
+    private String copyStatement(String table, List<String> iris)
+    {
+        StringBuilder sql = new StringBuilder("COPY ").append(TimeSeriesDatabase.quote(table))
+                .append(" (").append(TimeSeriesDatabase.quote(TimeSeriesDatabase.TIME_COLUMN));
+        for(String iri : iris)
+        {
+            sql.append(", ").append(TimeSeriesDatabase.quote(columns.get(iri).getColumnName()));
+        }
+        return sql.append(") FROM STDIN WITH (FORMAT csv)").toString();
+    }
+
+    // One line per time, null values left empty so that COPY stores them as NULL
+    static String toCSV(TimeSeries<OffsetDateTime> ts, List<String> iris)
+    {
+        List<OffsetDateTime> times = ts.getTimes();
+        List<List<?>> values = new ArrayList<>(iris.size());
+        for(String iri : iris)
+        {
+            values.add(ts.getValues(iri));
+        }
+        StringBuilder csv = new StringBuilder(times.size()*(32 + 8*values.size()));
+        for(int i=0;i<times.size();i++)
+        {
+            csv.append(times.get(i));
+            for(List<?> column : values)
+            {
+                csv.append(',');
+                Object value = column.get(i);
+                if(value!=null)
+                {
+                    String text = value.toString();
+                    //An unquoted empty field would be read as NULL
+                    csv.append(text.isEmpty() ? "\"\"" : CsvField.encode(text));
+                }
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+}
@@ -0,0 +1,443 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The input agent, time series client, API connector, query builder and poll controller built once from the three
+ * properties files and reused by every ingestion cycle until the agent is reloaded or shut down.
+ */
+public class CarparkAgentContext implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final String AGENT_ERROR_MSG = "The CarparkAPI input agent could not be constructed!";
+    private static final String TSCLIENT_ERROR_MSG = "Could not construct the time series client needed by the input agent!";
+    private static final String INITIALIZE_ERROR_MSG = "Could not initialize time series.";
+    private static final String CONNECTOR_ERROR_MSG = "Could not construct the carpark API connector needed to interact with the API!";
+    private static final String GET_READINGS_ERROR_MSG = "Some readings could not be retrieved.";
+    public static final String UNCHANGED_MSG = "Carpark data unchanged since the last cycle, cycle skipped";
+    public static final String DATA_UPDATED_MSG = "Data updated with new API Readings";
+    private static final String CLOSED_MSG = "The agent components have been replaced, the cycle was not run";
+    public static final String NEXT_POLL_KEY = "NextPollInterval";
+    private static final long WRITE_BEHIND_CHECK_SECONDS = 5;
+
+    private final String[] propertiesFiles;
+    private final APIInputAgent agent;
+    private final APIConnector connector;
+    private final APIQueryBuilder queryBuilder;
+    // Suggests when the next cycle should run based on how much the availability has been changing
+    private final AdaptivePollController pollController;
+    // Direct access to the time series tables for bulk reads
+    private final TimeSeriesDatabase database;
+    // The cycle currently running, shared by every caller that triggers one meanwhile
+    private final SingleFlight<JSONObject> cycles = new SingleFlight<>();
+    // Flushes the write-behind buffer once its oldest cycle is too old, even if no cycle runs meanwhile
+    private ScheduledExecutorService writeBehindFlusher;
+    // Cycles running on this context, which is only closed once the last of them has finished
+    private int activeCycles;
+    private boolean closing;
+
+    // Takes the properties files in the order 1) input agent 2) time series client 3) API connector
+    public CarparkAgentContext(String[] args)
+    {
+        propertiesFiles = args.clone();
+
+        APIInputAgent inputAgent;
+        try
+        {
+            inputAgent = new APIInputAgent(args[0]);
+            pollController = AdaptivePollController.fromProperties(args[0]);
+        }
+        catch(IOException e)
+        {
+            LOG.error(AGENT_ERROR_MSG,e);
+            throw new JPSRuntimeException(AGENT_ERROR_MSG,e);
+        }
+        agent = inputAgent;
+        LOG.info("Input Agent object initialized");
+
+        TimeSeriesClient<OffsetDateTime> tsclient;
+        try
+        {
+            tsclient = new TimeSeriesClient<>(OffsetDateTime.class, args[1]);
+            agent.setTsClient(tsclient);
+        }
+        catch(IOException e)
+        {
+            LOG.error(TSCLIENT_ERROR_MSG,e);
+            throw new JPSRuntimeException(TSCLIENT_ERROR_MSG, e); 
+        }
+        LOG.info("Time Series object initialized");
+
+        try
+        {
+            database = TimeSeriesDatabase.fromProperties(args[1]);
+            agent.setBulkWriter(new BulkTimeSeriesWriter(database));
+        }
+        catch(IOException e)
+        {
+            LOG.error(TSCLIENT_ERROR_MSG,e);
+            throw new JPSRuntimeException(TSCLIENT_ERROR_MSG, e);
+        }
+
+        try
+        {
+            agent.initializeTimeSeriesIfNotExist(database);
+            agent.loadWatermarks(database);
+        }
+        catch(JPSRuntimeException e)
+        {
+            LOG.error(INITIALIZE_ERROR_MSG);
+            throw new JPSRuntimeException(INITIALIZE_ERROR_MSG,e);
+        }
+
+        try
+        {
+            connector = new APIConnector(args[2]);
+        }
+        catch(IOException e)
+        {
+            LOG.error(CONNECTOR_ERROR_MSG,e);
+            throw new JPSRuntimeException(CONNECTOR_ERROR_MSG,e);
+        }
+        LOG.info("API Connector Object Initialized");
+
+        if(agent.isWriteBehind())
+        {
+            writeBehindFlusher = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "carpark-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writeBehindFlusher.scheduleWithFixedDelay(this::flushIfDue, WRITE_BEHIND_CHECK_SECONDS, WRITE_BEHIND_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+
+        try
+        {
+            queryBuilder = new APIQueryBuilder(args[0],args[1]);
+            LOG.info("QueryBuilder constructed");
+        }
+        catch(Exception e)
+        {
+            LOG.error("Could not build the QueryBuilder");
+            closeQuietly();
+            throw new JPSRuntimeException("Could not successfully initialise the QueryBuilder Object");
+        }
+    }
+
+    // True if the message of a cycle says that its readings were written
+    public static boolean wroteData(JSONObject jsonMessage)
+    {
+        Object result = jsonMessage.opt("Result");
+        if(result instanceof JSONArray)
+        {
+            for(Object line : (JSONArray) result)
+            {
+                if(DATA_UPDATED_MSG.equals(line))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return DATA_UPDATED_MSG.equals(result);
+    }
+
+    public APIInputAgent getAgent()
+    {
+        return agent;
+    }
+
+    public TimeSeriesDatabase getDatabase()
+    {
+        return database;
+    }
+
+    public boolean matches(String[] args)
+    {
+        return Arrays.equals(propertiesFiles, args);
+    }
+
+    // Primes the pricing cache and opens the first pooled connection so that the first cycle does not pay for it
+    public void warmUp()
+    {
+        try
+        {
+            connector.getPricesAsync().join();
+            LOG.info("Agent components warmed up");
+        }
+        catch(CompletionException e)
+        {
+            LOG.warn("Warm-up request failed, pricing will be retrieved on the first cycle", e.getCause());
+        }
+    }
+
+    public JSONObject runCycle()
+    {
+        return runCycle(new IngestionJob());
+    }
+
+    // Runs one cycle, reporting each stage to the given job. A caller arriving while a cycle is running attaches to it
+    // rather than starting another one, so overlapping triggers do not duplicate API calls, writes or KG inserts
+    public JSONObject runCycle(IngestionJob job)
+    {
+        JSONObject result = tryRunCycle(job);
+        if(result==null)
+        {
+            throw new JPSRuntimeException(CLOSED_MSG);
+        }
+        return result;
+    }
+
+    // As runCycle, but returns null without running anything if the context has been replaced and is being closed
+    public JSONObject tryRunCycle(IngestionJob job)
+    {
+        synchronized(this)
+        {
+            if(closing)
+            {
+                return null;
+            }
+            activeCycles++;
+        }
+        try
+        {
+            JSONObject result = cycles.run(() -> executeCycle(job), () ->
+            {
+                LOG.info("Ingestion cycle already running, waiting for its result");
+                job.stage(IngestionJob.STAGE_COALESCED);
+            });
+            //Each caller gets its own copy as callers add to the message they receive
+            return new JSONObject(result.toString());
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                activeCycles--;
+                notifyAll();
+            }
+        }
+    }
+
+    private JSONObject executeCycle(IngestionJob job)
+    {
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_CYCLE);
+        try
+        {
+            JSONObject jsonMessage = executeStages(job);
+            PipelineMetrics.cycle(UNCHANGED_MSG.equals(jsonMessage.opt("Result")) ? "unchanged" : "completed");
+            return jsonMessage;
+        }
+        catch(RuntimeException e)
+        {
+            PipelineMetrics.cycle("failed");
+            throw e;
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    private JSONObject executeStages(IngestionJob job)
+    {
+        JSONObject jsonMessage = new JSONObject();
+
+        job.stage(IngestionJob.STAGE_FETCH);
+        CompletableFuture<Optional<List<CarparkReading>>> readingsFuture = connector.getCarparkReadingsIfChangedAsync();
+
+        Optional<List<CarparkReading>> changedReadings;
+
+        try
+        {
+            changedReadings = await(readingsFuture);
+        }
+        catch(Exception e)
+        {
+            LOG.error(GET_READINGS_ERROR_MSG,e);
+            throw new JPSRuntimeException(GET_READINGS_ERROR_MSG,e);
+        }
+
+        LOG.debug(String.format("Carpark API traffic so far: %d bytes received, %d bytes decompressed", connector.getCompressedBytes(), connector.getDecompressedBytes()));
+
+        if(!changedReadings.isPresent())
+        {
+            //Same snapshot as the last processed cycle, nothing to write or instantiate
+            LOG.info(UNCHANGED_MSG);
+            jsonMessage.accumulate("Result",UNCHANGED_MSG);
+            jsonMessage.put(NEXT_POLL_KEY, pollController.observeUnchanged(connector.getLastPageCount()));
+            return jsonMessage;
+        }
+        //The pricing is only needed by a cycle that goes on to instantiate, it is fetched while the availability is written
+        CompletableFuture<JSONObject> pricingFuture = connector.getPricesAsync();
+        List<CarparkReading> carparkReadings = changedReadings.get();
+        PipelineMetrics.carparks("retrieved", carparkReadings.size());
+        long nextPoll = pollController.observe(carparkReadings, connector.getLastPageCount());
+        PipelineMetrics.carparks("changed", pollController.getLastChangedCount());
+        LOG.info(String.format("%d availability values changed by %.1f lots on average, next poll in %d s", pollController.getLastChangedCount(), pollController.getLastMeanDelta(), nextPoll));
+        jsonMessage.put(NEXT_POLL_KEY, nextPoll);
+
+        LOG.info(String.format("Retrieved %d carpark readings", carparkReadings.size()));
+        jsonMessage.accumulate("Result","Retrieved"+carparkReadings.size()+" carpark readings");
+
+        if(!carparkReadings.isEmpty())
+        {
+            job.stage(IngestionJob.STAGE_WRITE);
+            try
+            {
+                agent.updateData(carparkReadings);
+            }
+            catch(RuntimeException e)
+            {
+                //Make sure the same snapshot is not skipped on the next cycle
+                connector.invalidateFingerprint();
+                //Not awaited any more, stops it if it has not started yet
+                pricingFuture.cancel(false);
+                throw e;
+            }
+            LOG.info(DATA_UPDATED_MSG);
+            jsonMessage.accumulate("Result",DATA_UPDATED_MSG);
+
+        }
+        else if(carparkReadings.isEmpty())
+        {
+            LOG.info("No new carpark data recorded");
+            jsonMessage.accumulate("Result","No new carpark data recorded");
+        }
+
+        JSONObject pricingReadings;
+
+        job.stage(IngestionJob.STAGE_PRICING);
+        try
+        {
+            pricingReadings = await(pricingFuture);
+        }
+        catch(Exception e)
+        {
+            connector.invalidateFingerprint();
+            LOG.error(GET_READINGS_ERROR_MSG);
+            throw new JPSRuntimeException(GET_READINGS_ERROR_MSG);
+        }
+        
+        LOG.info(String.format("Retrieved pricing readings for %d carparks", pricingReadings.length()));
+        jsonMessage.accumulate("Result","Retrieved"+pricingReadings.getJSONObject("result").getJSONArray("records").length()+"carpark price readings");
+
+
+        job.stage(IngestionJob.STAGE_INSTANTIATE);
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_INSTANTIATE);
+        try
+        {
+            queryBuilder.instantiateIfNotInstantiated(carparkReadings,pricingReadings);
+            timer.stop();
+            LOG.info("All Data IRIs within Carpark Readings successfully instantiated");
+            jsonMessage.accumulate("Result","All Data IRIs successfully instantiated");
+
+        }
+        catch(Exception e)
+        {
+            timer.stop();
+            PipelineMetrics.error(PipelineMetrics.STAGE_INSTANTIATE);
+            connector.invalidateFingerprint();
+            LOG.error("Could not Instantiate the IRIs successfully");
+            jsonMessage.accumulate("Result","IRIs not instantiated properly");
+        }
+
+        
+        return jsonMessage;
+    }
+
+    // Waits for a fetch started by the connector and rethrows its original exception
+    private static <T> T await(CompletableFuture<T> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void closeQuietly()
+    {
+        if(writeBehindFlusher!=null)
+        {
+            writeBehindFlusher.shutdownNow();
+        }
+        try
+        {
+            agent.flush();
+        }
+        catch(JPSRuntimeException e)
+        {
+            LOG.warn("Could not flush the write-behind buffer", e);
+        }
+        try
+        {
+            connector.close();
+        }
+        catch(IOException e)
+        {
+            LOG.warn("Could not close the API connector", e);
+        }
+    }
+
+    private void flushIfDue()
+    {
+        try
+        {
+            agent.flushIfDue();
+        }
+        catch(RuntimeException e)
+        {
+            LOG.error("Could not flush the write-behind buffer", e);
+        }
+    }
+
+    // Refuses new cycles, waits for the running ones to finish and then releases the components, flushing the
+    // write-behind buffer last so that it holds every cycle run on this context
+    public void close()
+    {
+        synchronized(this)
+        {
+            closing = true;
+            while(activeCycles>0)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    LOG.warn("Interrupted while waiting for the running cycle, closing the agent components anyway");
+                    break;
+                }
+            }
+        }
+        closeQuietly();
+    }
+}
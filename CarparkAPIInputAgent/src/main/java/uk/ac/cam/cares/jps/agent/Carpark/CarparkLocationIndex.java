@@ -0,0 +1,353 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Uniform latitude/longitude grid over the carpark locations, answering k-nearest and radius queries by visiting only
+ * the cells around the query point. Carpark locations rarely move, so each update only touches the carparks that were
+ * added, moved or dropped since the previous one.
+ */
+public class CarparkLocationIndex
+{
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    private static final double METERS_PER_DEGREE = Math.PI*EARTH_RADIUS_METERS/180;
+
+    // Cell edge in degrees, about 1.1 km of latitude
+    private final double cellSize;
+    private final Map<Long, List<Location>> cells = new HashMap<>();
+    private final Map<String, Location> locations = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Bounds of the occupied cells, so that an unbounded search knows when it has seen everything
+    private int minRow = Integer.MAX_VALUE;
+    private int maxRow = Integer.MIN_VALUE;
+    private int minCol = Integer.MAX_VALUE;
+    private int maxCol = Integer.MIN_VALUE;
+
+    public CarparkLocationIndex()
+    {
+        this(0.01);
+    }
+
+    public CarparkLocationIndex(double cellSize)
+    {
+        if(cellSize<=0)
+        {
+            throw new IllegalArgumentException("The cell size must be positive");
+        }
+        this.cellSize = cellSize;
+    }
+
+    // Brings the index in line with the carparks of the given readings and returns the number of carparks that changed.
+    // Carparks without a location are left out
+    public int update(Collection<CarparkReading> readings)
+    {
+        Map<String, CarparkReading> latest = new HashMap<>();
+        for(CarparkReading reading : readings)
+        {
+            if(reading.hasLocation())
+            {
+                latest.putIfAbsent(reading.getCarparkID(), reading);
+            }
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            int changed = 0;
+            Set<String> dropped = new HashSet<>(locations.keySet());
+            dropped.removeAll(latest.keySet());
+            for(String carparkID : dropped)
+            {
+                remove(locations.remove(carparkID));
+                changed++;
+            }
+            for(CarparkReading reading : latest.values())
+            {
+                Location existing = locations.get(reading.getCarparkID());
+                if(existing!=null && existing.latitude==reading.getLatitude() && existing.longitude==reading.getLongitude())
+                {
+                    continue;
+                }
+                if(existing!=null)
+                {
+                    remove(existing);
+                }
+                Location location = new Location(reading.getCarparkID(), reading.getLatitude(), reading.getLongitude());
+                locations.put(location.carparkID, location);
+                cells.computeIfAbsent(key(location.row, location.col), k -> new ArrayList<>()).add(location);
+                changed++;
+            }
+            if(changed>0)
+            {
+                recomputeBounds();
+            }
+            return changed;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return locations.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The k carparks closest to the point that pass the filter, closest first
+    public List<Match> nearest(double latitude, double longitude, int k, Predicate<String> filter)
+    {
+        if(k<=0)
+        {
+            return Collections.emptyList();
+        }
+        //Farthest of the best k so far on top
+        PriorityQueue<Match> best = new PriorityQueue<>(k, Comparator.comparingDouble(Match::getDistance).reversed());
+        int row = row(latitude);
+        int col = col(longitude);
+        double ringMeters = ringMeters(latitude);
+
+        lock.readLock().lock();
+        try
+        {
+            if(locations.isEmpty())
+            {
+                return Collections.emptyList();
+            }
+            int maxRing = Math.max(Math.max(Math.abs(row - minRow), Math.abs(row - maxRow)), Math.max(Math.abs(col - minCol), Math.abs(col - maxCol)));
+            for(int ring=0;ring<=maxRing;ring++)
+            {
+                //The query point may lie on the edge of its cell, so carparks outside the rings visited so far are only
+                //known to be one ring less away
+                if(best.size()==k && best.peek().distance<=(ring-1)*ringMeters)
+                {
+                    break;
+                }
+                for(Location location : ring(row, col, ring))
+                {
+                    if(!filter.test(location.carparkID))
+                    {
+                        continue;
+                    }
+                    double distance = distance(latitude, longitude, location.latitude, location.longitude);
+                    if(best.size()<k)
+                    {
+                        best.add(new Match(location, distance));
+                    }
+                    else if(distance<best.peek().distance)
+                    {
+                        best.poll();
+                        best.add(new Match(location, distance));
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        List<Match> matches = new ArrayList<>(best);
+        matches.sort(Comparator.comparingDouble(Match::getDistance));
+        return matches;
+    }
+
+    // Every carpark within the radius of the point that passes the filter, closest first
+    public List<Match> within(double latitude, double longitude, double radiusMeters, Predicate<String> filter)
+    {
+        List<Match> matches = new ArrayList<>();
+        double latSpan = radiusMeters/METERS_PER_DEGREE;
+        //Longitude degrees shrink towards the poles, widen the box accordingly
+        double lonSpan = latSpan/Math.max(Math.cos(Math.toRadians(Math.abs(latitude) + latSpan)), 1e-6);
+
+        lock.readLock().lock();
+        try
+        {
+            for(int r=row(latitude - latSpan);r<=row(latitude + latSpan);r++)
+            {
+                for(int c=col(longitude - lonSpan);c<=col(longitude + lonSpan);c++)
+                {
+                    List<Location> cell = cells.get(key(r, c));
+                    if(cell==null)
+                    {
+                        continue;
+                    }
+                    for(Location location : cell)
+                    {
+                        if(!filter.test(location.carparkID))
+                        {
+                            continue;
+                        }
+                        double distance = distance(latitude, longitude, location.latitude, location.longitude);
+                        if(distance<=radiusMeters)
+                        {
+                            matches.add(new Match(location, distance));
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+        matches.sort(Comparator.comparingDouble(Match::getDistance));
+        return matches;
+    }
+
+    // Locations in the cells at Chebyshev distance ring from the given cell
+    private List<Location> ring(int row, int col, int ring)
+    {
+        List<Location> found = new ArrayList<>();
+        for(int r=row-ring;r<=row+ring;r++)
+        {
+            boolean edgeRow = r==row-ring || r==row+ring;
+            for(int c=col-ring;c<=col+ring;c+=(edgeRow || ring==0) ? 1 : 2*ring)
+            {
+                List<Location> cell = cells.get(key(r, c));
+                if(cell!=null)
+                {
+                    found.addAll(cell);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Lower bound on the distance covered by one ring of cells around the given latitude
+    private double ringMeters(double latitude)
+    {
+        double cellHeight = cellSize*METERS_PER_DEGREE;
+        double cellWidth = cellHeight*Math.cos(Math.toRadians(Math.min(Math.abs(latitude) + cellSize, 90)));
+        return Math.min(cellHeight, cellWidth);
+    }
+
+    private void remove(Location location)
+    {
+        long key = key(location.row, location.col);
+        List<Location> cell = cells.get(key);
+        cell.remove(location);
+        if(cell.isEmpty())
+        {
+            cells.remove(key);
+        }
+    }
+
+    private void recomputeBounds()
+    {
+        minRow = Integer.MAX_VALUE;
+        maxRow = Integer.MIN_VALUE;
+        minCol = Integer.MAX_VALUE;
+        maxCol = Integer.MIN_VALUE;
+        for(Location location : locations.values())
+        {
+            minRow = Math.min(minRow, location.row);
+            maxRow = Math.max(maxRow, location.row);
+            minCol = Math.min(minCol, location.col);
+            maxCol = Math.max(maxCol, location.col);
+        }
+    }
+
+    private int row(double latitude)
+    {
+        return (int) Math.floor(latitude/cellSize);
+    }
+
+    private int col(double longitude)
+    {
+        return (int) Math.floor(longitude/cellSize);
+    }
+
+    private static long key(int row, int col)
+    {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    // Great circle distance in meters
+    static double distance(double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat/2)*Math.sin(dLat/2) + Math.cos(Math.toRadians(lat1))*Math.cos(Math.toRadians(lat2))*Math.sin(dLon/2)*Math.sin(dLon/2);
+        return 2*EARTH_RADIUS_METERS*Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private final class Location
+    {
+        private final String carparkID;
+        private final double latitude;
+        private final double longitude;
+        private final int row;
+        private final int col;
+
+        private Location(String carparkID, double latitude, double longitude)
+        {
+            this.carparkID = carparkID;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.row = row(latitude);
+            this.col = col(longitude);
+        }
+    }
+
+    /**
+     * A carpark found by a query and its distance from the query point.
+     */
+    public static final class Match
+    {
+        private final String carparkID;
+        private final double latitude;
+        private final double longitude;
+        private final double distance;
+
+        private Match(Location location, double distance)
+        {
+            this.carparkID = location.carparkID;
+            this.latitude = location.latitude;
+            this.longitude = location.longitude;
+            this.distance = distance;
+        }
+
+        public String getCarparkID()
+        {
+            return carparkID;
+        }
+
+        public double getLatitude()
+        {
+            return latitude;
+        }
+
+        public double getLongitude()
+        {
+            return longitude;
+        }
+
+        // In meters
+        public double getDistance()
+        {
+            return distance;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Compact typed form of one entry of the CarParkAvailabilityv2 "value" array,
+ * i.e. the available lots of one lot type at one carpark.
+ */
+public final class CarparkReading
+{
+    static final String KEY_PREFIX = "AvailableLots_";
+
+    private final String carparkID;
+    private final String area;
+    private final String development;
+    private final String location;
+    private final double latitude;
+    private final double longitude;
+    private final String lotType;
+    private final int availableLots;
+    private final String agency;
+
+    public CarparkReading(String carparkID, String area, String development, String location, String lotType, int availableLots, String agency)
+    {
+        this.carparkID = carparkID;
+        this.area = area;
+        this.development = development;
+        this.location = location;
+        this.lotType = lotType;
+        this.availableLots = availableLots;
+        this.agency = agency;
+
+        //Location is given as "<latitude> <longitude>" and is empty for some carparks
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+        if(location!=null)
+        {
+            StringTokenizer st = new StringTokenizer(location, " ");
+            if(st.countTokens()==2)
+            {
+                try
+                {
+                    lat = Double.parseDouble(st.nextToken());
+                    lon = Double.parseDouble(st.nextToken());
+                }
+                catch(NumberFormatException e)
+                {
+                    lat = Double.NaN;
+                    lon = Double.NaN;
+                }
+            }
+        }
+        this.latitude = lat;
+        this.longitude = lon;
+    }
+
+    public static CarparkReading fromJSON(JSONObject entry)
+    {
+        return new CarparkReading(entry.getString("CarParkID"), entry.optString("Area"), entry.optString("Development"), entry.optString("Location"),
+                entry.getString("LotType"), entry.getNumber("AvailableLots").intValue(), entry.optString("Agency"));
+    }
+
+    public static List<CarparkReading> fromJSONArray(JSONArray entries)
+    {
+        List<CarparkReading> readings = new ArrayList<>(entries.length());
+        for(int i=0;i<entries.length();i++)
+        {
+            readings.add(fromJSON(entries.getJSONObject(i)));
+        }
+        return readings;
+    }
+
+    public JSONObject toJSON()
+    {
+        JSONObject entry = new JSONObject();
+        entry.put("CarParkID", carparkID);
+        entry.put("Area", area);
+        entry.put("Development", development);
+        entry.put("Location", location);
+        entry.put("AvailableLots", availableLots);
+        entry.put("LotType", lotType);
+        entry.put("Agency", agency);
+        return entry;
+    }
+
+    // Key under which the reading is stored in the mapping files, e.g. AvailableLots_A0007_C
+    public String getKey()
+    {
+        return KEY_PREFIX + carparkID + "_" + lotType;
+    }
+
+    // Carpark ID of a key built by getKey, or null if the key is not an availability key
+    public static String carparkIDFromKey(String key)
+    {
+        int end = key.lastIndexOf('_');
+        return key.startsWith(KEY_PREFIX) && end>KEY_PREFIX.length() ? key.substring(KEY_PREFIX.length(), end) : null;
+    }
+
+    // Lot type of a key built by getKey, or null if the key is not an availability key
+    public static String lotTypeFromKey(String key)
+    {
+        int end = key.lastIndexOf('_');
+        return key.startsWith(KEY_PREFIX) && end>KEY_PREFIX.length() ? key.substring(end + 1) : null;
+    }
+
+    public String getCarparkID()
+    {
+        return carparkID;
+    }
+
+    public String getArea()
+    {
+        return area;
+    }
+
+    public String getDevelopment()
+    {
+        return development;
+    }
+
+    public String getLocation()
+    {
+        return location;
+    }
+
+    public boolean hasLocation()
+    {
+        return !Double.isNaN(latitude);
+    }
+
+    public double getLatitude()
+    {
+        return latitude;
+    }
+
+    public double getLongitude()
+    {
+        return longitude;
+    }
+
+    public String getLotType()
+    {
+        return lotType;
+    }
+
+    public int getAvailableLots()
+    {
+        return availableLots;
+    }
+
+    public String getAgency()
+    {
+        return agency;
+    }
+}
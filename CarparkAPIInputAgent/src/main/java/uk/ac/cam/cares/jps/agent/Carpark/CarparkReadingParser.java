@@ -0,0 +1,91 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the CarParkAvailabilityv2 payload. Only one entry of the "value" array is
+ * held as a JSONObject at a time, the rest of the document is skipped token by token.
+ */
+public final class CarparkReadingParser
+{
+    private static final String VALUE_KEY = "value";
+
+    private CarparkReadingParser()
+    {
+    }
+
+    public static List<CarparkReading> parse(InputStream input) throws JSONException
+    {
+        JSONTokener tokener = new JSONTokener(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)));
+        List<CarparkReading> readings = new ArrayList<>();
+
+        expect(tokener, '{');
+        while(true)
+        {
+            char c = tokener.nextClean();
+            if(c=='}')
+            {
+                break;
+            }
+            if(c==',')
+            {
+                continue;
+            }
+            tokener.back();
+            String key = tokener.nextValue().toString();
+            expect(tokener, ':');
+
+            if(key.equals(VALUE_KEY))
+            {
+                parseEntries(tokener, readings);
+            }
+            else
+            {
+                //Skips metadata such as odata.metadata
+                tokener.nextValue();
+            }
+        }
+        return readings;
+    }
+
+    private static void parseEntries(JSONTokener tokener, List<CarparkReading> readings) throws JSONException
+    {
+        expect(tokener, '[');
+        while(true)
+        {
+            char c = tokener.nextClean();
+            if(c==']')
+            {
+                return;
+            }
+            if(c==',')
+            {
+                continue;
+            }
+            tokener.back();
+            Object entry = tokener.nextValue();
+            if(!(entry instanceof JSONObject))
+            {
+                throw tokener.syntaxError("Expected a carpark entry object");
+            }
+            readings.add(CarparkReading.fromJSON((JSONObject) entry));
+        }
+    }
+
+    private static void expect(JSONTokener tokener, char expected) throws JSONException
+    {
+        char c = tokener.nextClean();
+        if(c!=expected)
+        {
+            throw tokener.syntaxError("Expected '" + expected + "' but found '" + c + "'");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+/**
+ * Tracks the last frame written in sparse mode, where a cycle only writes the lots that changed since the previous one
+ * and leaves the other values NULL. Every keyframeInterval frames, and whenever the previous frame is not known to be
+ * in the database, a keyframe is written in full instead. A reader can therefore rebuild the value of any lot at any
+ * time by carrying the last non-NULL value forward, never having to look further back than the last keyframe.
+ */
+public class ChangeTracker
+{
+    private final int keyframeInterval;
+    private ReadingDictionary.Frame written;
+    private int sinceKeyframe;
+
+    public ChangeTracker(int keyframeInterval)
+    {
+        if(keyframeInterval<1)
+        {
+            throw new IllegalArgumentException("The keyframe interval must be at least 1");
+        }
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    // The frame to compare the next one against, or null if the next frame is a keyframe
+    public synchronized ReadingDictionary.Frame baseline()
+    {
+        return sinceKeyframe>=keyframeInterval ? null : written;
+    }
+
+    // Records a frame once it is in the database, written in full if baseline was null. With write-behind this happens
+    // once the frame is buffered, as the buffer keeps its cycles until they are all written in order
+    public synchronized void written(ReadingDictionary.Frame frame, boolean keyframe)
+    {
+        sinceKeyframe = keyframe ? 1 : sinceKeyframe + 1;
+        written = frame;
+    }
+
+    // Forgets the last frame after a failed write, so that the next frame is a keyframe
+    public synchronized void reset()
+    {
+        written = null;
+        sinceKeyframe = 0;
+    }
+
+    // True if the value of the slot has to be written, i.e. it differs from the baseline or there is no baseline
+    public static boolean changed(ReadingDictionary.Frame baseline, ReadingDictionary.Frame frame, int slot)
+    {
+        return baseline==null || baseline.get(slot)!=frame.get(slot);
+    }
+}
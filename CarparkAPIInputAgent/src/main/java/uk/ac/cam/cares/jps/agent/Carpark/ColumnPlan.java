@@ -0,0 +1,71 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The columns of one mapping's time series, compiled once when the mappings are read: the data IRIs in the order the
+ * values are written, the dictionary slot each value is read from and the class of each column. Converting a cycle's
+ * readings then only walks the slot array, without looking up keys or IRIs.
+ */
+public final class ColumnPlan
+{
+    private final List<String> iris;
+    private final int[] slots;
+    private final List<Class<?>> types;
+
+    public ColumnPlan(List<String> iris, int[] slots, List<Class<?>> types)
+    {
+        if(iris.size()!=slots.length || iris.size()!=types.size())
+        {
+            throw new IllegalArgumentException("Every column needs one IRI, slot and type");
+        }
+        this.iris = Collections.unmodifiableList(new ArrayList<>(iris));
+        this.slots = slots.clone();
+        this.types = Collections.unmodifiableList(new ArrayList<>(types));
+    }
+
+    public int size()
+    {
+        return slots.length;
+    }
+
+    // Shared by every time series built from this plan, which is fine as it cannot be modified
+    public List<String> getIRIs()
+    {
+        return iris;
+    }
+
+    public String getIRI(int column)
+    {
+        return iris.get(column);
+    }
+
+    // The dictionary slot of the column's value, ReadingDictionary.NO_SLOT if it is not an availability key
+    public int getSlot(int column)
+    {
+        return slots[column];
+    }
+
+    public Class<?> getType(int column)
+    {
+        return types.get(column);
+    }
+
+    // The plan of the given columns only, in the given order, e.g. those stored in the same time series table
+    public ColumnPlan select(List<Integer> columns)
+    {
+        List<String> selectedIRIs = new ArrayList<>(columns.size());
+        int[] selectedSlots = new int[columns.size()];
+        List<Class<?>> selectedTypes = new ArrayList<>(columns.size());
+        for(int i=0;i<columns.size();i++)
+        {
+            int column = columns.get(i);
+            selectedIRIs.add(iris.get(column));
+            selectedSlots[i] = slots[column];
+            selectedTypes.add(types.get(column));
+        }
+        return new ColumnPlan(selectedIRIs, selectedSlots, selectedTypes);
+    }
+}
@@ -0,0 +1,21 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+/**
+ * Encodes a single field of a CSV line as read by spreadsheets and by PostgreSQL COPY in csv format.
+ */
+public final class CsvField
+{
+    private CsvField()
+    {
+    }
+
+    // Quotes the value if it contains a separator, a quote or a line break, doubling any quotes inside it
+    public static String encode(String value)
+    {
+        if(value.indexOf(',')<0 && value.indexOf('"')<0 && value.indexOf('\n')<0 && value.indexOf('\r')<0)
+        {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,153 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams the stored availability history. GET /export?from=..&to=.. takes ISO-8601 timestamps with an offset, to
+ * defaulting to now and from to one day before to. carparkId and lotType take comma separated lists to select series,
+ * all series are exported otherwise. format=csv (default) or ndjson. The response is chunked and written while the
+ * rows are read from the database, ordered by time across all series.
+ */
+@WebServlet(urlPatterns = {"/export"})
+
+public class HistoryExportServlet extends HttpServlet
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final String NOT_READY_MSG = "The agent has not been initialised yet, call /retrieve first";
+    private static final String BAD_REQUEST_MSG = "from and to must be ISO-8601 timestamps with an offset, from before to, and format csv or ndjson";
+    private static final String NO_SERIES_MSG = "No time series matches the requested carparks and lot types";
+    // Rows fetched per round-trip from the server-side cursor
+    private static final int FETCH_SIZE = 5000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        CarparkAgentContext context = APIAgentLauncher.currentContext();
+        if(context==null)
+        {
+            writeError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, NOT_READY_MSG);
+            return;
+        }
+
+        OffsetDateTime from;
+        OffsetDateTime to;
+        HistoryExporter.Format format;
+        try
+        {
+            to = request.getParameter("to")==null ? OffsetDateTime.now(ZoneOffset.UTC) : OffsetDateTime.parse(request.getParameter("to"));
+            from = request.getParameter("from")==null ? to.minus(Duration.ofDays(1)) : OffsetDateTime.parse(request.getParameter("from"));
+            format = HistoryExporter.Format.valueOf(request.getParameter("format")==null ? "CSV" : request.getParameter("format").toUpperCase());
+        }
+        catch(DateTimeParseException | IllegalArgumentException e)
+        {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, BAD_REQUEST_MSG);
+            return;
+        }
+        if(!from.isBefore(to))
+        {
+            writeError(response, HttpServletResponse.SC_BAD_REQUEST, BAD_REQUEST_MSG);
+            return;
+        }
+
+        Map<String, String> keysByIRI = select(context.getAgent().getKeysByIRI(), split(request.getParameter("carparkId")), split(request.getParameter("lotType")));
+        if(keysByIRI.isEmpty())
+        {
+            writeError(response, HttpServletResponse.SC_NOT_FOUND, NO_SERIES_MSG);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType(format==HistoryExporter.Format.CSV ? "text/csv" : "application/x-ndjson");
+        response.setHeader("Content-Disposition", "attachment; filename=\"carpark-availability." + format.name().toLowerCase() + "\"");
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8), 64*1024);
+        try
+        {
+            long rows = new HistoryExporter(context.getDatabase(), FETCH_SIZE).export(keysByIRI, from, to, format, out);
+            LOG.info(String.format("Exported %d rows of %d series between %s and %s", rows, keysByIRI.size(), from, to));
+        }
+        catch(SQLException e)
+        {
+            //The status line may already be sent, the truncated body is all the client can be told
+            LOG.error("History export failed", e);
+            if(!response.isCommitted())
+            {
+                response.reset();
+                writeError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "History could not be read from the database");
+            }
+            else
+            {
+                throw new IOException("History export failed", e);
+            }
+        }
+    }
+
+    // Keeps the series whose key matches one of the carparks and one of the lot types, an empty set matching all
+    static Map<String, String> select(Map<String, String> keysByIRI, Set<String> carparkIDs, Set<String> lotTypes)
+    {
+        Map<String, String> selected = new HashMap<>();
+        for(Map.Entry<String, String> series : keysByIRI.entrySet())
+        {
+            String key = series.getValue();
+            if(CarparkReading.carparkIDFromKey(key)==null)
+            {
+                continue;
+            }
+            if((carparkIDs.isEmpty() || carparkIDs.contains(CarparkReading.carparkIDFromKey(key)))
+                    && (lotTypes.isEmpty() || lotTypes.contains(CarparkReading.lotTypeFromKey(key))))
+            {
+                selected.put(series.getKey(), key);
+            }
+        }
+        return selected;
+    }
+
+    private static Set<String> split(String list)
+    {
+        Set<String> values = new HashSet<>();
+        if(list!=null)
+        {
+            for(String value : list.split(","))
+            {
+                if(!value.trim().isEmpty())
+                {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static void writeError(HttpServletResponse response, int status, String message) throws IOException
+    {
+        byte[] bytes = new JSONObject().put("Result", message).toString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+}
@@ -0,0 +1,233 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Streams the stored availability of a time range straight from the database to a writer, one row per carpark, lot type
+ * and timestamp. Rows are read through a server-side cursor and written as they arrive, so memory use does not depend
+ * on the size of the range. The cursors of the time series tables holding the selected series are merged, so rows are
+ * ordered by time across tables. Only stored values are exported: in sparse mode, where a cycle leaves the lots it did not
+ * change NULL and writes no row at all for series without changes, the export lists the change points plus the
+ * keyframes, and the value of a lot at any time is the last one exported for it before that time.
+ */
+public class HistoryExporter
+{
+    public enum Format { CSV, NDJSON }
+
+    private static final String CSV_HEADER = "time,CarParkID,LotType,AvailableLots\n";
+    // Rows written between two flushes of the writer
+    private static final int FLUSH_ROWS = 1000;
+
+    private final TimeSeriesDatabase database;
+    private final int fetchSize;
+
+    public HistoryExporter(TimeSeriesDatabase database, int fetchSize)
+    {
+        this.database = database;
+        this.fetchSize = fetchSize;
+    }
+
+    // Exports the series of the given data IRIs, keyed to their JSON keys, within [from, to). Returns the number of rows
+    public long export(Map<String, String> keysByIRI, OffsetDateTime from, OffsetDateTime to, Format format, Writer out) throws SQLException, IOException
+    {
+        if(format==Format.CSV)
+        {
+            out.write(CSV_HEADER);
+        }
+        long rows = 0;
+        try(Connection connection = database.connect())
+        {
+            //The PostgreSQL driver only uses a cursor, rather than reading the whole result, outside auto-commit
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            List<TableCursor> cursors = new ArrayList<>();
+            try
+            {
+                Map<String, List<TimeSeriesDatabase.Column>> byTable = new TreeMap<>();
+                for(TimeSeriesDatabase.Column column : database.lookupColumns(connection, keysByIRI.keySet()).values())
+                {
+                    byTable.computeIfAbsent(column.getTableName(), t -> new ArrayList<>()).add(column);
+                }
+                //One cursor per table, open side by side in the transaction and merged on time
+                PriorityQueue<TableCursor> merge = new PriorityQueue<>(Math.max(1, byTable.size()), TableCursor.ORDER);
+                for(Map.Entry<String, List<TimeSeriesDatabase.Column>> table : byTable.entrySet())
+                {
+                    TableCursor cursor = new TableCursor(cursors.size(), table.getValue(), keysByIRI);
+                    cursors.add(cursor);
+                    if(cursor.open(connection, table.getKey(), from, to, fetchSize))
+                    {
+                        merge.add(cursor);
+                    }
+                }
+                TableCursor cursor;
+                while((cursor = merge.poll())!=null)
+                {
+                    rows = cursor.writeRow(out, format, rows);
+                    if(cursor.next())
+                    {
+                        merge.add(cursor);
+                    }
+                }
+            }
+            finally
+            {
+                for(TableCursor cursor : cursors)
+                {
+                    cursor.close();
+                }
+                connection.rollback();
+            }
+        }
+        out.flush();
+        return rows;
+    }
+
+    /**
+     * The rows of one time series table within the exported range, read through a server-side cursor.
+     */
+    private static final class TableCursor
+    {
+        // Earliest row first, rows at the same time in the order of their tables
+        private static final Comparator<TableCursor> ORDER = Comparator.comparing((TableCursor cursor) -> cursor.time).thenComparingInt(cursor -> cursor.order);
+
+        private final int order;
+        private final List<TimeSeriesDatabase.Column> columns;
+        private final String[] carparkIDs;
+        private final String[] lotTypes;
+        private PreparedStatement statement;
+        private ResultSet rs;
+        // Time of the current row
+        private OffsetDateTime time;
+
+        private TableCursor(int order, List<TimeSeriesDatabase.Column> columns, Map<String, String> keysByIRI)
+        {
+            this.order = order;
+            this.columns = columns;
+            this.carparkIDs = new String[columns.size()];
+            this.lotTypes = new String[columns.size()];
+            for(int i=0;i<columns.size();i++)
+            {
+                String key = keysByIRI.get(columns.get(i).getDataIRI());
+                carparkIDs[i] = CarparkReading.carparkIDFromKey(key);
+                lotTypes[i] = CarparkReading.lotTypeFromKey(key);
+            }
+        }
+
+        // Runs the query and moves to the first row, returns false if the range holds no row of this table
+        private boolean open(Connection connection, String table, OffsetDateTime from, OffsetDateTime to, int fetchSize) throws SQLException
+        {
+            String time = TimeSeriesDatabase.quote(TimeSeriesDatabase.TIME_COLUMN);
+            StringBuilder sql = new StringBuilder("SELECT ").append(time);
+            for(TimeSeriesDatabase.Column column : columns)
+            {
+                sql.append(", ").append(TimeSeriesDatabase.quote(column.getColumnName()));
+            }
+            sql.append(" FROM ").append(TimeSeriesDatabase.quote(table))
+                    .append(" WHERE ").append(time).append(" >= ? AND ").append(time).append(" < ? ORDER BY ").append(time);
+
+            statement = connection.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            statement.setObject(1, from);
+            statement.setObject(2, to);
+            rs = statement.executeQuery();
+            return next();
+        }
+
+        private boolean next() throws SQLException
+        {
+            if(!rs.next())
+            {
+                return false;
+            }
+            time = rs.getObject(1, OffsetDateTime.class);
+            return true;
+        }
+
+        // Writes the current row, one line per column, and returns the updated row count
+        private long writeRow(Writer out, Format format, long rows) throws SQLException, IOException
+        {
+            String timestamp = time.toString();
+            for(int i=0;i<carparkIDs.length;i++)
+            {
+                String value = rs.getString(i + 2);
+                //Missing or padded readings are not exported, nor the lots left unchanged in sparse mode
+                if(value==null || value.equals("NaN"))
+                {
+                    continue;
+                }
+                HistoryExporter.writeRow(out, format, timestamp, carparkIDs[i], lotTypes[i], value);
+                if(++rows%FLUSH_ROWS==0)
+                {
+                    out.flush();
+                }
+            }
+            return rows;
+        }
+
+        private void close() throws SQLException
+        {
+            if(statement!=null)
+            {
+                //Also closes the result set
+                statement.close();
+            }
+        }
+    }
+
+    private static void writeRow(Writer out, Format format, String timestamp, String carparkID, String lotType, String value) throws IOException
+    {
+        if(format==Format.CSV)
+        {
+            out.write(timestamp);
+            out.write(',');
+            out.write(CsvField.encode(carparkID));
+            out.write(',');
+            out.write(CsvField.encode(lotType));
+            out.write(',');
+            out.write(CsvField.encode(value));
+            out.write('\n');
+        }
+        else
+        {
+            out.write("{\"time\":");
+            out.write(JSONObject.quote(timestamp));
+            out.write(",\"CarParkID\":");
+            out.write(JSONObject.quote(carparkID));
+            out.write(",\"LotType\":");
+            out.write(JSONObject.quote(lotType));
+            out.write(",\"AvailableLots\":");
+            out.write(numeric(value) ? value : JSONObject.quote(value));
+            out.write("}\n");
+        }
+    }
+
+    private static boolean numeric(String value)
+    {
+        if(value.isEmpty())
+        {
+            return false;
+        }
+        for(int i=0;i<value.length();i++)
+        {
+            char c = value.charAt(i);
+            if(!(Character.isDigit(c) || (i==0 && c=='-' && value.length()>1)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONObject;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Progress of one ingestion cycle: its state, the stage it is in and how long each finished stage took.
+ */
+public class IngestionJob
+{
+    public enum State { QUEUED, RUNNING, SUCCEEDED, FAILED }
+
+    public static final String STAGE_FETCH = "fetch";
+    public static final String STAGE_WRITE = "write";
+    public static final String STAGE_PRICING = "pricing";
+    public static final String STAGE_INSTANTIATE = "instantiate";
+    // Waiting on a cycle that another caller had already started
+    public static final String STAGE_COALESCED = "coalesced";
+
+    private final String id = UUID.randomUUID().toString();
+    private final Instant submitted = Instant.now();
+    private final Map<String, Long> stageTimings = new LinkedHashMap<>();
+    private final CompletableFuture<JSONObject> completion = new CompletableFuture<>();
+
+    private State state = State.QUEUED;
+    private String stage;
+    private long stageStart;
+    private Instant started;
+    private Instant finished;
+    private JSONObject result;
+    private String error;
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    // Completes with the cycle result, or exceptionally with the cycle's failure
+    public CompletableFuture<JSONObject> getCompletion()
+    {
+        return completion;
+    }
+
+    public synchronized void start()
+    {
+        state = State.RUNNING;
+        started = Instant.now();
+    }
+
+    // Ends the current stage, if any, and records the start of the next one
+    public synchronized void stage(String name)
+    {
+        endStage();
+        stage = name;
+        stageStart = System.nanoTime();
+    }
+
+    public void succeed(JSONObject cycleResult)
+    {
+        synchronized(this)
+        {
+            endStage();
+            state = State.SUCCEEDED;
+            finished = Instant.now();
+            result = cycleResult;
+        }
+        completion.complete(cycleResult);
+    }
+
+    public void fail(Throwable cause)
+    {
+        synchronized(this)
+        {
+            endStage();
+            state = State.FAILED;
+            finished = Instant.now();
+            error = cause.getMessage()==null ? cause.getClass().getSimpleName() : cause.getMessage();
+        }
+        completion.completeExceptionally(cause);
+    }
+
+    public synchronized boolean isDone()
+    {
+        return state==State.SUCCEEDED || state==State.FAILED;
+    }
+
+    private void endStage()
+    {
+        if(stage!=null)
+        {
+            stageTimings.put(stage, (System.nanoTime() - stageStart)/1000000);
+            stage = null;
+        }
+    }
+
+    public synchronized JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+        json.put("jobId", id);
+        json.put("state", state.name());
+        json.put("submitted", submitted.toString());
+        if(started!=null)
+        {
+            json.put("started", started.toString());
+        }
+        if(finished!=null)
+        {
+            json.put("finished", finished.toString());
+        }
+        if(stage!=null)
+        {
+            json.put("stage", stage);
+        }
+        JSONObject timings = new JSONObject();
+        for(Map.Entry<String, Long> timing : stageTimings.entrySet())
+        {
+            timings.put(timing.getKey(), timing.getValue());
+        }
+        json.put("stageTimingsMillis", timings);
+        if(result!=null)
+        {
+            json.put("result", result);
+        }
+        if(error!=null)
+        {
+            json.put("error", error);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,81 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Runs ingestion cycles submitted through the asynchronous endpoint on a dedicated executor and keeps the most recent
+ * jobs available for status queries.
+ */
+public class IngestionJobManager implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private final int retainedJobs;
+    private final ExecutorService executor;
+    // Insertion ordered so that the oldest jobs are dropped first
+    private final Map<String, IngestionJob> jobs = new LinkedHashMap<>();
+
+    public IngestionJobManager(int retainedJobs)
+    {
+        this.retainedJobs = retainedJobs;
+        this.executor = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "carpark-ingestion-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public IngestionJob submit(Function<IngestionJob, JSONObject> cycle)
+    {
+        IngestionJob job = new IngestionJob();
+        register(job);
+        executor.execute(() ->
+        {
+            job.start();
+            try
+            {
+                job.succeed(cycle.apply(job));
+            }
+            catch(Exception e)
+            {
+                LOG.error("Ingestion job " + job.getId() + " failed", e);
+                job.fail(e);
+            }
+        });
+        return job;
+    }
+
+    public synchronized IngestionJob get(String id)
+    {
+        return jobs.get(id);
+    }
+
+    private synchronized void register(IngestionJob job)
+    {
+        jobs.put(job.getId(), job);
+        Iterator<IngestionJob> it = jobs.values().iterator();
+        while(jobs.size()>retainedJobs && it.hasNext())
+        {
+            //Only forget jobs that have finished
+            if(it.next().isDone())
+            {
+                it.remove();
+            }
+        }
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+}
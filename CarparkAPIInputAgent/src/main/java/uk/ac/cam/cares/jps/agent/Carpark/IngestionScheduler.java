@@ -0,0 +1,178 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs ingestion cycles inside the agent. Each run is anchored to the slot it was scheduled for rather than to the end
+ * of the previous run, so the cadence does not drift. Runs never overlap: a cycle that overruns its slot delays the next
+ * one, which then starts immediately and is reported as lag.
+ */
+public class IngestionScheduler implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private final Supplier<JSONObject> cycle;
+    private final boolean adaptive;
+    private final ScheduledExecutorService executor;
+    // System.nanoTime outside of tests
+    private final LongSupplier clock;
+
+    private volatile long intervalNanos;
+    private volatile long lastLagMillis;
+    private volatile long maxLagMillis;
+    private volatile long lastDurationMillis;
+    private volatile long cycleCount;
+    private volatile long failureCount;
+    private boolean started;
+
+    // If adaptive, the interval follows the NextPollInterval reported by each cycle
+    public IngestionScheduler(long intervalMillis, boolean adaptive, Supplier<JSONObject> cycle)
+    {
+        this(intervalMillis, adaptive, cycle, System::nanoTime);
+    }
+
+    IngestionScheduler(long intervalMillis, boolean adaptive, Supplier<JSONObject> cycle, LongSupplier clock)
+    {
+        if(intervalMillis<=0)
+        {
+            throw new IllegalArgumentException("The schedule interval must be positive");
+        }
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.adaptive = adaptive;
+        this.cycle = cycle;
+        this.clock = clock;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "carpark-ingestion-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Returns null if scheduling is not enabled in the agent properties
+    public static IngestionScheduler fromProperties(String propertiesFile, Supplier<JSONObject> cycle) throws IOException
+    {
+        try(InputStream input = new FileInputStream(propertiesFile))
+        {
+            Properties prop = new Properties();
+            prop.load(input);
+            if(!Boolean.parseBoolean(prop.getProperty("Carpark.schedule.enabled", "false")))
+            {
+                return null;
+            }
+            return new IngestionScheduler(Long.parseLong(prop.getProperty("Carpark.schedule.interval", "30"))*1000,
+                    Boolean.parseBoolean(prop.getProperty("Carpark.schedule.adaptive", "false")), cycle);
+        }
+    }
+
+    public synchronized void start()
+    {
+        if(started)
+        {
+            return;
+        }
+        started = true;
+        long now = clock.getAsLong();
+        executor.execute(() -> runAndReschedule(now));
+        LOG.info(String.format("Ingestion scheduler started with an interval of %d ms", TimeUnit.NANOSECONDS.toMillis(intervalNanos)));
+    }
+
+    private void runAndReschedule(long scheduledAt)
+    {
+        long start = clock.getAsLong();
+        lastLagMillis = TimeUnit.NANOSECONDS.toMillis(start - scheduledAt);
+        maxLagMillis = Math.max(maxLagMillis, lastLagMillis);
+        PipelineMetrics.schedulerLag("last", lastLagMillis);
+        PipelineMetrics.schedulerLag("max", maxLagMillis);
+        if(lastLagMillis > TimeUnit.NANOSECONDS.toMillis(intervalNanos)/10)
+        {
+            LOG.warn(String.format("Ingestion cycle started %d ms behind schedule", lastLagMillis));
+        }
+
+        try
+        {
+            JSONObject result = cycle.get();
+            if(adaptive && result!=null && result.has(CarparkAgentContext.NEXT_POLL_KEY))
+            {
+                intervalNanos = TimeUnit.SECONDS.toNanos(result.getLong(CarparkAgentContext.NEXT_POLL_KEY));
+            }
+        }
+        catch(Exception e)
+        {
+            failureCount++;
+            LOG.error("Scheduled ingestion cycle failed", e);
+        }
+        finally
+        {
+            cycleCount++;
+            lastDurationMillis = TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - start);
+        }
+
+        long now = clock.getAsLong();
+        long next = nextSlot(scheduledAt, now, intervalNanos);
+        if(next==now && now - scheduledAt - intervalNanos>=intervalNanos)
+        {
+            LOG.warn(String.format("Ingestion cycle took %d ms, skipped %d scheduled runs", lastDurationMillis, (now - scheduledAt - intervalNanos)/intervalNanos));
+        }
+        if(!executor.isShutdown())
+        {
+            executor.schedule(() -> runAndReschedule(next), Math.max(0, next - now), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // The slot after the one a run was scheduled for. If the run overran by whole slots, the schedule is re-anchored on the
+    // current time instead of firing a burst of missed runs
+    static long nextSlot(long scheduledAt, long now, long intervalNanos)
+    {
+        long nextSlot = scheduledAt + intervalNanos;
+        return now - nextSlot >= intervalNanos ? now : nextSlot;
+    }
+
+    // Delay between the slot a cycle was scheduled for and when it actually started
+    public long getLastLagMillis()
+    {
+        return lastLagMillis;
+    }
+
+    public long getMaxLagMillis()
+    {
+        return maxLagMillis;
+    }
+
+    public long getLastDurationMillis()
+    {
+        return lastDurationMillis;
+    }
+
+    public long getCycleCount()
+    {
+        return cycleCount;
+    }
+
+    public long getFailureCount()
+    {
+        return failureCount;
+    }
+
+    public long getIntervalMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,39 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request latencies in a ring buffer and derives percentiles from them.
+ */
+public class LatencyTracker
+{
+    private final long[] samples;
+    private final int minSamples;
+    private int next;
+    private int count;
+
+    public LatencyTracker(int capacity, int minSamples)
+    {
+        this.samples = new long[capacity];
+        this.minSamples = minSamples;
+    }
+
+    public synchronized void record(long latencyMillis)
+    {
+        samples[next] = latencyMillis;
+        next = (next+1) % samples.length;
+        count = Math.min(count+1, samples.length);
+    }
+
+    // Returns the latency below which the given fraction of recent requests completed, or -1 while there are too few samples
+    public synchronized long percentile(double fraction)
+    {
+        if(count<minSamples)
+        {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction*count) - 1;
+        return sorted[Math.max(0, Math.min(index, count-1))];
+    }
+}
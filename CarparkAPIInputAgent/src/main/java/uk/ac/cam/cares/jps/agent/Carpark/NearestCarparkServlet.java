@@ -0,0 +1,123 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Finds carparks around a point using the in-memory location index and the latest availability.
+ * GET /nearest?lat=..&lon=..&k=5 returns the k closest carparks, GET /nearest?lat=..&lon=..&radius=500 every carpark
+ * within the radius in meters. lotType=C|H|Y restricts the search to carparks with that lot type and minLots=n to
+ * those with at least n available lots of it, or of any lot type if none is given.
+ */
+@WebServlet(urlPatterns = {"/nearest"})
+
+public class NearestCarparkServlet extends HttpServlet
+{
+    private static final String NOT_READY_MSG = "No availability has been retrieved yet";
+    private static final String BAD_REQUEST_MSG = "lat and lon are required, with either k or radius";
+
+    private static final int DEFAULT_K = 5;
+    private static final int MAX_K = 100;
+    // Keeps radius queries to the cells of a city
+    private static final double MAX_RADIUS_METERS = 50000;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        AvailabilitySnapshot snapshot = AvailabilitySnapshot.current();
+        if(snapshot==null)
+        {
+            write(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, new JSONObject().put("Result", NOT_READY_MSG));
+            return;
+        }
+
+        double lat;
+        double lon;
+        int k;
+        double radius;
+        int minLots;
+        try
+        {
+            lat = Double.parseDouble(request.getParameter("lat"));
+            lon = Double.parseDouble(request.getParameter("lon"));
+            k = request.getParameter("k")==null ? DEFAULT_K : Integer.parseInt(request.getParameter("k"));
+            radius = request.getParameter("radius")==null ? Double.NaN : Double.parseDouble(request.getParameter("radius"));
+            minLots = request.getParameter("minLots")==null ? 0 : Integer.parseInt(request.getParameter("minLots"));
+        }
+        catch(NullPointerException | NumberFormatException e)
+        {
+            write(response, HttpServletResponse.SC_BAD_REQUEST, new JSONObject().put("Result", BAD_REQUEST_MSG));
+            return;
+        }
+        if(Math.abs(lat)>90 || Math.abs(lon)>180 || k<=0 || radius<=0)
+        {
+            write(response, HttpServletResponse.SC_BAD_REQUEST, new JSONObject().put("Result", BAD_REQUEST_MSG));
+            return;
+        }
+
+        Predicate<String> filter = availabilityFilter(snapshot, request.getParameter("lotType"), minLots);
+        CarparkLocationIndex index = AvailabilitySnapshot.locations();
+        List<CarparkLocationIndex.Match> matches = Double.isNaN(radius)
+                ? index.nearest(lat, lon, Math.min(k, MAX_K), filter)
+                : index.within(lat, lon, Math.min(radius, MAX_RADIUS_METERS), filter);
+
+        JSONArray carparks = new JSONArray();
+        for(CarparkLocationIndex.Match match : matches)
+        {
+            List<CarparkReading> readings = snapshot.getReadings(match.getCarparkID());
+            JSONObject lots = new JSONObject();
+            for(CarparkReading reading : readings)
+            {
+                lots.put(reading.getLotType(), reading.getAvailableLots());
+            }
+            JSONObject carpark = new JSONObject()
+                    .put("CarParkID", match.getCarparkID())
+                    .put("Latitude", match.getLatitude())
+                    .put("Longitude", match.getLongitude())
+                    .put("DistanceMeters", Math.round(match.getDistance()))
+                    .put("AvailableLots", lots);
+            if(!readings.isEmpty())
+            {
+                carpark.put("Development", readings.get(0).getDevelopment());
+                carpark.put("Area", readings.get(0).getArea());
+            }
+            carparks.put(carpark);
+        }
+        write(response, HttpServletResponse.SC_OK, new JSONObject().put("timestamp", snapshot.getTimestamp().toString()).put("carparks", carparks));
+    }
+
+    // Accepts a carpark if it has the lot type, or any if none is given, with at least minLots available
+    static Predicate<String> availabilityFilter(AvailabilitySnapshot snapshot, String lotType, int minLots)
+    {
+        return carparkID ->
+        {
+            for(CarparkReading reading : snapshot.getReadings(carparkID))
+            {
+                if((lotType==null || lotType.equalsIgnoreCase(reading.getLotType())) && reading.getAvailableLots()>=minLots)
+                {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static void write(HttpServletResponse response, int status, JSONObject body) throws IOException
+    {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+}
@@ -0,0 +1,273 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters, gauges and histograms for the ingestion pipeline, rendered in the Prometheus text exposition
+ * format by the /metrics endpoint. Recording is lock free so that it can be left in the hot paths.
+ */
+public final class PipelineMetrics
+{
+    // Pipeline stages timed into the stage duration histogram
+    public static final String STAGE_HTTP_FETCH = "http_fetch";
+    public static final String STAGE_JSON_PARSE = "json_parse";
+    public static final String STAGE_PRICING_FETCH = "pricing_fetch";
+    public static final String STAGE_ENCODE_READINGS = "encode_readings";
+    public static final String STAGE_CONVERT_TIME_SERIES = "convert_time_series";
+    public static final String STAGE_GET_MAX_TIME = "get_max_time";
+    public static final String STAGE_ADD_TIME_SERIES = "add_time_series_data";
+    public static final String STAGE_INSTANTIATE = "instantiate";
+    public static final String STAGE_CYCLE = "cycle";
+
+    public static final String SPARQL_QUERY = "query";
+    public static final String SPARQL_UPDATE = "update";
+
+    private static final String STAGE_DURATION = "carpark_stage_duration_seconds";
+    private static final String SPARQL_DURATION = "carpark_sparql_duration_seconds";
+    private static final String STAGE_ERRORS = "carpark_stage_errors_total";
+    private static final String PAYLOAD_BYTES = "carpark_payload_bytes";
+    private static final String CARPARKS = "carpark_readings";
+    private static final String CYCLES = "carpark_cycles_total";
+    private static final String SCHEDULER_LAG = "carpark_scheduler_lag_seconds";
+
+    private static final double[] DURATION_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+    private static final double[] BYTES_BUCKETS = {1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216};
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    static
+    {
+        register(STAGE_DURATION, "histogram", "Time spent in each stage of an ingestion cycle");
+        register(SPARQL_DURATION, "histogram", "Time spent in each SPARQL query and update issued by the query builder");
+        register(STAGE_ERRORS, "counter", "Failures per stage of an ingestion cycle");
+        register(PAYLOAD_BYTES, "histogram", "Size of the response bodies received from the upstream APIs");
+        register(CARPARKS, "gauge", "Number of carpark readings seen by the last cycle");
+        register(CYCLES, "counter", "Ingestion cycles by outcome");
+        register(SCHEDULER_LAG, "gauge", "Delay between the slot a scheduled cycle was due and its start, for the last cycle and the worst so far");
+    }
+
+    private PipelineMetrics()
+    {
+    }
+
+    // Times a stage until the returned timer is stopped, which callers do in a finally block
+    public static Timer time(String stage)
+    {
+        return new Timer(STAGE_DURATION, "stage=\"" + stage + "\"");
+    }
+
+    // Times one SPARQL call, type being SPARQL_QUERY or SPARQL_UPDATE and operation naming the call site
+    public static Timer timeSparql(String type, String operation)
+    {
+        return new Timer(SPARQL_DURATION, "type=\"" + type + "\",operation=\"" + operation + "\"");
+    }
+
+    public static void error(String stage)
+    {
+        counter(STAGE_ERRORS, "stage=\"" + stage + "\"").add(1);
+    }
+
+    // Size of one response body, source naming the API and encoding whether the bytes were counted on or off the wire
+    public static void payload(String source, String encoding, long bytes)
+    {
+        histogram(PAYLOAD_BYTES, "source=\"" + source + "\",encoding=\"" + encoding + "\"", BYTES_BUCKETS).observe(bytes);
+    }
+
+    public static void carparks(String kind, long count)
+    {
+        gauge(CARPARKS, "kind=\"" + kind + "\"").set(count);
+    }
+
+    // kind is "last" or "max"
+    public static void schedulerLag(String kind, long millis)
+    {
+        gauge(SCHEDULER_LAG, "kind=\"" + kind + "\"").set(millis/1000.0);
+    }
+
+    public static void cycle(String outcome)
+    {
+        counter(CYCLES, "outcome=\"" + outcome + "\"").add(1);
+    }
+
+    public static String scrape()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Family> family : new TreeMap<>(FAMILIES).entrySet())
+        {
+            family.getValue().write(family.getKey(), sb);
+        }
+        return sb.toString();
+    }
+
+    // Drops every recorded value, for tests
+    static void reset()
+    {
+        for(Family family : FAMILIES.values())
+        {
+            family.series.clear();
+        }
+    }
+
+    private static void register(String name, String type, String help)
+    {
+        FAMILIES.put(name, new Family(type, help));
+    }
+
+    private static Histogram histogram(String name, String labels, double[] buckets)
+    {
+        return (Histogram) FAMILIES.get(name).series.computeIfAbsent(labels, l -> new Histogram(buckets));
+    }
+
+    private static Counter counter(String name, String labels)
+    {
+        return (Counter) FAMILIES.get(name).series.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    private static Gauge gauge(String name, String labels)
+    {
+        return (Gauge) FAMILIES.get(name).series.computeIfAbsent(labels, l -> new Gauge());
+    }
+
+    public static final class Timer
+    {
+        private final String name;
+        private final String labels;
+        private final long start = System.nanoTime();
+        private boolean stopped;
+
+        private Timer(String name, String labels)
+        {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        // Records the time since the timer was started, once however often it is called
+        public void stop()
+        {
+            if (!stopped)
+            {
+                stopped = true;
+                histogram(name, labels, DURATION_BUCKETS).observe((System.nanoTime() - start)/1e9);
+            }
+        }
+    }
+
+    private interface Series
+    {
+        void write(String name, String labels, StringBuilder sb);
+    }
+
+    private static final class Family
+    {
+        private final String type;
+        private final String help;
+        // Keyed by the rendered label set
+        private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        private Family(String type, String help)
+        {
+            this.type = type;
+            this.help = help;
+        }
+
+        private void write(String name, StringBuilder sb)
+        {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for(Map.Entry<String, Series> entry : new TreeMap<>(series).entrySet())
+            {
+                entry.getValue().write(name, entry.getKey(), sb);
+            }
+        }
+    }
+
+    private static final class Histogram implements Series
+    {
+        private final double[] buckets;
+        private final LongAdder[] counts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] buckets)
+        {
+            this.buckets = buckets;
+            this.counts = new LongAdder[buckets.length];
+            for(int i=0;i<buckets.length;i++)
+            {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        private void observe(double value)
+        {
+            //Buckets are stored non-cumulatively and summed up when scraped
+            for(int i=0;i<buckets.length;i++)
+            {
+                if(value<=buckets[i])
+                {
+                    counts[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        public void write(String name, String labels, StringBuilder sb)
+        {
+            long cumulative = 0;
+            for(int i=0;i<buckets.length;i++)
+            {
+                cumulative += counts[i].sum();
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(format(buckets[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count.sum()).append('\n');
+            sb.append(name).append("_sum{").append(labels).append("} ").append(format(sum.sum())).append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(count.sum()).append('\n');
+        }
+    }
+
+    private static final class Counter implements Series
+    {
+        private final DoubleAdder value = new DoubleAdder();
+
+        private void add(double amount)
+        {
+            value.add(amount);
+        }
+
+        public void write(String name, String labels, StringBuilder sb)
+        {
+            sb.append(name).append('{').append(labels).append("} ").append(format(value.sum())).append('\n');
+        }
+    }
+
+    private static final class Gauge implements Series
+    {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToLongBits(0));
+
+        private void set(double value)
+        {
+            bits.set(Double.doubleToLongBits(value));
+        }
+
+        public void write(String name, String labels, StringBuilder sb)
+        {
+            sb.append(name).append('{').append(labels).append("} ").append(format(Double.longBitsToDouble(bits.get()))).append('\n');
+        }
+    }
+
+    private static String format(double value)
+    {
+        if(value==Math.rint(value) && !Double.isInfinite(value))
+        {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
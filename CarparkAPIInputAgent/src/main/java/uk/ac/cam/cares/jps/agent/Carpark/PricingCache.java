@@ -0,0 +1,130 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Holds the last retrieved pricing dataset together with its HTTP validators. The data is considered fresh
+ * for the configured TTL and is mirrored to a snapshot file so that a restarted agent does not need to refetch it.
+ */
+public class PricingCache
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final String FETCHED_AT_KEY = "fetchedAt";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String DATA_KEY = "data";
+
+    private final long ttlMillis;
+    private final Path snapshotFile;
+
+    private JSONObject prices;
+    private long fetchedAt;
+    private String etag;
+    private String lastModified;
+
+    // snapshotFile may be null, in which case the cache only lives in memory
+    public PricingCache(long ttlMillis, Path snapshotFile)
+    {
+        this.ttlMillis = ttlMillis;
+        this.snapshotFile = snapshotFile;
+        loadSnapshot();
+    }
+
+    public synchronized boolean isFresh()
+    {
+        return prices!=null && System.currentTimeMillis() - fetchedAt < ttlMillis;
+    }
+
+    public synchronized boolean hasPrices()
+    {
+        return prices!=null;
+    }
+
+    public synchronized JSONObject getPrices()
+    {
+        return prices;
+    }
+
+    public synchronized String getEtag()
+    {
+        return etag;
+    }
+
+    public synchronized String getLastModified()
+    {
+        return lastModified;
+    }
+
+    // Stores a newly downloaded dataset
+    public synchronized void update(JSONObject newPrices, String newEtag, String newLastModified)
+    {
+        prices = newPrices;
+        etag = newEtag;
+        lastModified = newLastModified;
+        fetchedAt = System.currentTimeMillis();
+        saveSnapshot();
+    }
+
+    // The server confirmed that the cached dataset is still current, so its TTL starts again
+    public synchronized void revalidated()
+    {
+        fetchedAt = System.currentTimeMillis();
+        saveSnapshot();
+    }
+
+    private void loadSnapshot()
+    {
+        if(snapshotFile==null || !Files.exists(snapshotFile))
+        {
+            return;
+        }
+        try
+        {
+            JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(snapshotFile), StandardCharsets.UTF_8));
+            prices = snapshot.getJSONObject(DATA_KEY);
+            fetchedAt = snapshot.getLong(FETCHED_AT_KEY);
+            etag = snapshot.optString(ETAG_KEY, null);
+            lastModified = snapshot.optString(LAST_MODIFIED_KEY, null);
+            LOG.info("Loaded pricing snapshot from " + snapshotFile);
+        }
+        catch(IOException | JSONException e)
+        {
+            //A broken snapshot only costs one extra download
+            LOG.warn("Could not read the pricing snapshot " + snapshotFile + ", it will be refetched", e);
+            prices = null;
+        }
+    }
+
+    private void saveSnapshot()
+    {
+        if(snapshotFile==null)
+        {
+            return;
+        }
+        JSONObject snapshot = new JSONObject();
+        snapshot.put(FETCHED_AT_KEY, fetchedAt);
+        snapshot.put(ETAG_KEY, etag);
+        snapshot.put(LAST_MODIFIED_KEY, lastModified);
+        snapshot.put(DATA_KEY, prices);
+        try
+        {
+            //Write next to the snapshot and move it in place so a crash never leaves a half written file
+            Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            Files.write(temp, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            LOG.warn("Could not write the pricing snapshot " + snapshotFile, e);
+        }
+    }
+}
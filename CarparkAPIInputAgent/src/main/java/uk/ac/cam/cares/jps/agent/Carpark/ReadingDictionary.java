@@ -0,0 +1,116 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns every carpark and lot type a stable integer slot, so that the readings of a cycle can be held in a plain
+ * int[] indexed by slot instead of a map keyed by concatenated strings. Slots are handed out in order of first sight and
+ * never reused. Not thread safe: it is only used by the ingestion cycle, which never runs concurrently.
+ */
+public class ReadingDictionary
+{
+    public static final int NO_SLOT = -1;
+
+    // Slots by carpark ID then lot type, looked up without building the AvailableLots_<id>_<type> key
+    private final Map<String, Map<String, Integer>> slots = new HashMap<>();
+    private final List<String> keys = new ArrayList<>();
+
+    // Returns the slot of the carpark and lot type, assigning the next free one if it has none yet
+    public int slot(String carparkID, String lotType)
+    {
+        Map<String, Integer> lotTypes = slots.get(carparkID);
+        if(lotTypes==null)
+        {
+            lotTypes = new HashMap<>(4);
+            slots.put(carparkID, lotTypes);
+        }
+        Integer slot = lotTypes.get(lotType);
+        if(slot==null)
+        {
+            slot = keys.size();
+            lotTypes.put(lotType, slot);
+            keys.add(CarparkReading.KEY_PREFIX + carparkID + "_" + lotType);
+        }
+        return slot;
+    }
+
+    // Slot of a mapping key such as AvailableLots_A0007_C, or NO_SLOT if it is not an availability key
+    public int slot(String key)
+    {
+        String carparkID = CarparkReading.carparkIDFromKey(key);
+        return carparkID==null ? NO_SLOT : slot(carparkID, CarparkReading.lotTypeFromKey(key));
+    }
+
+    public String key(int slot)
+    {
+        return keys.get(slot);
+    }
+
+    public int size()
+    {
+        return keys.size();
+    }
+
+    // Encodes the readings of one cycle, all taken at the given time
+    public Frame encode(List<CarparkReading> readings, OffsetDateTime timestamp)
+    {
+        //Assign slots to new carparks first so that the array is sized once
+        int[] readingSlots = new int[readings.size()];
+        for(int i=0;i<readings.size();i++)
+        {
+            CarparkReading reading = readings.get(i);
+            readingSlots[i] = slot(reading.getCarparkID(), reading.getLotType());
+        }
+        int[] values = new int[keys.size()];
+        Arrays.fill(values, Frame.MISSING);
+        for(int i=0;i<readingSlots.length;i++)
+        {
+            values[readingSlots[i]] = readings.get(i).getAvailableLots();
+        }
+        return new Frame(timestamp, values);
+    }
+
+    /**
+     * The available lots of one cycle indexed by slot, with the single timestamp they were taken at.
+     */
+    public static final class Frame
+    {
+        // Marks a slot without a reading in this cycle
+        public static final int MISSING = Integer.MIN_VALUE;
+
+        private final OffsetDateTime timestamp;
+        private final int[] values;
+
+        private Frame(OffsetDateTime timestamp, int[] values)
+        {
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+
+        public OffsetDateTime getTimestamp()
+        {
+            return timestamp;
+        }
+
+        // MISSING for NO_SLOT and for slots assigned after the frame was encoded
+        public int get(int slot)
+        {
+            return slot>=0 && slot<values.length ? values[slot] : MISSING;
+        }
+
+        public boolean has(int slot)
+        {
+            return get(slot)!=MISSING;
+        }
+
+        public int size()
+        {
+            return values.length;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs upstream requests with a hard deadline per attempt, retries with jittered exponential backoff inside a total
+ * time budget and optionally hedges: if an attempt has not answered after the recent p95 latency, a second identical
+ * request is fired and whichever succeeds first wins while the other one is aborted. Every attempt feeds the latency
+ * window, whether it succeeded or failed, so that the hedge threshold is not biased towards fast responses.
+ */
+public class RequestPolicy implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    // One attempt of a request, given a freshly built request object that may be aborted by the policy
+    public interface Attempt<T>
+    {
+        T run(HttpGet request) throws IOException;
+    }
+
+    private final long requestDeadline;
+    private final long totalBudget;
+    private final int maxRetries;
+    private final long retryBackoff;
+    private final boolean hedging;
+    private final double hedgePercentile;
+
+    private final LatencyTracker latencies = new LatencyTracker(200, 20);
+    private final ExecutorService attemptExecutor;
+
+    // All durations in milliseconds
+    public RequestPolicy(long requestDeadline, long totalBudget, int maxRetries, long retryBackoff, boolean hedging, double hedgePercentile)
+    {
+        this.requestDeadline = requestDeadline;
+        this.totalBudget = totalBudget;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = retryBackoff;
+        this.hedging = hedging;
+        this.hedgePercentile = hedgePercentile;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        attemptExecutor = Executors.newCachedThreadPool(runnable ->
+        {
+            Thread thread = new Thread(runnable, "carpark-request-attempt-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> T execute(Supplier<HttpGet> requestFactory, Attempt<T> attempt) throws IOException
+    {
+        long budgetEnd = System.currentTimeMillis() + totalBudget;
+        IOException lastFailure = null;
+
+        for(int retry=0; ; retry++)
+        {
+            long remaining = budgetEnd - System.currentTimeMillis();
+            if(remaining<=0)
+            {
+                break;
+            }
+            try
+            {
+                return executeAttempt(requestFactory, attempt, Math.min(requestDeadline, remaining));
+            }
+            catch(IOException e)
+            {
+                lastFailure = e;
+                if(!isRetryable(e) || retry>=maxRetries)
+                {
+                    throw e;
+                }
+            }
+
+            //Full jitter: sleep a random time up to the exponential backoff
+            long backoff = ThreadLocalRandom.current().nextLong(retryBackoff * (1L << Math.min(retry, 16)) + 1);
+            if(System.currentTimeMillis() + backoff >= budgetEnd)
+            {
+                break;
+            }
+            LOG.warn(String.format("Request failed (%s), retrying in %d ms", lastFailure.getMessage(), backoff));
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry");
+            }
+        }
+        throw new SocketTimeoutException("Request did not succeed within its time budget of " + totalBudget + " ms"
+                + (lastFailure==null ? "" : ", last failure: " + lastFailure.getMessage()));
+    }
+
+    public long getHedgeDelay()
+    {
+        return hedging ? latencies.percentile(hedgePercentile) : -1;
+    }
+
+    private <T> T executeAttempt(Supplier<HttpGet> requestFactory, Attempt<T> attempt, long deadlineMillis) throws IOException
+    {
+        CompletionService<T> completion = new ExecutorCompletionService<>(attemptExecutor);
+        List<HttpGet> requests = new ArrayList<>(2);
+        List<Future<T>> futures = new ArrayList<>(2);
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        long hedgeDelay = getHedgeDelay();
+        boolean hedged = hedgeDelay<0;
+        IOException failure = null;
+
+        submit(completion, requestFactory, attempt, requests, futures);
+        int running = 1;
+        try
+        {
+            while(running>0)
+            {
+                long waitUntil = hedged ? deadline : Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(hedgeDelay));
+                Future<T> done = completion.poll(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if(done==null)
+                {
+                    if(System.nanoTime()>=deadline)
+                    {
+                        throw new SocketTimeoutException("Request exceeded its deadline of " + deadlineMillis + " ms");
+                    }
+                    LOG.debug(String.format("No response after %d ms, sending a hedged request", hedgeDelay));
+                    submit(completion, requestFactory, attempt, requests, futures);
+                    hedged = true;
+                    running++;
+                    continue;
+                }
+                running--;
+                try
+                {
+                    return done.get();
+                }
+                catch(ExecutionException e)
+                {
+                    if(e.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    if(!hedged)
+                    {
+                        //The only attempt failed, hand over to the retry loop
+                        break;
+                    }
+                }
+            }
+            throw failure;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+        finally
+        {
+            //A primary attempt that is still running took at least this long, recording it keeps slow responses in the
+            //percentile even when a hedge or the deadline cut them short
+            if(!futures.get(0).isDone())
+            {
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            //Abort whatever is still in flight so that its connection is released
+            for(HttpGet request : requests)
+            {
+                request.abort();
+            }
+            for(Future<T> future : futures)
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private <T> void submit(CompletionService<T> completion, Supplier<HttpGet> requestFactory, Attempt<T> attempt, List<HttpGet> requests, List<Future<T>> futures)
+    {
+        HttpGet request = requestFactory.get();
+        requests.add(request);
+        futures.add(completion.submit(() ->
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                return attempt.run(request);
+            }
+            finally
+            {
+                //Failed responses count as well, only attempts aborted by the policy are accounted for separately
+                if(!request.isAborted())
+                {
+                    latencies.record(System.currentTimeMillis() - start);
+                }
+            }
+        }));
+    }
+
+    // Timeouts, connection failures, rate limiting and server errors are worth another try, other client errors are not
+    private static boolean isRetryable(IOException e)
+    {
+        if(Thread.currentThread().isInterrupted())
+        {
+            return false;
+        }
+        if(e instanceof HttpResponseException)
+        {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status==429 || status>=500;
+        }
+        return true;
+    }
+
+    public void close()
+    {
+        attemptExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,163 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Asynchronous counterpart of /retrieve. A POST to /retrieve/async queues an ingestion cycle and answers with a job ID
+ * straight away, the job can then be followed through /status?jobId=... which reports its state and stage timings.
+ * Passing wait=<seconds> to /status holds the request until the job finishes or the wait runs out.
+ * The POST stays synchronous as it only parses the parameters and queues the cycle on the job executor, only the long
+ * poll on /status goes asynchronous since that is where a container thread would otherwise be held.
+ */
+@WebServlet(urlPatterns = {RetrieveJobServlet.SUBMIT_PATH, RetrieveJobServlet.STATUS_PATH}, asyncSupported = true)
+
+public class RetrieveJobServlet extends HttpServlet
+{
+    public static final String SUBMIT_PATH = "/retrieve/async";
+    public static final String STATUS_PATH = "/status";
+    public static final String Key_JobID = "jobId";
+    public static final String Key_Wait = "wait";
+
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    private static final String BAD_REQUEST_MSG = "Request Parameters not defined correctly";
+    private static final String UNKNOWN_JOB_MSG = "No job found with ID ";
+    // Upper bound on the long poll so that requests cannot be held indefinitely
+    private static final long MAX_WAIT_SECONDS = 300;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if(!SUBMIT_PATH.equals(request.getServletPath()))
+        {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        String[] args;
+        try
+        {
+            args = APIAgentLauncher.propertiesFromRequest(readParameters(request));
+        }
+        catch(JSONException e)
+        {
+            args = null;
+        }
+        if(args==null)
+        {
+            writeJSON(response, HttpServletResponse.SC_BAD_REQUEST, new JSONObject().put("Result", BAD_REQUEST_MSG));
+            return;
+        }
+
+        IngestionJob job = APIAgentLauncher.submitJob(args);
+        LOG.info("Queued ingestion job " + job.getId());
+
+        String statusUrl = request.getContextPath() + STATUS_PATH + "?" + Key_JobID + "=" + job.getId();
+        response.setHeader("Location", statusUrl);
+        writeJSON(response, HttpServletResponse.SC_ACCEPTED, new JSONObject().put(Key_JobID, job.getId()).put("status", statusUrl));
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        if(!STATUS_PATH.equals(request.getServletPath()))
+        {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        String jobId = request.getParameter(Key_JobID);
+        IngestionJob job = jobId==null ? null : APIAgentLauncher.getJob(jobId);
+        if(job==null)
+        {
+            writeJSON(response, HttpServletResponse.SC_NOT_FOUND, new JSONObject().put("Result", UNKNOWN_JOB_MSG + jobId));
+            return;
+        }
+
+        long waitSeconds = parseWait(request.getParameter(Key_Wait));
+        if(waitSeconds<=0 || job.isDone())
+        {
+            writeJSON(response, HttpServletResponse.SC_OK, job.toJSON());
+            return;
+        }
+
+        //Release the container thread while waiting and answer as soon as the job finishes or the wait runs out
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        //Time out a copy so that the job's own completion is left untouched
+        job.getCompletion().copy().completeOnTimeout(null, waitSeconds, TimeUnit.SECONDS)
+                .handle((result, e) -> null)
+                .thenRun(() -> respond(async, job));
+    }
+
+    private static void respond(AsyncContext async, IngestionJob job)
+    {
+        try
+        {
+            writeJSON((HttpServletResponse) async.getResponse(), HttpServletResponse.SC_OK, job.toJSON());
+        }
+        catch(IOException e)
+        {
+            LOG.error("Could not write the status of job " + job.getId(), e);
+        }
+        finally
+        {
+            async.complete();
+        }
+    }
+
+    private static long parseWait(String wait)
+    {
+        if(wait==null)
+        {
+            return 0;
+        }
+        try
+        {
+            return Math.min(Long.parseLong(wait), MAX_WAIT_SECONDS);
+        }
+        catch(NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    // Reads the properties keys from the JSON body, falling back to the query parameters like the synchronous endpoint
+    private static JSONObject readParameters(HttpServletRequest request) throws IOException
+    {
+        String body = request.getReader().lines().collect(Collectors.joining("\n"));
+        if(!body.trim().isEmpty())
+        {
+            return new JSONObject(body);
+        }
+        JSONObject params = new JSONObject();
+        request.getParameterMap().forEach((key, values) ->
+        {
+            if(values.length>0)
+            {
+                params.put(key, values[0]);
+            }
+        });
+        return params;
+    }
+
+    private static void writeJSON(HttpServletResponse response, int status, JSONObject body) throws IOException
+    {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write(body.toString());
+    }
+}
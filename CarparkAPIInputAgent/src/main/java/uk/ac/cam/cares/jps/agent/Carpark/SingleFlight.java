@@ -0,0 +1,69 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Lets at most one call run at a time. A caller arriving while a call is in flight does not start its own but waits for
+ * the running one and receives the same result, or the same exception.
+ */
+public class SingleFlight<T>
+{
+    private final AtomicReference<CompletableFuture<T>> inFlight = new AtomicReference<>();
+
+    // onJoin is called instead of call when the caller attaches to a call that is already running
+    public T run(Supplier<T> call, Runnable onJoin)
+    {
+        CompletableFuture<T> own = new CompletableFuture<>();
+        CompletableFuture<T> running = inFlight.compareAndExchange(null, own);
+        if(running!=null)
+        {
+            onJoin.run();
+            return await(running);
+        }
+
+        try
+        {
+            T result = call.get();
+            own.complete(result);
+            return result;
+        }
+        catch(RuntimeException | Error e)
+        {
+            own.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            //Later callers start a fresh call
+            inFlight.compareAndSet(own, null);
+        }
+    }
+
+    public boolean isInFlight()
+    {
+        return inFlight.get()!=null;
+    }
+
+    private static <T> T await(CompletableFuture<T> future)
+    {
+        try
+        {
+            return future.join();
+        }
+        catch(CompletionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            if(e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Direct JDBC access to the relational database behind the time series client, for the bulk operations the client
+ * only offers one series at a time. Relies on the layout written by the time series client: the central table
+ * "dbTable" maps each data IRI to the table and column holding its values, and every time series table keys its
+ * rows by a "time" column.
+ */
+public class TimeSeriesDatabase
+{
+    private static final Logger LOG = LogManager.getLogger(APIAgentLauncher.class);
+
+    public static final String CENTRAL_TABLE = "dbTable";
+    public static final String TIME_COLUMN = "time";
+
+    private final String url;
+    private final String user;
+    private final String password;
+
+    public TimeSeriesDatabase(String url, String user, String password)
+    {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+    }
+
+    // Reads the same db.url, db.user and db.password keys as the time series client
+    public static TimeSeriesDatabase fromProperties(String clientPropertiesFile) throws IOException
+    {
+        try(InputStream input = new FileInputStream(clientPropertiesFile))
+        {
+            Properties prop = new Properties();
+            prop.load(input);
+            for(String key : new String[]{"db.url", "db.user", "db.password"})
+            {
+                if(!prop.containsKey(key))
+                {
+                    throw new IOException("Properties file is missing \"" + key + "=<" + key.substring(3) + ">\"");
+                }
+            }
+            return new TimeSeriesDatabase(prop.getProperty("db.url"), prop.getProperty("db.user"), prop.getProperty("db.password"));
+        }
+    }
+
+    public Connection connect() throws SQLException
+    {
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    // Looks up where the values of each data IRI are stored, in one query. IRIs without a time series are left out
+    public Map<String, Column> lookupColumns(Connection connection, Collection<String> dataIRIs) throws SQLException
+    {
+        Map<String, Column> columns = new HashMap<>(dataIRIs.size()*2);
+        if(dataIRIs.isEmpty())
+        {
+            return columns;
+        }
+        String sql = "SELECT \"dataIRI\", \"timeseriesIRI\", \"tableName\", \"columnName\" FROM " + quote(CENTRAL_TABLE) + " WHERE \"dataIRI\" = ANY(?)";
+        try(PreparedStatement statement = connection.prepareStatement(sql))
+        {
+            Array iris = connection.createArrayOf("varchar", dataIRIs.toArray());
+            statement.setArray(1, iris);
+            try(ResultSet rs = statement.executeQuery())
+            {
+                while(rs.next())
+                {
+                    columns.put(rs.getString(1), new Column(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+                }
+            }
+            finally
+            {
+                iris.free();
+            }
+        }
+        LOG.debug(String.format("Found the time series columns of %d out of %d data IRIs", columns.size(), dataIRIs.size()));
+        return columns;
+    }
+
+    // Looks up the latest time stored for each data IRI, with one query for the columns and one for all tables. IRIs
+    // without a time series are left out, IRIs whose table is still empty map to null. The time series of this agent
+    // write every column of a table at each time, so the latest row of the table is the latest time of each column
+    public Map<String, OffsetDateTime> lookupMaxTimes(Connection connection, Collection<String> dataIRIs) throws SQLException
+    {
+        Map<String, Column> columns = lookupColumns(connection, dataIRIs);
+        Map<String, OffsetDateTime> maxTimes = new HashMap<>(columns.size()*2);
+        if(columns.isEmpty())
+        {
+            return maxTimes;
+        }
+        List<String> tables = new ArrayList<>(columns.values().stream().map(Column::getTableName).collect(Collectors.toCollection(TreeSet::new)));
+        StringBuilder sql = new StringBuilder();
+        for(String table : tables)
+        {
+            if(sql.length()>0)
+            {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT CAST(? AS varchar), MAX(").append(quote(TIME_COLUMN)).append(") FROM ").append(quote(table));
+        }
+        Map<String, OffsetDateTime> byTable = new HashMap<>(tables.size()*2);
+        try(PreparedStatement statement = connection.prepareStatement(sql.toString()))
+        {
+            for(int i=0;i<tables.size();i++)
+            {
+                statement.setString(i + 1, tables.get(i));
+            }
+            try(ResultSet rs = statement.executeQuery())
+            {
+                while(rs.next())
+                {
+                    byTable.put(rs.getString(1), rs.getObject(2, OffsetDateTime.class));
+                }
+            }
+        }
+        for(Column column : columns.values())
+        {
+            maxTimes.put(column.getDataIRI(), byTable.get(column.getTableName()));
+        }
+        LOG.debug(String.format("Read the latest time of %d time series tables", tables.size()));
+        return maxTimes;
+    }
+
+    // True if the error says the central table does not exist yet, i.e. no time series was ever initialised
+    public static boolean isMissingCentralTable(SQLException e)
+    {
+        //42P01 is PostgreSQL's undefined_table
+        return "42P01".equals(e.getSQLState());
+    }
+
+    // Quotes a table or column name read from the central table
+    public static String quote(String identifier)
+    {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Where the values of one data IRI are stored.
+     */
+    public static final class Column
+    {
+        private final String dataIRI;
+        private final String timeSeriesIRI;
+        private final String tableName;
+        private final String columnName;
+
+        public Column(String dataIRI, String timeSeriesIRI, String tableName, String columnName)
+        {
+            this.dataIRI = dataIRI;
+            this.timeSeriesIRI = timeSeriesIRI;
+            this.tableName = tableName;
+            this.columnName = columnName;
+        }
+
+        public String getDataIRI()
+        {
+            return dataIRI;
+        }
+
+        public String getTimeSeriesIRI()
+        {
+            return timeSeriesIRI;
+        }
+
+        public String getTableName()
+        {
+            return tableName;
+        }
+
+        public String getColumnName()
+        {
+            return columnName;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the time series of several cycles in memory so that they can be written to the database in one go, as one time
+ * series per mapping with a row per buffered cycle. The buffer is due to be flushed once it holds maxCycles cycles, its
+ * oldest cycle is maxAgeMillis old, or its estimated size reaches maxBytes, whichever comes first. The content is only
+ * cleared once it has been written, so that a failed flush is retried with the same cycles by the next one.
+ */
+public class WriteBehindBuffer
+{
+    // Rough heap cost of one buffered row: the time, plus a reference and a boxed value per column
+    private static final long ROW_BYTES = 48;
+    private static final long VALUE_BYTES = 24;
+
+    private final int maxCycles;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+
+    // Pending rows by the first data IRI of each mapping, in order of first appearance
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private int cycles;
+    private long bytes;
+    private long oldestMillis;
+
+    public WriteBehindBuffer(int maxCycles, long maxAgeMillis, long maxBytes)
+    {
+        if(maxCycles<1 || maxAgeMillis<1 || maxBytes<1)
+        {
+            throw new IllegalArgumentException("The write-behind bounds must be positive");
+        }
+        this.maxCycles = maxCycles;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    // Appends the time series of one cycle, taken at nowMillis, and returns true if the buffer is now due
+    public synchronized boolean add(List<TimeSeries<OffsetDateTime>> cycle, long nowMillis)
+    {
+        if(cycles==0)
+        {
+            oldestMillis = nowMillis;
+        }
+        cycles++;
+        for(TimeSeries<OffsetDateTime> ts : cycle)
+        {
+            List<String> iris = ts.getDataIRIs();
+            Pending series = pending.get(iris.get(0));
+            if(series==null)
+            {
+                series = new Pending(iris);
+                pending.put(iris.get(0), series);
+            }
+            series.append(ts);
+            bytes += ts.getTimes().size()*(ROW_BYTES + VALUE_BYTES*iris.size());
+        }
+        return isDue(nowMillis);
+    }
+
+    public synchronized boolean isDue(long nowMillis)
+    {
+        return cycles>0 && (cycles>=maxCycles || bytes>=maxBytes || nowMillis - oldestMillis>=maxAgeMillis);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return cycles==0;
+    }
+
+    // True once the estimated size has reached maxBytes, which only lasts past an add if the flush that followed failed
+    public synchronized boolean isFull()
+    {
+        return bytes>=maxBytes;
+    }
+
+    public synchronized int getCycles()
+    {
+        return cycles;
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    // The content of the buffer as one time series per mapping, left in the buffer until it is cleared
+    public synchronized List<TimeSeries<OffsetDateTime>> getTimeSeries()
+    {
+        List<TimeSeries<OffsetDateTime>> timeSeries = new ArrayList<>(pending.size());
+        for(Pending series : pending.values())
+        {
+            timeSeries.add(series.toTimeSeries());
+        }
+        return timeSeries;
+    }
+
+    // Empties the buffer once its content has been written
+    public synchronized void clear()
+    {
+        pending.clear();
+        cycles = 0;
+        bytes = 0;
+    }
+
+    /**
+     * The rows buffered for one mapping, appended in time order.
+     */
+    private static final class Pending
+    {
+        private final List<String> iris;
+        private final List<OffsetDateTime> times = new ArrayList<>();
+        private final List<List<Object>> columns;
+
+        private Pending(List<String> iris)
+        {
+            this.iris = iris;
+            columns = new ArrayList<>(iris.size());
+            for(int i=0;i<iris.size();i++)
+            {
+                columns.add(new ArrayList<>());
+            }
+        }
+
+        private void append(TimeSeries<OffsetDateTime> ts)
+        {
+            times.addAll(ts.getTimes());
+            for(int i=0;i<iris.size();i++)
+            {
+                columns.get(i).addAll(ts.getValues(iris.get(i)));
+            }
+        }
+
+        private TimeSeries<OffsetDateTime> toTimeSeries()
+        {
+            return new TimeSeries<>(times, iris, new ArrayList<List<?>>(columns));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The latest time written to each time series, keyed by the data IRI the time series client would be asked for its
+ * maximum time. Loaded from the database once at startup and advanced after every successful write, so that the
+ * ingestion cycle does not have to query the maximum time of every series before writing to it. A series is unknown
+ * until it is loaded or after a failed write, in which case the database has to be asked again.
+ */
+public class WriteWatermarks
+{
+    // Empty for a known series without any data yet
+    private final Map<String, Optional<OffsetDateTime>> latest = new ConcurrentHashMap<>();
+
+    public boolean isKnown(String dataIRI)
+    {
+        return latest.containsKey(dataIRI);
+    }
+
+    // The latest time written, or null if the series is unknown or has no data yet
+    public OffsetDateTime get(String dataIRI)
+    {
+        Optional<OffsetDateTime> time = latest.get(dataIRI);
+        return time==null ? null : time.orElse(null);
+    }
+
+    // Records the maximum time read from the database, null meaning the series has no data yet
+    public void set(String dataIRI, OffsetDateTime time)
+    {
+        latest.put(dataIRI, Optional.ofNullable(time));
+    }
+
+    // Records a successful write up to the given time, never moving the watermark backwards
+    public void advance(String dataIRI, OffsetDateTime time)
+    {
+        latest.merge(dataIRI, Optional.of(time), (current, written) ->
+                current.isPresent() && !current.get().isBefore(time) ? current : written);
+    }
+
+    // Forgets the series after a failed write, whose outcome in the database is not known
+    public void invalidate(String dataIRI)
+    {
+        latest.remove(dataIRI);
+    }
+
+    public int size()
+    {
+        return latest.size();
+    }
+}
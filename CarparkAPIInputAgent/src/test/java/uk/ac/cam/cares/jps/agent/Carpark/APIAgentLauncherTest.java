@@ -4,6 +4,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -21,6 +22,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public class APIAgentLauncherTest {
 
@@ -37,7 +42,7 @@ public class APIAgentLauncherTest {
     private String[] args;
 
     @Before
-    public void initializePropertyFile() throws IOException 
+    public void initializePropertyFile() throws IOException
     {
         File agentPropertyFile= folder.newFile(agentPropertiesFilename);
         File clientPropertyFile= folder.newFile(clientPropertiesFilename);
@@ -51,14 +56,20 @@ public class APIAgentLauncherTest {
 
     }
 
+    @After
+    public void releaseComponents() {
+        // The components are shared by all requests, release them so that each test builds its own
+        new APIAgentLauncher().destroy();
+    }
+
     @Test
-    public void testProcessRequestParams() throws IOException 
+    public void testProcessRequestParams() throws IOException
     {
         APIAgentLauncher testLauncher = new APIAgentLauncher();
         //test empty requestparams
         JSONObject testRequestParams = new JSONObject();
         JSONObject testMessage = testLauncher.processRequestParameters(testRequestParams);
-        Assert.assertEquals(testMessage.get("Result"), "Request parameters are not defined correctly.");
+        Assert.assertEquals("Request Parameters not defined correctly", testMessage.get("Result"));
 
         //test non-empty requestParams but with incorrect keys
         testRequestParams.put("ageProperties", "TEST_AGENTPROPERTIES");
@@ -66,7 +77,8 @@ public class APIAgentLauncherTest {
         testRequestParams.put("clientProperties", "TEST_CLIENTPROPERTIES");
 
         testMessage = testLauncher.processRequestParameters(testRequestParams);
-        Assert.assertEquals(testMessage.get("Result"), "Request parameters are not defined correctly.");
+        Assert.assertEquals("Request Parameters not defined correctly", testMessage.get("Result"));
+        Assert.assertNull(APIAgentLauncher.propertiesFromRequest(testRequestParams));
 
         //test invalid environment variables in requestParams
         testRequestParams.remove("ageProperties");
@@ -74,21 +86,29 @@ public class APIAgentLauncherTest {
         testRequestParams.put("apiProperties", "TEST_APIPROPERTIES");
         testRequestParams.put("clientProperties", "TEST_CLIENTPROPERTIES");
 
-        String folderName = "mappings";
-        File mappingFolder = folder.newFolder(folderName);
-        // Create empty file in mappings folder
-        File mappingFile = new File(Paths.get(mappingFolder.getCanonicalPath(), "carpark.properties").toString());
-        Assert.assertTrue(mappingFile.createNewFile());
         //try and catch is required to use SystemLambda to mock environment variables
-        //invalid environment variables TEST_AGENTPROPERTIE should cause validateInput to return back false and processRequestParameters to
-        //return back the jsonMessage {"Result":"Request parameters are not defined correctly."}
+        //only TEST_AGENTPROPERTIES is set, so validateInput should return false and processRequestParameters should
+        //return the jsonMessage {"Result":"Request Parameters not defined correctly"}
         try {
-            SystemLambda.withEnvironmentVariable("TEST_AGENTPROPERTIES", mappingFolder.getCanonicalPath()).execute((Statement) () -> {
+            SystemLambda.withEnvironmentVariable("TEST_AGENTPROPERTIES", args[0]).execute((Statement) () -> {
                 JSONObject testMessage01 = testLauncher.processRequestParameters(testRequestParams);
-                Assert.assertEquals(testMessage01.get("Result"), "Request parameters are not defined correctly.");
+                Assert.assertEquals("Request Parameters not defined correctly", testMessage01.get("Result"));
+                Assert.assertFalse(APIAgentLauncher.hasValidProperties(testRequestParams));
             });
         } catch (Exception e) {
-            //no Exception should be thrown here
+            Assert.fail(e.getMessage());
+        }
+
+        //all three environment variables set resolves the properties files
+        try {
+            SystemLambda.withEnvironmentVariable("TEST_AGENTPROPERTIES", args[0])
+                    .and("TEST_CLIENTPROPERTIES", args[1])
+                    .and("TEST_APIPROPERTIES", args[2]).execute((Statement) () -> {
+                Assert.assertTrue(testLauncher.validateInput(testRequestParams));
+                Assert.assertArrayEquals(args, APIAgentLauncher.propertiesFromRequest(testRequestParams));
+            });
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
         }
     }
 
@@ -113,32 +133,25 @@ public class APIAgentLauncherTest {
             Assert.fail();
         }
         catch (JPSRuntimeException e) {
-            Assert.assertEquals("The Carpark input agent could not be constructed!", e.getMessage());
+            Assert.assertEquals("The CarparkAPI input agent could not be constructed!", e.getMessage());
         }
     }
 
     @Test
     public void testMainErrorWhenCreatingTSClient() throws IOException {
-        //create agent properties file
-        createProperAgentPropertiesFile();
-        //File testFile=new File(Paths.get(args[0],"agent.properties").toString());
-        //Assert.assertTrue(testFile.exists());
-        //Create folder with mapping file
-        String folderName = "mappings";
-        File mappingFolder = folder.newFolder(folderName);
-        // Create empty file in mappings folder
-        File mappingFile = new File(Paths.get(mappingFolder.getCanonicalPath(), "carpark.properties").toString());
-        Assert.assertTrue(mappingFile.createNewFile());
-        // Empty properties file for time series client should result in exception
-        try {
-            SystemLambda.withEnvironmentVariable("TEST_MAPPINGS", mappingFolder.getCanonicalPath()).execute(() -> {
+        // Use a mock for the input agent
+        try(MockedConstruction<APIInputAgent> mockAgent = Mockito.mockConstruction(APIInputAgent.class)) {
+            // Empty properties file for time series client should result in exception
+            try {
                 APIAgentLauncher.initializeAgent(args);
-            });
-        }
-        catch (Exception e) {
-            Assert.assertEquals("Could not construct the time series client needed by the input agent!", e.getMessage());
+                Assert.fail();
+            }
+            catch (JPSRuntimeException e) {
+                Assert.assertEquals("Could not construct the time series client needed by the input agent!", e.getMessage());
+                // The time series are not initialised without a database
+                Mockito.verify(mockAgent.constructed().get(0), Mockito.never()).initializeTimeSeriesIfNotExist(Mockito.any());
+            }
         }
-
     }
 
     @Test
@@ -154,8 +167,9 @@ public class APIAgentLauncherTest {
             catch (JPSRuntimeException e) {
                 // Ensure that the method to set the time series client was invoked once
                 Mockito.verify(mockAgent.constructed().get(0), Mockito.times(1)).setTsClient(Mockito.any());
-                // Ensure that the initialization was invoked once
-                Mockito.verify(mockAgent.constructed().get(0), Mockito.times(1)).initializeTimeSeriesIfNotExist();
+                // Ensure that the initialization and the watermarks used the database once
+                Mockito.verify(mockAgent.constructed().get(0), Mockito.times(1)).initializeTimeSeriesIfNotExist(Mockito.any());
+                Mockito.verify(mockAgent.constructed().get(0), Mockito.times(1)).loadWatermarks(Mockito.any());
                 Assert.assertEquals("Could not construct the carpark API connector needed to interact with the API!", e.getMessage());
             }
         }
@@ -166,11 +180,14 @@ public class APIAgentLauncherTest {
     public void testMainErrorWhenRetrievingReadings() throws IOException {
         createProperClientPropertiesFile();
         createProperAPIPropertiesFile();
-        // Use a mock for the input agent
-        try(MockedConstruction<APIInputAgent> ignored = Mockito.mockConstruction(APIInputAgent.class)) {
-            // Use a mock for the connector that throws an exception when readings are requested
+        // Use mocks for the input agent and the query builder
+        try(MockedConstruction<APIInputAgent> ignored = Mockito.mockConstruction(APIInputAgent.class);
+            MockedConstruction<APIQueryBuilder> ignoredBuilder = Mockito.mockConstruction(APIQueryBuilder.class)) {
+            // Use a mock for the connector that fails when readings are requested
+            CompletableFuture<Optional<List<CarparkReading>>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new JPSRuntimeException("exception"));
             try(MockedConstruction<APIConnector> mockConnector = Mockito.mockConstruction(APIConnector.class,
-                    (mock, context) -> Mockito.when(mock.getReadings()).thenThrow(new JPSRuntimeException("exception")))) {
+                    (mock, context) -> Mockito.when(mock.getCarparkReadingsIfChangedAsync()).thenReturn(failed))) {
                 try {
                     APIAgentLauncher.initializeAgent(args);
                     Assert.fail();
@@ -190,52 +207,30 @@ public class APIAgentLauncherTest {
         createProperClientPropertiesFile();
         createProperAPIPropertiesFile();
         // Create dummy readings to return
-       
-        String[] keys = {"CarParkID","Area","Development","Location","AvailableLots","LotType","Agency"};
-        String[] carparks = {"Carpark1","Carpark2","Carpark3"};
-        JSONObject readings = new JSONObject();
-        JSONArray jsArr = new JSONArray();
-        String value="";
-
-        for(int i=0;i<3;i++)
-        {
-            JSONObject currentCarpark = new JSONObject();
-            currentCarpark.put("CarParkID",carparks[i]);
-
-            for(int j=1;j<7;j++)
-            {
-                currentCarpark.put(keys[j],value);
-            }
-            jsArr.put(i,currentCarpark);
-        }
-
-        readings.put("value",jsArr);
-
-
-        // Use a mock for the input agent
-        try(MockedConstruction<APIInputAgent> mockAgent = Mockito.mockConstruction(APIInputAgent.class)) {
+        List<CarparkReading> readings = Arrays.asList(
+                new CarparkReading("Carpark1", "", "", "", "C", 10, ""),
+                new CarparkReading("Carpark2", "", "", "", "C", 20, ""),
+                new CarparkReading("Carpark3", "", "", "", "Y", 30, ""));
+        JSONObject prices = new JSONObject().put("result", new JSONObject().put("records", new JSONArray()));
+
+        // Use mocks for the input agent and the query builder
+        try(MockedConstruction<APIInputAgent> mockAgent = Mockito.mockConstruction(APIInputAgent.class);
+            MockedConstruction<APIQueryBuilder> mockBuilder = Mockito.mockConstruction(APIQueryBuilder.class)) {
             // Use a mock for the connector that returns the dummy readings
             try(MockedConstruction<APIConnector> ignored = Mockito.mockConstruction(APIConnector.class,
                     (mock, context) -> {
-                        Mockito.when(mock.getReadings()).thenReturn(readings);
+                        Mockito.when(mock.getCarparkReadingsIfChangedAsync()).thenReturn(CompletableFuture.completedFuture(Optional.of(readings)));
+                        Mockito.when(mock.getPricesAsync()).thenReturn(CompletableFuture.completedFuture(prices));
                     })) {
-                APIAgentLauncher.initializeAgent(args);
-                // Ensure that the update of the agent was invoked
+                JSONObject result = APIAgentLauncher.initializeAgent(args);
+                // Ensure that the update of the agent and the instantiation were invoked
                 Mockito.verify(mockAgent.constructed().get(0), Mockito.times(1)).updateData(readings);
+                Mockito.verify(mockBuilder.constructed().get(0), Mockito.times(1)).instantiateIfNotInstantiated(readings, prices);
+                Assert.assertTrue(CarparkAgentContext.wroteData(result));
             }
         }
     }
 
-    private void createProperAgentPropertiesFile() throws IOException {
-        // Create a properties file that points to the example/test mapping folder in the resources //
-        // Create mappings folder
-        // Filepath for the properties file
-        String propertiesFile = Paths.get(folder.getRoot().toString(), agentPropertiesFilename).toString();
-        try (FileWriter writer = new FileWriter(propertiesFile, false)) {
-            writer.write("carpark.mappingfolder=TEST_MAPPINGS");
-        }
-    }
-
     private void createProperClientPropertiesFile() throws IOException {
         // Filepath for the properties file
         String propertiesFile = Paths.get(folder.getRoot().toString(), clientPropertiesFilename).toString();
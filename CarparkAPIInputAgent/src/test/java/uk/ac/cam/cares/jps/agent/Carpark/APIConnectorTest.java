@@ -0,0 +1,296 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+public class APIConnectorTest {
+    // Temporary folder to place a properties file
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Fields used for the mock API calls
+    private static final int PORT = 8089;
+    private static final String AVAILABILITY_PATH = "/availability";
+    private static final String TEST_URL = "http://localhost:" + PORT + AVAILABILITY_PATH;
+    // Mocking objects to mock the carpark API calls, compressed only when a test asks for it
+    @Rule
+    public WireMockRule carparkAPIMock = new WireMockRule(options().port(PORT).gzipDisabled(true));
+
+    private APIConnector testConnector;
+
+    @After
+    public void closeTestConnector() throws IOException {
+        if (testConnector != null) {
+            testConnector.close();
+        }
+        carparkAPIMock.resetAll();
+    }
+
+    @Test
+    public void caparkAPIConnectorConstructorTest() throws NoSuchFieldException, IllegalAccessException, IOException
+    {
+        // One connector constructed using the url, date and account key directly
+        testConnector = new APIConnector("url", "date", "password", "pricing_url");
+        // One connector constructed using a properties file
+        String propertiesFile = Paths.get(folder.getRoot().toString(), "api.properties").toString();
+        writePropertyFile(propertiesFile, Arrays.asList("carpark.api_url=url", "carpark.accountKey=password"));
+        try (APIConnector connectorFile = new APIConnector(propertiesFile)) {
+            // Retrieve private fields for accountKey and the url. Check that they were set correctly
+            Field apiAccountKey = APIConnector.class.getDeclaredField("accountKey");
+            apiAccountKey.setAccessible(true);
+            Assert.assertEquals("password", apiAccountKey.get(testConnector));
+            Assert.assertEquals("password", apiAccountKey.get(connectorFile));
+
+            Field urlField = APIConnector.class.getDeclaredField("API_URL");
+            urlField.setAccessible(true);
+            Assert.assertEquals("url", urlField.get(testConnector));
+            Assert.assertEquals("url", urlField.get(connectorFile));
+        }
+    }
+
+    @Test
+    public void loadAPIConfigsTest() throws NoSuchMethodException, IllegalAccessException, IOException, NoSuchFieldException
+    {
+        testConnector = new APIConnector("url", "date", "password", "pricing_url");
+        // Filepath to not yet created file in temporary test folder
+        String filepath = Paths.get(folder.getRoot().toString(), "carpark.properties").toString();
+        // Error messages
+        String fileNotFound = "There was no file found in the path";
+        String noAPIKey = "The file is missing: \"carpark.accountKey=<accountKey>\"";
+        String noURL = "The file is missing: \"carpark.api_url=<api_url>\"";
+
+        // Set private method to be accessible
+        Method loadAPIConfig = APIConnector.class.getDeclaredMethod("loadAPIConfigs", String.class);
+        loadAPIConfig.setAccessible(true);
+
+        // Test for non-existing properties file
+        try {
+            loadAPIConfig.invoke(testConnector, filepath);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(FileNotFoundException.class, e.getCause().getClass());
+            Assert.assertEquals(fileNotFound, e.getCause().getMessage());
+        }
+
+        // Test for missing accountKey by creating a file only containing url
+        writePropertyFile(filepath, Collections.singletonList("carpark.api_url=url"));
+        try {
+            loadAPIConfig.invoke(testConnector, filepath);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(IOException.class, e.getCause().getClass());
+            Assert.assertEquals(noAPIKey, e.getCause().getMessage());
+        }
+
+        // Test for missing url by creating a file only containing accountKey
+        writePropertyFile(filepath, Collections.singletonList("carpark.accountKey=key"));
+        try {
+            loadAPIConfig.invoke(testConnector, filepath);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(IOException.class, e.getCause().getClass());
+            Assert.assertEquals(noURL, e.getCause().getMessage());
+        }
+
+        // Test for proper accountKey and url
+        writePropertyFile(filepath, Arrays.asList("carpark.api_url=test_url", "carpark.accountKey=test_key"));
+        try {
+            loadAPIConfig.invoke(testConnector, filepath);
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+
+        // Retrieve private fields for accountKey and the url. Check that they were set correctly
+        Field accountKeyField = APIConnector.class.getDeclaredField("accountKey");
+        accountKeyField.setAccessible(true);
+        Assert.assertEquals("test_key", accountKeyField.get(testConnector));
+
+        Field urlField = APIConnector.class.getDeclaredField("API_URL");
+        urlField.setAccessible(true);
+        Assert.assertEquals("test_url", urlField.get(testConnector));
+
+        // Test for a wave of pages and their hedges that does not fit into the connection pool
+        writePropertyFile(filepath, Arrays.asList("carpark.api_url=url", "carpark.accountKey=key", "carpark.max_parallel_pages=5", "http.max_connections=10"));
+        try {
+            loadAPIConfig.invoke(testConnector, filepath);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(IOException.class, e.getCause().getClass());
+            Assert.assertTrue(e.getCause().getMessage().contains("it must be at least 12"));
+        }
+    }
+
+    private void writePropertyFile(String filepath, List<String> properties) throws IOException {
+        // Overwrite potentially existing properties file
+        FileWriter writer = new FileWriter(filepath, false);
+        // Populate file
+        for (String s : properties) {
+            writer.write(s + "\n");
+        }
+        // Close the file and return the file
+        writer.close();
+    }
+
+    // Connector reading the mock API, with the given settings on top of the url and account key
+    private APIConnector connector(String... properties) throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList("carpark.api_url=" + TEST_URL, "carpark.accountKey=key", "http.hedging=false", "http.retry_backoff=1"));
+        lines.addAll(Arrays.asList(properties));
+        String propertiesFile = Paths.get(folder.getRoot().toString(), "api.properties").toString();
+        writePropertyFile(propertiesFile, lines);
+        return new APIConnector(propertiesFile);
+    }
+
+    // An availability response body holding the carparks with the given IDs, one car lot type each
+    private static String page(String... carparkIDs) {
+        JSONArray value = new JSONArray();
+        for (String id : carparkIDs) {
+            value.put(new JSONObject().put("CarParkID", id).put("Area", "Marina").put("Development", "Carpark " + id)
+                    .put("Location", "1.29375 103.85718").put("AvailableLots", 10).put("LotType", "C").put("Agency", "LTA"));
+        }
+        return new JSONObject().put("value", value).toString();
+    }
+
+    private static List<String> carparkIDs(List<CarparkReading> readings) {
+        List<String> ids = new ArrayList<>();
+        for (CarparkReading reading : readings) {
+            ids.add(reading.getCarparkID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPagedFetchStopsAtShortPage() throws IOException {
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", absent())
+                .willReturn(ok().withBody(page("1", "2"))));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("2"))
+                .willReturn(ok().withBody(page("3", "4"))));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("4"))
+                .willReturn(ok().withBody(page("5"))));
+        // A page past the end may be requested within the last wave, its failure does not matter
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("6"))
+                .willReturn(serverError()));
+        testConnector = connector("carpark.page_size=2", "carpark.max_parallel_pages=3");
+
+        // A first wave of one page, as the page count is not known yet, then a wave of three pages ending at the short one
+        Assert.assertEquals(Arrays.asList("1", "2", "3", "4", "5"), carparkIDs(testConnector.getCarparkReadings()));
+        Assert.assertEquals(3, testConnector.getLastPageCount());
+        carparkAPIMock.verify(1, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", absent())
+                .withHeader("AccountKey", equalTo("key")));
+        carparkAPIMock.verify(1, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("4")));
+        carparkAPIMock.verify(0, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("8")));
+
+        // The next cycle fetches the three known pages in a single wave
+        carparkAPIMock.resetRequests();
+        Assert.assertEquals(5, testConnector.getCarparkReadings().size());
+        carparkAPIMock.verify(3, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)));
+    }
+
+    @Test
+    public void testPagedFetchFailsOnMissingPage() throws IOException {
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", absent())
+                .willReturn(ok().withBody(page("1", "2"))));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withQueryParam("$skip", equalTo("2"))
+                .willReturn(serverError()));
+        testConnector = connector("carpark.page_size=2", "carpark.max_parallel_pages=2", "http.max_retries=0");
+        try {
+            testConnector.getCarparkReadings();
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Carpark data could not be retrieved", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testUnchangedDataIsRevalidated() throws IOException {
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH))
+                .willReturn(ok().withHeader("ETag", "\"v1\"").withHeader("Last-Modified", "Tue, 01 Nov 2022 00:00:00 GMT").withBody(page("1", "2"))));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).atPriority(1)
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .withHeader("If-Modified-Since", equalTo("Tue, 01 Nov 2022 00:00:00 GMT"))
+                .willReturn(status(304)));
+        testConnector = connector("carpark.paged_fetch=false");
+
+        Assert.assertEquals(Arrays.asList("1", "2"), carparkIDs(testConnector.getCarparkReadingsIfChanged().get()));
+        // The second request is answered with 304, the cached page keeps the fingerprint and the cycle is skipped
+        Assert.assertFalse(testConnector.getCarparkReadingsIfChanged().isPresent());
+        carparkAPIMock.verify(1, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withHeader("If-None-Match", equalTo("\"v1\"")));
+
+        // A failed cycle forgets the fingerprint so that the same readings are handed out again
+        testConnector.invalidateFingerprint();
+        Assert.assertEquals(Arrays.asList("1", "2"), carparkIDs(testConnector.getCarparkReadingsIfChanged().get()));
+    }
+
+    @Test
+    public void testChangedBodyWithoutValidators() throws IOException {
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).inScenario("update").whenScenarioStateIs(STARTED)
+                .willReturn(ok().withBody(page("1", "2"))).willSetStateTo("unchanged"));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).inScenario("update").whenScenarioStateIs("unchanged")
+                .willReturn(ok().withBody(page("1", "2"))).willSetStateTo("changed"));
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).inScenario("update").whenScenarioStateIs("changed")
+                .willReturn(ok().withBody(page("1", "3"))));
+        testConnector = connector("carpark.paged_fetch=false");
+
+        Assert.assertTrue(testConnector.getCarparkReadingsIfChanged().isPresent());
+        // Identical bytes give the same fingerprint even when the server does not support conditional requests
+        Assert.assertFalse(testConnector.getCarparkReadingsIfChanged().isPresent());
+        Assert.assertEquals(Arrays.asList("1", "3"), carparkIDs(testConnector.getCarparkReadingsIfChanged().get()));
+        carparkAPIMock.verify(0, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withHeader("If-None-Match", matching(".*")));
+    }
+
+    private static byte[] gzip(String body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testGzipEncodedResponse() throws IOException {
+        String body = page("1", "2", "3");
+        byte[] compressed = gzip(body);
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).withHeader("Accept-Encoding", containing("gzip"))
+                .willReturn(ok().withHeader("Content-Encoding", "gzip").withBody(compressed)));
+        testConnector = connector("carpark.paged_fetch=false");
+
+        Assert.assertEquals(Arrays.asList("1", "2", "3"), carparkIDs(testConnector.getCarparkReadings()));
+        // Counted as received and after decoding
+        Assert.assertEquals(compressed.length, testConnector.getCompressedBytes());
+        Assert.assertEquals(body.getBytes(StandardCharsets.UTF_8).length, testConnector.getDecompressedBytes());
+    }
+
+    @Test
+    public void testCompressionDisabled() throws IOException {
+        carparkAPIMock.stubFor(get(urlPathEqualTo(AVAILABILITY_PATH)).willReturn(ok().withBody(page("1"))));
+        testConnector = connector("carpark.paged_fetch=false", "http.compression=false");
+
+        Assert.assertEquals(Collections.singletonList("1"), carparkIDs(testConnector.getCarparkReadings()));
+        carparkAPIMock.verify(0, getRequestedFor(urlPathEqualTo(AVAILABILITY_PATH)).withHeader("Accept-Encoding", matching(".*")));
+        Assert.assertEquals(testConnector.getCompressedBytes(), testConnector.getDecompressedBytes());
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
 import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
 import com.github.stefanbirkner.systemlambda.SystemLambda;
@@ -15,9 +16,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.time.OffsetDateTime;
-import java.time.ZoneOffset;
 import java.util.*;
 
 public class APIInputAgentTest {
@@ -31,16 +32,12 @@ public class APIInputAgentTest {
     @SuppressWarnings("unchecked")
     private final TimeSeriesClient<OffsetDateTime> mockTSClient = (TimeSeriesClient<OffsetDateTime>) Mockito.mock(TimeSeriesClient.class);
 
-    // A default list of IRIs
-    private final List<String> iris = Arrays.asList("iri1", "iri2", "iri3","iri4","iri5","iri6","iri7");
-    // Default list of JSON keys
-    private final String[] keys = {"CarParkID","Area","Development","Location","AvailableLots","LotType","Agency"};
-    private final String[] carparks = {"Carpark1","Carpark2","Carpark3"};
-    // Default list of carparks
-
-    private ArrayList<Double> carparkValues;
-    // Readings used by several tests
-    JSONObject carparkReadings;
+    // Default list of mapped carparks and lot types, with their IRIs
+    private final String[] carparks = {"A1", "A2", "A3"};
+    private final String[] lotTypes = {"C", "C", "Y"};
+    private final List<String> iris = Arrays.asList("example:prefix/api_A1_C", "example:prefix/api_A2_C", "example:prefix/api_A3_Y");
+    // Readings used by several tests, including one of a carpark that is not mapped
+    private List<CarparkReading> carparkReadings;
 
     @Before
     public void initializeAgent() throws IOException {
@@ -51,13 +48,13 @@ public class APIInputAgentTest {
         // Add mapping file into the empty folder
         String mappingFile = Paths.get(mappingFolder.getAbsolutePath(), "example_mapping.properties").toString();
         ArrayList<String> mappings = new ArrayList<>();
-        for (String key: keys) {
-            mappings.add(key + "=example:prefix/api_" + key);
+        for (int i = 0; i < carparks.length; i++) {
+            mappings.add("AvailableLots_" + carparks[i] + "_" + lotTypes[i] + "=" + iris.get(i));
         }
         writePropertyFile(mappingFile, mappings);
         // Filepath for the properties file
         String propertiesFile = Paths.get(folder.getRoot().toString(), "agent.properties").toString();
-        writePropertyFile(propertiesFile, Collections.singletonList("carpark.mappingfolder=TEST_MAPPINGS"));
+        writePropertyFile(propertiesFile, Collections.singletonList("Carpark.mappingfolder=TEST_MAPPINGS"));
         // To create testAgent without an exception being thrown, SystemLambda is used to mock an environment variable
         // To mock the environment variable, a try catch need to be used
         try {
@@ -74,23 +71,11 @@ public class APIInputAgentTest {
 
     @Before
     public void createExampleReadings() {
-        String value="";
-        carparkReadings = new JSONObject();
-        JSONArray jsArr= new JSONArray();
-
-        for(int i=0;i<3;i++)
-        {
-            JSONObject currentCarpark = new JSONObject();
-            currentCarpark.put("CarParkID",carparks[i]);
-
-            for(int j=1;j<7;j++)
-            {
-                currentCarpark.put(keys[j],value);
-            }
-            jsArr.put(i,currentCarpark);
+        carparkReadings = new ArrayList<>();
+        for (int i = 0; i < carparks.length; i++) {
+            carparkReadings.add(new CarparkReading(carparks[i], "Area", "Development", "1.3 103.8", lotTypes[i], 10 * (i + 1), "HDB"));
         }
-        
-        carparkReadings.put("value",jsArr);
+        carparkReadings.add(new CarparkReading("B9", "Area", "Development", "1.3 103.8", "C", 5, "HDB"));
     }
 
 
@@ -105,29 +90,26 @@ public class APIInputAgentTest {
             Assert.fail();
         }
         catch (IOException e) {
-            Assert.assertEquals("The key carpark.mappingfolder cannot be found in the properties file.", e.getMessage());
+            Assert.assertEquals("The key Carpark.mappingfolder cannot be found in the file", e.getMessage());
         }
 
-        // Create a property file with a mapping folder that does not exist
-        String folderName = "no_valid_folder";
-        writePropertyFile(propertiesFile, Collections.singletonList("carpark.mappingfolder=" + folderName));
+        // Create a property file with a mapping folder environment variable that is not set
+        writePropertyFile(propertiesFile, Collections.singletonList("Carpark.mappingfolder=NO_VALID_FOLDER"));
         // Run constructor that should give an exception
         try {
             new APIInputAgent(propertiesFile);
             Assert.fail();
         }
         catch (InvalidPropertiesFormatException e) {
-            Assert.assertEquals("The properties file does not contain the key carpark.mappingfolder "+
-                            "with a path to the folder containing the required JSON key to IRI mappings.",e.getMessage());
+            Assert.assertEquals("The properties file does not contain the key Carpark.mappingfolder with a path to the folder "+
+                            "containing the required JSON key to IRI Mappings", e.getMessage());
 
         }
 
         // Create an empty folder
-        folderName = "mappings_test";
-        File mappingFolder = folder.newFolder(folderName);
+        File mappingFolder = folder.newFolder("mappings_test");
         // Create a property file with the empty folder
-        folderName = mappingFolder.getCanonicalPath().replace("\\","/");
-        writePropertyFile(propertiesFile, Collections.singletonList("carpark.mappingfolder=TEST_MAPPINGS"));
+        writePropertyFile(propertiesFile, Collections.singletonList("Carpark.mappingfolder=TEST_MAPPINGS"));
         // Run constructor that should give an exception
         try {
             SystemLambda.withEnvironmentVariable("TEST_MAPPINGS", mappingFolder.getCanonicalPath()).execute(() -> {
@@ -136,13 +118,13 @@ public class APIInputAgentTest {
             });
         }
         catch (Exception e) {
-            Assert.assertTrue(e.getMessage().contains("No files in the folder:"));
+            Assert.assertEquals("No files in folder", e.getMessage());
         }
 
         // Add mapping files into the empty folder
         // All IRIs set
         String firstMappingFile = Paths.get(mappingFolder.getAbsolutePath(), "firstMapping.properties").toString();
-        String[] keys = {"key1", "key2" ,"key3"};
+        String[] keys = {"AvailableLots_K1_C", "AvailableLots_K2_C", "AvailableLots_K3_C"};
         ArrayList<String> mappings = new ArrayList<>();
         for (String key: keys) {
             mappings.add(key + "=example:prefix/api_" + key);
@@ -166,10 +148,11 @@ public class APIInputAgentTest {
             });
         }
         catch (Exception e) {
+            Assert.fail(e.getMessage());
         }
-        // Assert that the mappings were saved back (now bigger file size)
-        Assert.assertTrue(Files.size(Paths.get(firstMappingFile)) > firstMappingFileSize);
+        // Assert that the generated IRIs were saved back (now bigger file size)
         Assert.assertTrue(Files.size(Paths.get(secondMappingFile)) > secondMappingFileSize);
+        Assert.assertTrue(Files.size(Paths.get(firstMappingFile)) >= firstMappingFileSize);
     }
 
     private void writePropertyFile(String filepath, List<String> properties) throws IOException {
@@ -184,347 +167,199 @@ public class APIInputAgentTest {
     }
 
     @Test
-    public void testTimeSeriesExistAllIRIsTrue() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        // Make method accessible
-        Method timeSeriesExist = APIInputAgent.class.getDeclaredMethod("timeSeriesExist", List.class);
-        timeSeriesExist.setAccessible(true);
-        // Set the mock to return true for any IRI
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(Mockito.anyString())).thenReturn(true);
-        // Empty list should return true
-        Assert.assertTrue((Boolean) timeSeriesExist.invoke(testAgent, new ArrayList<String>()));
-        // Should return true as all IRIs are attached (based on the mock)
-        Assert.assertTrue((Boolean) timeSeriesExist.invoke(testAgent, iris));
-        // Check also that the check was invoked for all keys
-        for (String iri : iris) {
-            Mockito.verify(mockTSClient, Mockito.times(1)).checkDataHasTimeSeries(iri);
-        }
+    public void testInitializeTimeSeriesIfNotExistCreateAll() throws SQLException {
+        // No IRI has a time series yet
+        TimeSeriesDatabase database = mockDatabase(new HashSet<>());
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        // All IRIs are checked in one query and initialised together
+        Mockito.verify(database, Mockito.times(1)).lookupColumns(Mockito.any(), Mockito.anyCollection());
+        Mockito.verify(mockTSClient, Mockito.times(1)).initTimeSeries(Mockito.eq(iris), Mockito.anyList(), Mockito.anyString());
     }
 
     @Test
-    public void testTimeSeriesExistAllOneIRIFalse() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        // Make method accessible
-        Method timeSeriesExist = APIInputAgent.class.getDeclaredMethod("timeSeriesExist", List.class);
-        timeSeriesExist.setAccessible(true);
-        // Set the mock to return false on second IRI
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(iris.get(0))).thenReturn(true);
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(iris.get(1))).thenReturn(false);
-        // Should return false as second IRIs is not attached (based on the mock)
-        Assert.assertFalse((Boolean) timeSeriesExist.invoke(testAgent, iris));
+    public void testInitializeTimeSeriesIfNotExistCreateNone() throws SQLException {
+        // Every IRI already has a time series
+        TimeSeriesDatabase database = mockDatabase(new HashSet<>(iris));
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        Mockito.verify(mockTSClient, Mockito.never()).initTimeSeries(Mockito.anyList(), Mockito.anyList(), Mockito.anyString());
+
+        // The result is cached, a second check does not query the database again
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        Mockito.verify(database, Mockito.times(1)).connect();
     }
 
     @Test
-    public void testTimeSeriesExistAllIRIFalse() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        // Make method accessible
-        Method timeSeriesExist = APIInputAgent.class.getDeclaredMethod("timeSeriesExist", List.class);
-        timeSeriesExist.setAccessible(true);
-        // Set the mock to return false for any IRI
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(Mockito.anyString())).thenReturn(false);
-        // Should return false as no IRI is attached (based on the mock)
-        Assert.assertFalse((Boolean) timeSeriesExist.invoke(testAgent, iris));
-        // Should have returned false after first IRI
-        Mockito.verify(mockTSClient, Mockito.times(1)).checkDataHasTimeSeries(iris.get(0));
-        Mockito.verify(mockTSClient, Mockito.never()).checkDataHasTimeSeries(iris.get(1));
-        Mockito.verify(mockTSClient, Mockito.never()).checkDataHasTimeSeries(iris.get(2));
+    public void testInitializeTimeSeriesIfNotExistCreateMissing() throws SQLException {
+        // Only the first IRI has a time series, e.g. after keys were added to the mapping
+        TimeSeriesDatabase database = mockDatabase(Collections.singleton(iris.get(0)));
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        // Only the missing IRIs are initialised
+        Mockito.verify(mockTSClient, Mockito.times(1)).initTimeSeries(Mockito.eq(iris.subList(1, 3)), Mockito.anyList(), Mockito.anyString());
+
+        // Nothing is left to check or initialise afterwards
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        Mockito.verify(database, Mockito.times(1)).connect();
+        Mockito.verify(mockTSClient, Mockito.times(1)).initTimeSeries(Mockito.anyList(), Mockito.anyList(), Mockito.anyString());
     }
 
     @Test
-    public void testInitializeTimeSeriesIfNotExistCreateAll() {
-        // Set the mock to return false for any IRI
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(Mockito.anyString())).thenReturn(false);
-        // Run the initialization method
-        testAgent.initializeTimeSeriesIfNotExist();
-        // Should have invoked the time series initialization for each mapping
-        Mockito.verify(mockTSClient, Mockito.times(testAgent.getNumberOfTimeSeries()))
-                .initTimeSeries(Mockito.anyList(), Mockito.anyList(), Mockito.anyString(), Mockito.any(), Mockito.any(), Mockito.any());
+    public void testInitializeTimeSeriesWithoutCentralTable() throws SQLException {
+        // Before the first time series is initialised the central table does not exist
+        TimeSeriesDatabase database = Mockito.mock(TimeSeriesDatabase.class);
+        Mockito.when(database.connect()).thenReturn(Mockito.mock(Connection.class));
+        Mockito.when(database.lookupColumns(Mockito.any(), Mockito.anyCollection())).thenThrow(new SQLException("relation does not exist", "42P01"));
+        testAgent.initializeTimeSeriesIfNotExist(database);
+        Mockito.verify(mockTSClient, Mockito.times(1)).initTimeSeries(Mockito.eq(iris), Mockito.anyList(), Mockito.anyString());
+
+        // Any other error is not mistaken for missing time series
+        Mockito.doThrow(new SQLException("connection refused", "08001")).when(database).lookupColumns(Mockito.any(), Mockito.anyCollection());
+        APIInputAgent otherAgent = testAgentWithSameMappings();
+        try {
+            otherAgent.initializeTimeSeriesIfNotExist(database);
+            Assert.fail();
+        }
+        catch (JPSRuntimeException e) {
+            Assert.assertEquals("Could not check which time series exist", e.getMessage());
+        }
     }
 
     @Test
-    public void testInitializeTimeSeriesIfNotExistCreateNone() {
-        // Set the mock to return true for any IRI
-        Mockito.when(mockTSClient.checkDataHasTimeSeries(Mockito.anyString())).thenReturn(true);
-        // Run the initialization method
-        testAgent.initializeTimeSeriesIfNotExist();
-        // Should not have invoked the time series initialization for any mapping
-        Mockito.verify(mockTSClient, Mockito.never())
-                .initTimeSeries(Mockito.anyList(), Mockito.anyList(), Mockito.anyString());
+    public void testPartialInitialisationWritesEachTable() throws SQLException {
+        // The first IRI is stored in an existing table, the others are initialised into a new one
+        testAgent.initializeTimeSeriesIfNotExist(mockDatabase(Collections.singleton(iris.get(0))));
+        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(null);
+        testAgent.updateData(carparkReadings);
+        // Each table is written with its own time series and has its own watermark
+        List<TimeSeries<OffsetDateTime>> written = captureWrittenTimeSeries(2);
+        Assert.assertEquals(iris.subList(0, 1), written.get(0).getDataIRIs());
+        Assert.assertEquals(iris.subList(1, 3), written.get(1).getDataIRIs());
+        Assert.assertEquals(20, ((Number) written.get(1).getValues(iris.get(1)).get(0)).intValue());
+        Mockito.verify(mockTSClient).getMaxTime(iris.get(0));
+        Mockito.verify(mockTSClient).getMaxTime(iris.get(1));
+        Mockito.verify(mockTSClient, Mockito.never()).getMaxTime(iris.get(2));
     }
 
+    // Mocks a database in which only the given IRIs have a time series
+    private TimeSeriesDatabase mockDatabase(Set<String> existing) throws SQLException {
+        TimeSeriesDatabase database = Mockito.mock(TimeSeriesDatabase.class);
+        Mockito.when(database.connect()).thenReturn(Mockito.mock(Connection.class));
+        Mockito.when(database.lookupColumns(Mockito.any(), Mockito.anyCollection())).thenAnswer(invocation -> {
+            Map<String, TimeSeriesDatabase.Column> columns = new HashMap<>();
+            for (Object iri : (Collection<?>) invocation.getArgument(1)) {
+                if (existing.contains(iri)) {
+                    columns.put((String) iri, new TimeSeriesDatabase.Column((String) iri, "ts", "table", "column"));
+                }
+            }
+            return columns;
+        });
+        return database;
+    }
+
+    private APIInputAgent testAgentWithSameMappings() {
+        String propertiesFile = Paths.get(folder.getRoot().toString(), "agent.properties").toString();
+        APIInputAgent[] agent = new APIInputAgent[1];
+        try {
+            SystemLambda.withEnvironmentVariable("TEST_MAPPINGS", Paths.get(folder.getRoot().toString(), "mappings").toString()).execute(() -> {
+                agent[0] = new APIInputAgent(propertiesFile);
+            });
+        }
+        catch (Exception e) {
+            Assert.fail(e.getMessage());
+        }
+        agent[0].setTsClient(mockTSClient);
+        return agent[0];
+    }
 
     @Test
     public void testUpdateDataExceptions() {
-        // Initialize readings
+        // Empty readings
         try {
-            JSONObject carparkReadings = new JSONObject();
-            testAgent.updateData(carparkReadings);
+            testAgent.updateData(new ArrayList<>());
             Assert.fail();
         }
-
-        catch (Exception e) {
-            Assert.assertTrue(e.getCause().getMessage().contains("Readings can not be empty!"));
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("Readings can not be empty!", e.getMessage());
         }
-        // Create readings with timestamps and missing keys
-        // Should trigger an exception due to missing keys
+        // A response without readings
         try {
-            JSONArray jsArr = carparkReadings.getJSONArray("value");
-            for (int i=0;i<jsArr.length();i++) {
-                JSONObject currentEntry = jsArr.getJSONObject(i);
-                currentEntry.remove(keys[0]);
-                currentEntry.remove(keys[1]);
-            }
-            testAgent.updateData(carparkReadings);
+            testAgent.updateData(new JSONObject());
             Assert.fail();
         }
-        catch (IllegalArgumentException e) {
-            Assert.assertEquals("Readings can not be converted to proper time series!", e.getMessage());
-            Assert.assertEquals(NoSuchElementException.class, e.getCause().getClass());
+        catch (JPSRuntimeException e) {
+            Assert.assertTrue(e.getMessage().contains("value"));
         }
+        Mockito.verify(mockTSClient, Mockito.never()).addTimeSeriesData(Mockito.any());
     }
 
     @Test
     public void testUpdateData() {
         // Set up the mock client
-        // Use a max time that is clearly before any of the example readings
+        // Use a max time that is clearly before the readings
         Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(OffsetDateTime.parse("1988-07-10T00:50:00+00:00"));
         // Run the update
         testAgent.updateData(carparkReadings);
-        // Capture the arguments that the add data method was called with
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<TimeSeries<OffsetDateTime>> timeSeriesArgument = ArgumentCaptor.forClass(TimeSeries.class);
-        // Ensure that the update was called for each time series
-        Mockito.verify(mockTSClient, Mockito.times(testAgent.getNumberOfTimeSeries())).addTimeSeriesData(timeSeriesArgument.capture());
-        // Ensure that the timeseries objects have the correct structure
-        int numIRIs = 0;
-        JSONArray jsArr = carparkReadings.getJSONArray("value");
-        JSONObject currentEntry = jsArr.getJSONObject(0);
-        for(TimeSeries<OffsetDateTime> ts: timeSeriesArgument.getAllValues()) {
-            // Check that number of timestamps is correct
-            Assert.assertEquals(jsArr.length(), ts.getTimes().size());
-            numIRIs = numIRIs + ts.getDataIRIs().size();
+        // The mapping is written as one time series holding the value of each mapped carpark at a single time
+        TimeSeries<OffsetDateTime> ts = captureWrittenTimeSeries(1).get(0);
+        Assert.assertEquals(1, ts.getTimes().size());
+        Assert.assertEquals(iris, ts.getDataIRIs());
+        for (int i = 0; i < iris.size(); i++) {
+            Assert.assertEquals(10 * (i + 1), ((Number) ts.getValues(iris.get(i)).get(0)).intValue());
         }
-        // Number of unique keys in readings should match the number of IRIs
-        Set<String> keys = new HashSet<>(currentEntry.keySet());
-        keys.addAll(currentEntry.keySet());
+    }
 
-        Assert.assertEquals(keys.size(), numIRIs);
+    @Test
+    public void testUpdateDataMissingReading() {
+        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(null);
+        // Only the first carpark reports a value in this cycle
+        testAgent.updateData(carparkReadings.subList(0, 1));
+        TimeSeries<OffsetDateTime> ts = captureWrittenTimeSeries(1).get(0);
+        Assert.assertEquals(10, ((Number) ts.getValues(iris.get(0)).get(0)).intValue());
+        Assert.assertEquals(Double.NaN, ((Number) ts.getValues(iris.get(1)).get(0)).doubleValue(), 0);
+        Assert.assertEquals(Double.NaN, ((Number) ts.getValues(iris.get(2)).get(0)).doubleValue(), 0);
     }
 
     @Test
-    public void testUpdateDataNoDataInDatabase() {
-        // Set up the mock client
-        // The max time is null since no data is in the database yet
+    public void testUpdateDataFromJSON() {
         Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(null);
-        // Run the update
-        testAgent.updateData(carparkReadings);
-        // Capture the arguments that the add data method was called with
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<TimeSeries<OffsetDateTime>> timeSeriesArgument = ArgumentCaptor.forClass(TimeSeries.class);
-        // Ensure that the update was called for each time series
-        Mockito.verify(mockTSClient, Mockito.times(testAgent.getNumberOfTimeSeries())).addTimeSeriesData(timeSeriesArgument.capture());
-        // Ensure that the timeseries objects have the correct structure
-        int numIRIs = 0;
-        JSONArray jsArr = carparkReadings.getJSONArray("value");
-        JSONObject currentEntry = jsArr.getJSONObject(0);
-        for(TimeSeries<OffsetDateTime> ts: timeSeriesArgument.getAllValues()) {
-            // Check that number of timestamps is correct
-            Assert.assertEquals(jsArr.length(), ts.getTimes().size());
-            numIRIs = numIRIs + ts.getDataIRIs().size();
+        JSONArray entries = new JSONArray();
+        for (CarparkReading reading : carparkReadings) {
+            entries.put(reading.toJSON());
         }
-        // Number of unique keys in readings should match the number of IRIs
-
-        Set<String> keys = new HashSet<>(currentEntry.keySet());
-        keys.addAll(currentEntry.keySet());
-
-        Assert.assertEquals(keys.size(), numIRIs);
+        testAgent.updateData(new JSONObject().put("value", entries));
+        TimeSeries<OffsetDateTime> ts = captureWrittenTimeSeries(1).get(0);
+        Assert.assertEquals(30, ((Number) ts.getValues(iris.get(2)).get(0)).intValue());
     }
 
     @Test
-    public void testUpdateDataPrune() {
-
-        JSONArray jsArr1 = carparkReadings.getJSONArray("value");
-        JSONObject currentEntry1 = jsArr1.getJSONObject(0);
-
-        String maxTime = currentEntry1.getString(APIInputAgent.timestampKey).replace("Z","");
-        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(OffsetDateTime.parse(maxTime+"+00:00"));
-        // Run the update
+    public void testUpdateDataNoDataInDatabase() {
+        // Set up the mock client
+        // The max time is null since no data is in the database yet
+        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(null);
+        // Run two updates
         testAgent.updateData(carparkReadings);
-        // Capture the arguments that the add data method was called with
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<TimeSeries<OffsetDateTime>> timeSeriesArgument = ArgumentCaptor.forClass(TimeSeries.class);
-        // Ensure that the update was called for each time series
-        Mockito.verify(mockTSClient, Mockito.times(testAgent.getNumberOfTimeSeries())).addTimeSeriesData(timeSeriesArgument.capture());
-        // Ensure that the timeseries objects have the correct structure
-        int numIRIs = 0;
-        for(TimeSeries<OffsetDateTime> ts: timeSeriesArgument.getAllValues()) {
-
-            numIRIs = numIRIs + ts.getDataIRIs().size();
-        }
-        // Number of unique keys in both readings should match the number of IRIs
-        JSONArray jsArr = carparkReadings.getJSONArray("value");
-        JSONObject currentEntry = jsArr.getJSONObject(0);
-
-        Set<String> uniqueKeys = new HashSet<>(currentEntry.keySet());
-
-        Assert.assertEquals(uniqueKeys.size() , numIRIs);
+        testAgent.updateData(carparkReadings);
+        // The max time is only read from the database before the first cycle, a second cycle within the same second
+        // is pruned against the time just written
+        Mockito.verify(mockTSClient, Mockito.atLeastOnce()).addTimeSeriesData(Mockito.any());
+        Mockito.verify(mockTSClient, Mockito.times(1)).getMaxTime(Mockito.anyString());
     }
 
     @Test
     public void testUpdateDataPruneAll() {
-        // Use a max time that is past max time of readings
-        JSONArray jsArr1 = carparkReadings.getJSONArray("value");
-        JSONObject currentEntry1 = jsArr1.getJSONObject(jsArr1.length()-1);
-        String maxTime = currentEntry1.getString(APIInputAgent.timestampKey).replace("Z","");
-
-        OffsetDateTime endTime = OffsetDateTime.parse(maxTime+"+00:00");
-        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(endTime.plusDays(1));
+        // Use a max time that is past the time of the readings
+        Mockito.when(mockTSClient.getMaxTime(Mockito.anyString())).thenReturn(OffsetDateTime.now().plusDays(1));
         // Run the update
         testAgent.updateData(carparkReadings);
         // Ensure that the update is never called
         Mockito.verify(mockTSClient, Mockito.never()).addTimeSeriesData(Mockito.any());
     }
 
-    @Test
-    public void testJsonObjectToMapEmptyReadings() throws NoSuchMethodException, InvocationTargetException,
-            IllegalAccessException {
-        JSONObject readings = new JSONObject();
-        // Make method accessible
-        Method jsonObjectToMap = APIInputAgent.class.getDeclaredMethod("jsonObjectToMap", JSONObject.class);
-        jsonObjectToMap.setAccessible(true);
-        try {
-            @SuppressWarnings("unchecked")
-            Map<String, List<?>> readingsMap = (Map<String, List<?>>) jsonObjectToMap.invoke(testAgent, readings);
-            Assert.fail();
-        }
-        catch(Exception e){
-            Assert.assertTrue(e.getCause().getMessage().contains("Readings can not be empty!"));
-        }
-    }
-
-    @Test
-    public void testJsonObjectToMap() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        // Make method accessible
-        Method jsonObjectToMap = APIInputAgent.class.getDeclaredMethod("jsonObjectToMap", JSONObject.class);
-        jsonObjectToMap.setAccessible(true);
-        // Transform the readings
+    // Captures the time series added through the client, which must have been added the given number of times
+    private List<TimeSeries<OffsetDateTime>> captureWrittenTimeSeries(int times) {
         @SuppressWarnings("unchecked")
-        Map<String, List<?>> readings = (Map<String, List<?>>) jsonObjectToMap.invoke(testAgent, carparkReadings);
-        // Check that all keys have a list of the same size as the JSON Array
-
-        Assert.assertEquals(keys.length+1, readings.size());
-
-        // Check that all keys from the JSON Array have a corresponding entry
-        JSONArray arr=carparkReadings.getJSONArray("value");
-        JSONObject obj=arr.getJSONObject(0);
-        for (Iterator<String> it = obj.keys(); it.hasNext();) {
-            String key = it.next();
-            Assert.assertTrue(readings.containsKey(key));
-        }
-        Assert.assertTrue(readings.containsKey("obsTimeUtc"));
-        //Unsure about line 421
-
-    }
-
-
-    @Test
-    public void testConvertReadingsToTimeSeries() throws IOException, NoSuchMethodException,
-            IllegalAccessException, InvocationTargetException {
-        // Create an agent with mappings of small size //
-        // Create a folder inside the temporary folder in which the mapping files will be
-        File mappingFolder = folder.newFolder("mappings_test");
-        // Define three sets of mappings
-        String[] generalKeys = {"key1"};
-        Map<String, String[]> keys = new HashMap<>();
-        keys.put("general", generalKeys);
-
-        // Create a file for each mapping
-        for (String mappingName : keys.keySet()) {
-            String filepath = Paths.get(mappingFolder.getCanonicalPath(), mappingName + ".properties").toString();
-            try (FileWriter writer = new FileWriter(filepath, false)) {
-                for (String key : keys.get(mappingName)) {
-                    writer.write(key + "=\n");
-                }
-            }
-        }
-        // Filepath for the properties file
-        String propertiesFile = Paths.get(folder.getRoot().toString(), "agent.properties").toString();
-        writePropertyFile(propertiesFile, Collections.singletonList("carpark.mappingfolder=TEST_MAPPINGS"));
-        // Create agent
-        //Mock environment variable TEST_MAPPINGS to be equivalent to the file path for the mapping folder
-        try {
-            SystemLambda.withEnvironmentVariable("TEST_MAPPINGS", mappingFolder.getCanonicalPath()).execute(() -> {
-                APIInputAgent agent = new APIInputAgent(propertiesFile);
-
-                String[] Timestamps = {"2021-07-11T16:10:00Z"};
-                Map<String, List<?>> timeStampReadings = new HashMap<>();
-                Map<String, List<?>> carparkreadings = new HashMap<>();
-
-                // Make method accessible
-                Method convertReadingsToTimeSeries = APIInputAgent.class.getDeclaredMethod("convertReadingsToTimeSeries", Map.class, Map.class);
-                convertReadingsToTimeSeries.setAccessible(true);
-
-                // Use readings only consisting of times, should give an error as keys are not covered
-                try {
-                    // Create the readings //
-
-
-                    timeStampReadings.put(APIInputAgent.timestampKey, Arrays.asList(Timestamps));
-                    convertReadingsToTimeSeries.invoke(agent,carparkreadings, timeStampReadings);
-                    Assert.fail();
-                }
-                catch (InvocationTargetException e) {
-                    Assert.assertEquals(NoSuchElementException.class, e.getCause().getClass());
-                    Assert.assertTrue(e.getCause().getMessage().contains("The key"));
-                    Assert.assertTrue(e.getCause().getMessage().contains("is not contained in the readings!"));
-                }
-
-                for(String key: generalKeys) {
-                    List<Double> values = new ArrayList<>();
-                    for(int i = 0; i < Timestamps.length; i++) {
-                        values.add((double) i + 0.2);
-                    }
-                    carparkreadings.put(key, values);
-                }
-                // Create time series list from the readings
-                List<?> timeSeries = (List<?>) convertReadingsToTimeSeries.invoke(agent, carparkreadings, timeStampReadings);
-                // Check that there is a time series for each mapping
-                Assert.assertEquals(keys.size(), timeSeries.size());
-                // Check content of the time series
-                for(Object obj: timeSeries) {
-                    TimeSeries<?> currentTimeSeries = (TimeSeries<?>) obj;
-                    if(currentTimeSeries.getTimes().size() == timeStampReadings.get(APIInputAgent.timestampKey).size()) {
-                        // Number of IRIs should match the number of keys
-                        Assert.assertEquals(generalKeys.length, currentTimeSeries.getDataIRIs().size());
-                        for(String iri: currentTimeSeries.getDataIRIs()) {
-                            List<?> values = currentTimeSeries.getValues(iri);
-                            // The size of value should match the number of time stamps
-                            Assert.assertEquals(timeStampReadings.get(APIInputAgent.timestampKey).size(), values.size());
-                            Assert.assertEquals(Double.class, values.get(0).getClass());
-                            // Check values
-                            Assert.assertEquals(carparkReadings.get(generalKeys[0]), values);
-                        }
-                    }
-
-                }
-            });
-        }
-        //No exception should be thrown here, this is required in order to use System.lambda to mock the environment variables
-        catch (Exception e) {
-        }
-    }
-
-    @Test
-    public void testConvertStringToOffsetDateTime() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        // Make method accessible
-        Method convertStringToOffsetDateTime = APIInputAgent.class.getDeclaredMethod("convertStringToOffsetDateTime", String.class);
-        convertStringToOffsetDateTime.setAccessible(true);
-        // Test with a valid string
-        String timestamp = "2022-07-11T16:15:00Z";
-        OffsetDateTime time = (OffsetDateTime) convertStringToOffsetDateTime.invoke(testAgent, timestamp);
-        Assert.assertEquals(2022, time.getYear());
-        Assert.assertEquals(7, time.getMonth().getValue());
-        Assert.assertEquals(11, time.getDayOfMonth());
-        Assert.assertEquals(16, time.getHour());
-        Assert.assertEquals(0, time.getOffset().getTotalSeconds());
-        Assert.assertEquals(ZoneOffset.UTC, time.getOffset());
+        ArgumentCaptor<TimeSeries<OffsetDateTime>> timeSeriesArgument = ArgumentCaptor.forClass(TimeSeries.class);
+        Mockito.verify(mockTSClient, Mockito.times(times)).addTimeSeriesData(timeSeriesArgument.capture());
+        return timeSeriesArgument.getAllValues();
     }
 
     @Test
@@ -533,10 +368,7 @@ public class APIInputAgentTest {
         List<String> iris = Arrays.asList("data_int","data_str");
         List<Integer> intValues = new ArrayList<>();
         List<String> stringValues = new ArrayList<>();
-        String[] timestamps = {"2022-07-11T16:10:00+00:00Z"};
-        for (int i=0;i< timestamps.length;++i){
-            timestamps[i]=timestamps[i].replace("Z","");
-        }
+        String[] timestamps = {"2022-07-11T16:10:00+00:00", "2022-07-11T16:15:00+00:00", "2022-07-11T16:20:00+00:00", "2022-07-11T16:25:00+00:00"};
         List<OffsetDateTime> times = new ArrayList<>();
         for (int i = 0; i < timestamps.length; i++) {
             times.add(OffsetDateTime.parse(timestamps[i]));
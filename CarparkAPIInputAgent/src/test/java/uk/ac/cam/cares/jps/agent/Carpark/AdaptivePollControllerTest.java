@@ -0,0 +1,70 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AdaptivePollControllerTest {
+
+    @Test
+    public void testInvalidBounds() {
+        try {
+            new AdaptivePollController(60, 30, 0);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("Poll interval bounds must satisfy 0 < min <= max", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBackOffWhenQuiet() {
+        AdaptivePollController controller = new AdaptivePollController(60, 600, 0);
+        Assert.assertEquals(60, controller.getInterval());
+        Assert.assertEquals(90, controller.observeUnchanged(1));
+        Assert.assertEquals(135, controller.observeUnchanged(1));
+        for (int i = 0; i < 10; i++) {
+            controller.observeUnchanged(1);
+        }
+        Assert.assertEquals(600, controller.getInterval());
+    }
+
+    @Test
+    public void testSpeedUpWhenBusy() {
+        AdaptivePollController controller = new AdaptivePollController(60, 600, 0);
+        for (int i = 0; i < 10; i++) {
+            controller.observeUnchanged(1);
+        }
+        controller.observe(readings(0), 1);
+        // Every value changes from now on
+        long interval = controller.observe(readings(5), 1);
+        Assert.assertEquals(100, controller.getLastChangedCount());
+        Assert.assertEquals(5.0, controller.getLastMeanDelta(), 1e-9);
+        Assert.assertTrue(interval < 600);
+        for (int i = 0; i < 10; i++) {
+            controller.observe(readings(i * 3), 1);
+        }
+        Assert.assertEquals(60, controller.getInterval());
+    }
+
+    @Test
+    public void testQuotaFloor() {
+        // 4 requests per cycle with 1440 requests a day allows one cycle every 240 s at most
+        AdaptivePollController controller = new AdaptivePollController(60, 600, 1440);
+        controller.observe(readings(0), 4);
+        for (int i = 1; i < 10; i++) {
+            controller.observe(readings(i * 3), 4);
+        }
+        Assert.assertEquals(240, controller.getInterval());
+    }
+
+    private List<CarparkReading> readings(int offset) {
+        List<CarparkReading> readings = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            readings.add(new CarparkReading(String.valueOf(i), "", "", "", "C", 100 + offset, "LTA"));
+        }
+        return readings;
+    }
+}
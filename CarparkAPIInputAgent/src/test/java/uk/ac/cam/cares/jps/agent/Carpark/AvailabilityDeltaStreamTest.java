@@ -0,0 +1,148 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class AvailabilityDeltaStreamTest {
+
+    private AvailabilityDeltaStream stream;
+
+    @Before
+    public void createStream() {
+        stream = new AvailabilityDeltaStream(2, 16, 1);
+    }
+
+    @After
+    public void closeStream() {
+        stream.close();
+        AvailabilitySnapshot.clear();
+    }
+
+    private static AvailabilitySnapshot snapshot(int marinaLots, int orchardLots) {
+        return AvailabilitySnapshot.publish(Arrays.asList(
+                new CarparkReading("1", "Marina", "Suntec City", "1.29375 103.85718", "C", marinaLots, "LTA"),
+                new CarparkReading("2", "Orchard", "Plaza Singapura", "1.30046 103.84506", "C", orchardLots, "LTA")),
+                Instant.parse("2022-06-01T10:00:00Z"));
+    }
+
+    private static class RecordingSink implements AvailabilityDeltaStream.Sink {
+        private final List<String> frames = new CopyOnWriteArrayList<>();
+        private volatile boolean ready = true;
+        private volatile boolean closed;
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public void write(byte[] frame) {
+            frames.add(new String(frame, StandardCharsets.UTF_8));
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static void awaitFrames(RecordingSink sink, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && sink.frames.size() < count; i++) {
+            Thread.sleep(2);
+        }
+        Assert.assertEquals(count, sink.frames.size());
+    }
+
+    @Test
+    public void testOnlyChangesArePushed() throws InterruptedException {
+        RecordingSink all = new RecordingSink();
+        RecordingSink orchard = new RecordingSink();
+        stream.subscribe(AvailabilityDeltaStream.Filter.ALL, null, all);
+        stream.subscribe(AvailabilityDeltaStream.Filter.parse(null, "Orchard"), null, orchard);
+
+        AvailabilitySnapshot first = snapshot(100, 50);
+        Assert.assertTrue(stream.publish(null, first) > 0);
+        AvailabilitySnapshot second = snapshot(99, 50);
+        long id = stream.publish(first, second);
+        Assert.assertEquals(-1, stream.publish(second, snapshot(99, 50)));
+
+        awaitFrames(all, 2);
+        awaitFrames(orchard, 1);
+        Assert.assertTrue(all.frames.get(1).startsWith("id: " + id + "\nevent: availability\ndata: "));
+        Assert.assertTrue(all.frames.get(1).contains("\"PreviousLots\":100"));
+        Assert.assertFalse(all.frames.get(1).contains("\"CarParkID\":\"2\""));
+        Assert.assertTrue(orchard.frames.get(0).contains("\"CarParkID\":\"2\""));
+        Assert.assertFalse(orchard.frames.get(0).contains("\"CarParkID\":\"1\""));
+    }
+
+    @Test
+    public void testResumeAndReset() throws InterruptedException {
+        AvailabilitySnapshot first = snapshot(100, 50);
+        long firstId = stream.publish(null, first);
+        AvailabilitySnapshot second = snapshot(99, 50);
+        long secondId = stream.publish(first, second);
+
+        RecordingSink resumed = new RecordingSink();
+        stream.subscribe(AvailabilityDeltaStream.Filter.ALL, firstId, resumed);
+        awaitFrames(resumed, 1);
+        Assert.assertTrue(resumed.frames.get(0).startsWith("id: " + secondId + "\n"));
+
+        //Only two events are retained, the first one is dropped
+        stream.publish(second, snapshot(98, 50));
+        RecordingSink reset = new RecordingSink();
+        stream.subscribe(AvailabilityDeltaStream.Filter.ALL, firstId - 1, reset);
+        awaitFrames(reset, 1);
+        Assert.assertTrue(reset.frames.get(0).contains("event: reset"));
+
+        RecordingSink upToDate = new RecordingSink();
+        stream.subscribe(AvailabilityDeltaStream.Filter.ALL, secondId + 1, upToDate);
+        Thread.sleep(20);
+        Assert.assertTrue(upToDate.frames.isEmpty());
+    }
+
+    @Test
+    public void testBlockedSubscriberDoesNotHoldUpOthers() throws InterruptedException {
+        //A client that does not read leaves its sink not ready, with a single writer thread shared by both subscribers
+        RecordingSink blocked = new RecordingSink();
+        blocked.ready = false;
+        RecordingSink reading = new RecordingSink();
+        AvailabilityDeltaStream.Subscriber blockedSubscriber = stream.subscribe(AvailabilityDeltaStream.Filter.ALL, null, blocked);
+        stream.subscribe(AvailabilityDeltaStream.Filter.ALL, null, reading);
+        AvailabilitySnapshot previous = null;
+        for (int i = 0; i < 10; i++) {
+            AvailabilitySnapshot current = snapshot(i, 50);
+            stream.publish(previous, current);
+            previous = current;
+        }
+        awaitFrames(reading, 10);
+        Assert.assertTrue(blocked.frames.isEmpty());
+        Assert.assertFalse(blockedSubscriber.isClosed());
+
+        //Once the client reads again its sink resumes the subscriber, which catches up in order
+        blocked.ready = true;
+        blockedSubscriber.resume();
+        awaitFrames(blocked, 10);
+        Assert.assertEquals(reading.frames, blocked.frames);
+    }
+
+    @Test
+    public void testSlowSubscriberDropped() {
+        RecordingSink blocked = new RecordingSink();
+        blocked.ready = false;
+        AvailabilityDeltaStream.Subscriber subscriber = stream.subscribe(AvailabilityDeltaStream.Filter.ALL, null, blocked);
+        AvailabilitySnapshot previous = null;
+        for (int i = 0; i < 20; i++) {
+            AvailabilitySnapshot current = snapshot(i, 50);
+            stream.publish(previous, current);
+            previous = current;
+        }
+        Assert.assertTrue(subscriber.isClosed());
+        Assert.assertTrue(blocked.closed);
+        Assert.assertEquals(0, stream.getSubscriberCount());
+    }
+}
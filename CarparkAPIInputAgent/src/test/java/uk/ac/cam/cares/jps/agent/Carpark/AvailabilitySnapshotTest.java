@@ -0,0 +1,76 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+public class AvailabilitySnapshotTest {
+
+    private static final Instant TIMESTAMP = Instant.parse("2022-06-01T10:00:00Z");
+
+    @After
+    public void clearSnapshot() {
+        AvailabilitySnapshot.clear();
+    }
+
+    private static List<CarparkReading> readings(int lots) {
+        return Arrays.asList(
+                new CarparkReading("1", "Marina", "Suntec City", "1.29375 103.85718", "C", lots, "LTA"),
+                new CarparkReading("1", "Marina", "Suntec City", "1.29375 103.85718", "Y", 12, "LTA"),
+                new CarparkReading("2", "Orchard", "Plaza Singapura", "1.30046 103.84506", "C", 80, "LTA"));
+    }
+
+    @Test
+    public void testPublishAndLookup() {
+        Assert.assertNull(AvailabilitySnapshot.current());
+        AvailabilitySnapshot snapshot = AvailabilitySnapshot.publish(readings(100), TIMESTAMP);
+        Assert.assertSame(snapshot, AvailabilitySnapshot.current());
+        Assert.assertEquals(2, snapshot.getCarparkCount());
+        Assert.assertEquals(2, snapshot.getReadings("1").size());
+        Assert.assertTrue(snapshot.getReadings("3").isEmpty());
+        Assert.assertNull(snapshot.getBody("3"));
+
+        JSONObject carpark = new JSONObject(new String(snapshot.getBody("1").getBytes(), StandardCharsets.UTF_8));
+        Assert.assertFalse(carpark.has("timestamp"));
+        Assert.assertEquals(TIMESTAMP, snapshot.getBody("1").getLastModified());
+        Assert.assertEquals(100, carpark.getJSONObject("carpark").getJSONObject("AvailableLots").getInt("C"));
+        Assert.assertEquals(12, carpark.getJSONObject("carpark").getJSONObject("AvailableLots").getInt("Y"));
+
+        JSONObject all = new JSONObject(new String(snapshot.getBody().getBytes(), StandardCharsets.UTF_8));
+        Assert.assertEquals(2, all.getJSONArray("carparks").length());
+    }
+
+    @Test
+    public void testEtags() {
+        Instant later = TIMESTAMP.plusSeconds(60);
+        Instant latest = TIMESTAMP.plusSeconds(120);
+        AvailabilitySnapshot first = AvailabilitySnapshot.publish(readings(100), TIMESTAMP);
+        AvailabilitySnapshot same = AvailabilitySnapshot.publish(readings(100), later);
+        AvailabilitySnapshot changed = AvailabilitySnapshot.publish(readings(99), latest);
+        // Later cycles with the same readings keep the ETag and the time of the first one
+        Assert.assertEquals(first.getBody().getEtag(), same.getBody().getEtag());
+        Assert.assertEquals(TIMESTAMP, same.getBody().getLastModified());
+        Assert.assertEquals(TIMESTAMP, same.getBody("1").getLastModified());
+        Assert.assertNotEquals(first.getBody().getEtag(), changed.getBody().getEtag());
+        Assert.assertEquals(latest, changed.getBody().getLastModified());
+        Assert.assertNotEquals(first.getBody("1").getEtag(), changed.getBody("1").getEtag());
+        Assert.assertEquals(latest, changed.getBody("1").getLastModified());
+        Assert.assertEquals(first.getBody("2").getEtag(), changed.getBody("2").getEtag());
+        Assert.assertEquals(TIMESTAMP, changed.getBody("2").getLastModified());
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        Assert.assertFalse(AvailabilityServlet.matches(null, "\"abc\""));
+        Assert.assertTrue(AvailabilityServlet.matches("\"abc\"", "\"abc\""));
+        Assert.assertTrue(AvailabilityServlet.matches("\"xyz\", W/\"abc\"", "\"abc\""));
+        Assert.assertTrue(AvailabilityServlet.matches("*", "\"abc\""));
+        Assert.assertFalse(AvailabilityServlet.matches("\"xyz\"", "\"abc\""));
+    }
+}
@@ -0,0 +1,59 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.postgresql.PGConnection;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BulkTimeSeriesWriterTest {
+
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2023, 6, 1, 8, 0, 30, 0, ZoneOffset.UTC);
+
+    @Test
+    public void testToCSV() {
+        List<List<?>> values = Arrays.asList(Arrays.asList(4, 5), Arrays.asList(Double.NaN, null), Arrays.asList("a,b", ""));
+        TimeSeries<OffsetDateTime> ts = new TimeSeries<>(Arrays.asList(TIME, TIME.plusMinutes(1)), Arrays.asList("iri1", "iri2", "iri3"), values);
+
+        String csv = BulkTimeSeriesWriter.toCSV(ts, Arrays.asList("iri1", "iri2", "iri3"));
+        Assert.assertEquals("2023-06-01T08:00:30Z,4,NaN,\"a,b\"\n"
+                + "2023-06-01T08:01:30Z,5,,\"\"\n", csv);
+
+        //Only the given columns, in the given order
+        Assert.assertEquals("2023-06-01T08:00:30Z,\"a,b\",4\n"
+                + "2023-06-01T08:01:30Z,\"\",5\n", BulkTimeSeriesWriter.toCSV(ts, Arrays.asList("iri3", "iri1")));
+    }
+
+    @Test
+    public void testRollbackFailureDoesNotHideWriteFailure() throws SQLException {
+        TimeSeriesDatabase database = Mockito.mock(TimeSeriesDatabase.class);
+        Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(database.connect()).thenReturn(connection);
+        Mockito.when(database.lookupColumns(Mockito.eq(connection), Mockito.anyCollection()))
+                .thenReturn(Collections.singletonMap("iri1", new TimeSeriesDatabase.Column("iri1", "ts1", "table1", "column1")));
+        Mockito.when(connection.unwrap(PGConnection.class)).thenThrow(new SQLException("copy failed"));
+        Mockito.doThrow(new SQLException("rollback failed")).when(connection).rollback();
+
+        TimeSeries<OffsetDateTime> ts = new TimeSeries<>(Collections.singletonList(TIME), Collections.singletonList("iri1"),
+                Collections.singletonList(Collections.singletonList(4)));
+        try {
+            new BulkTimeSeriesWriter(database).write(Collections.singletonList(ts));
+            Assert.fail();
+        }
+        catch (SQLException e) {
+            Assert.assertEquals("copy failed", e.getMessage());
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertEquals("rollback failed", e.getSuppressed()[0].getMessage());
+        }
+        Mockito.verify(connection, Mockito.never()).commit();
+        Mockito.verify(connection).close();
+    }
+}
@@ -0,0 +1,98 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.MockedConstruction;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import uk.ac.cam.cares.jps.base.exception.JPSRuntimeException;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeriesClient;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+public class CarparkAgentContextTest {
+
+    private static final String[] ARGS = {"agent.properties", "client.properties", "api.properties"};
+    private static final String[] OTHER_ARGS = {"other-agent.properties", "client.properties", "api.properties"};
+
+    @After
+    public void closeContext() {
+        new APIAgentLauncher().destroy();
+    }
+
+    @Test
+    public void testContextLifecycle() throws Exception {
+        try (MockedStatic<TimeSeriesDatabase> database = Mockito.mockStatic(TimeSeriesDatabase.class);
+             MockedStatic<AdaptivePollController> poll = Mockito.mockStatic(AdaptivePollController.class);
+             MockedConstruction<APIInputAgent> agents = Mockito.mockConstruction(APIInputAgent.class);
+             MockedConstruction<TimeSeriesClient> clients = Mockito.mockConstruction(TimeSeriesClient.class);
+             MockedConstruction<APIQueryBuilder> builders = Mockito.mockConstruction(APIQueryBuilder.class);
+             MockedConstruction<APIConnector> connectors = Mockito.mockConstruction(APIConnector.class, (mock, context) -> {
+                 Mockito.when(mock.getCarparkReadingsIfChangedAsync()).thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+                 Mockito.when(mock.getPricesAsync()).thenReturn(CompletableFuture.completedFuture(new JSONObject()));
+             })) {
+            database.when(() -> TimeSeriesDatabase.fromProperties(Mockito.anyString())).thenReturn(Mockito.mock(TimeSeriesDatabase.class));
+            poll.when(() -> AdaptivePollController.fromProperties(Mockito.anyString())).thenReturn(Mockito.mock(AdaptivePollController.class));
+
+            // The first cycle builds the components and initialises the time series once
+            JSONObject result = APIAgentLauncher.initializeAgent(ARGS);
+            Assert.assertEquals(CarparkAgentContext.UNCHANGED_MSG, result.get("Result"));
+            CarparkAgentContext first = APIAgentLauncher.currentContext();
+            Assert.assertTrue(first.matches(ARGS));
+            Assert.assertEquals(1, agents.constructed().size());
+            Mockito.verify(agents.constructed().get(0)).initializeTimeSeriesIfNotExist(Mockito.any());
+
+            // Later cycles with the same properties files reuse them
+            APIAgentLauncher.initializeAgent(ARGS);
+            Assert.assertSame(first, APIAgentLauncher.currentContext());
+            Assert.assertEquals(1, connectors.constructed().size());
+            Mockito.verify(connectors.constructed().get(0), Mockito.times(2)).getCarparkReadingsIfChangedAsync();
+
+            // A reload builds and warms up new components and releases the replaced ones
+            APIAgentLauncher.reloadAgent(ARGS);
+            CarparkAgentContext reloaded = APIAgentLauncher.currentContext();
+            Assert.assertNotSame(first, reloaded);
+            Assert.assertEquals(2, connectors.constructed().size());
+            Mockito.verify(connectors.constructed().get(1)).getPricesAsync();
+            Mockito.verify(connectors.constructed().get(0)).close();
+            Mockito.verify(agents.constructed().get(0)).flush();
+            Mockito.verify(connectors.constructed().get(1), Mockito.never()).close();
+            try {
+                first.runCycle();
+                Assert.fail();
+            }
+            catch (JPSRuntimeException e) {
+                // Replaced components refuse to run further cycles
+                Assert.assertEquals("The agent components have been replaced, the cycle was not run", e.getMessage());
+            }
+
+            // Different properties files replace the components as well
+            APIAgentLauncher.initializeAgent(OTHER_ARGS);
+            Assert.assertTrue(APIAgentLauncher.currentContext().matches(OTHER_ARGS));
+            Assert.assertEquals(3, agents.constructed().size());
+            Mockito.verify(connectors.constructed().get(1)).close();
+            Assert.assertEquals(3, clients.constructed().size());
+            Assert.assertEquals(3, builders.constructed().size());
+        }
+    }
+
+    @Test
+    public void testWroteData() {
+        JSONObject skipped = new JSONObject().accumulate("Result", CarparkAgentContext.UNCHANGED_MSG);
+        Assert.assertFalse(CarparkAgentContext.wroteData(skipped));
+
+        JSONObject written = new JSONObject();
+        written.accumulate("Result", "Retrieved500 carpark readings");
+        written.accumulate("Result", CarparkAgentContext.DATA_UPDATED_MSG);
+        Assert.assertTrue(CarparkAgentContext.wroteData(written));
+
+        JSONObject empty = new JSONObject();
+        empty.accumulate("Result", "Retrieved0 carpark readings");
+        empty.accumulate("Result", "No new carpark data recorded");
+        Assert.assertFalse(CarparkAgentContext.wroteData(empty));
+        Assert.assertFalse(CarparkAgentContext.wroteData(new JSONObject()));
+    }
+}
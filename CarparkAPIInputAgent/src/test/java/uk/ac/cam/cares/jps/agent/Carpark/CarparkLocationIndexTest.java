@@ -0,0 +1,81 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+public class CarparkLocationIndexTest {
+
+    private static CarparkReading reading(String id, double lat, double lon) {
+        return new CarparkReading(id, "", "", lat + " " + lon, "C", 10, "LTA");
+    }
+
+    private static List<CarparkReading> randomReadings(Random random, int count) {
+        List<CarparkReading> readings = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            readings.add(reading(String.valueOf(i), 1.25 + random.nextDouble() * 0.2, 103.6 + random.nextDouble() * 0.4));
+        }
+        return readings;
+    }
+
+    @Test
+    public void testNearestMatchesBruteForce() {
+        Random random = new Random(42);
+        List<CarparkReading> readings = randomReadings(random, 2000);
+        CarparkLocationIndex index = new CarparkLocationIndex();
+        Assert.assertEquals(2000, index.update(readings));
+
+        for (int q = 0; q < 50; q++) {
+            double lat = 1.2 + random.nextDouble() * 0.3;
+            double lon = 103.5 + random.nextDouble() * 0.6;
+            List<String> expected = readings.stream()
+                    .sorted(Comparator.comparingDouble(r -> CarparkLocationIndex.distance(lat, lon, r.getLatitude(), r.getLongitude())))
+                    .limit(7).map(CarparkReading::getCarparkID).collect(Collectors.toList());
+            List<String> actual = index.nearest(lat, lon, 7, id -> true).stream()
+                    .map(CarparkLocationIndex.Match::getCarparkID).collect(Collectors.toList());
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void testWithinMatchesBruteForce() {
+        Random random = new Random(7);
+        List<CarparkReading> readings = randomReadings(random, 1000);
+        CarparkLocationIndex index = new CarparkLocationIndex();
+        index.update(readings);
+
+        double lat = 1.35;
+        double lon = 103.8;
+        List<String> expected = readings.stream()
+                .filter(r -> CarparkLocationIndex.distance(lat, lon, r.getLatitude(), r.getLongitude()) <= 2500)
+                .sorted(Comparator.comparingDouble(r -> CarparkLocationIndex.distance(lat, lon, r.getLatitude(), r.getLongitude())))
+                .map(CarparkReading::getCarparkID).collect(Collectors.toList());
+        List<String> actual = index.within(lat, lon, 2500, id -> true).stream()
+                .map(CarparkLocationIndex.Match::getCarparkID).collect(Collectors.toList());
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testIncrementalUpdateAndFilter() {
+        CarparkLocationIndex index = new CarparkLocationIndex();
+        index.update(Arrays.asList(reading("1", 1.30, 103.80), reading("2", 1.31, 103.81),
+                new CarparkReading("3", "", "", "", "C", 10, "LTA")));
+        Assert.assertEquals(2, index.size());
+
+        //Only the moved carpark counts as a change, the dropped one is removed
+        Assert.assertEquals(2, index.update(Arrays.asList(reading("1", 1.30, 103.80), reading("4", 1.40, 103.90))));
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(0, index.update(Arrays.asList(reading("1", 1.30, 103.80), reading("4", 1.40, 103.90))));
+
+        List<CarparkLocationIndex.Match> matches = index.nearest(1.30, 103.80, 2, id -> !id.equals("1"));
+        Assert.assertEquals(1, matches.size());
+        Assert.assertEquals("4", matches.get(0).getCarparkID());
+    }
+}
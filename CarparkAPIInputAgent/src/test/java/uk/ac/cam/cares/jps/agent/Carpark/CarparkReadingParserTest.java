@@ -0,0 +1,60 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class CarparkReadingParserTest {
+
+    private static final String PAYLOAD = "{\"odata.metadata\":\"http://datamall2.mytransport.sg/ltaodataservice/$metadata#CarParkAvailabilityv2\","
+            + "\"value\":["
+            + "{\"CarParkID\":\"1\",\"Area\":\"Marina\",\"Development\":\"Suntec City\",\"Location\":\"1.29375 103.85718\",\"AvailableLots\":1098,\"LotType\":\"C\",\"Agency\":\"LTA\"},"
+            + "{\"CarParkID\":\"A0007\",\"Area\":\"\",\"Development\":\"BLK 2 AND 3 CHANGI VILLAGE ROAD\",\"Location\":\"\",\"AvailableLots\":4,\"LotType\":\"Y\",\"Agency\":\"HDB\"}"
+            + "]}";
+
+    @Test
+    public void testParse() {
+        List<CarparkReading> readings = CarparkReadingParser.parse(toStream(PAYLOAD));
+        Assert.assertEquals(2, readings.size());
+
+        CarparkReading first = readings.get(0);
+        Assert.assertEquals("1", first.getCarparkID());
+        Assert.assertEquals("Marina", first.getArea());
+        Assert.assertEquals("Suntec City", first.getDevelopment());
+        Assert.assertEquals("C", first.getLotType());
+        Assert.assertEquals(1098, first.getAvailableLots());
+        Assert.assertEquals("LTA", first.getAgency());
+        Assert.assertEquals(1.29375, first.getLatitude(), 1e-9);
+        Assert.assertEquals(103.85718, first.getLongitude(), 1e-9);
+        Assert.assertEquals("AvailableLots_1_C", first.getKey());
+
+        CarparkReading second = readings.get(1);
+        Assert.assertEquals("AvailableLots_A0007_Y", second.getKey());
+        Assert.assertFalse(second.hasLocation());
+    }
+
+    @Test
+    public void testParseEmptyValue() {
+        Assert.assertTrue(CarparkReadingParser.parse(toStream("{\"value\":[]}")).isEmpty());
+    }
+
+    @Test
+    public void testParseMalformed() {
+        try {
+            CarparkReadingParser.parse(toStream("[1,2,3]"));
+            Assert.fail();
+        }
+        catch (JSONException e) {
+            Assert.assertTrue(e.getMessage().contains("Expected '{'"));
+        }
+    }
+
+    private InputStream toStream(String payload) {
+        return new ByteArrayInputStream(payload.getBytes(StandardCharsets.UTF_8));
+    }
+}
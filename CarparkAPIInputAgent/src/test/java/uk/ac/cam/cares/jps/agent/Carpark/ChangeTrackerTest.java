@@ -0,0 +1,74 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ChangeTrackerTest {
+
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2023, 6, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    private static ReadingDictionary.Frame frame(ReadingDictionary dictionary, int lotsOfA, int lotsOfB) {
+        return dictionary.encode(Arrays.asList(
+                new CarparkReading("A", "", "", "", "C", lotsOfA, "HDB"),
+                new CarparkReading("B", "", "", "", "C", lotsOfB, "HDB")), TIME);
+    }
+
+    @Test
+    public void testChanged() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        ReadingDictionary.Frame first = frame(dictionary, 10, 20);
+        ReadingDictionary.Frame second = frame(dictionary, 10, 21);
+        int a = dictionary.slot("A", "C");
+        int b = dictionary.slot("B", "C");
+
+        Assert.assertFalse(ChangeTracker.changed(first, second, a));
+        Assert.assertTrue(ChangeTracker.changed(first, second, b));
+        //Everything is written without a baseline
+        Assert.assertTrue(ChangeTracker.changed(null, second, a));
+
+        //A lot that disappears is a change, so that it is written as missing
+        ReadingDictionary.Frame third = dictionary.encode(Collections.singletonList(new CarparkReading("B", "", "", "", "C", 21, "HDB")), TIME);
+        Assert.assertTrue(ChangeTracker.changed(second, third, a));
+        Assert.assertFalse(ChangeTracker.changed(second, third, b));
+    }
+
+    @Test
+    public void testKeyframes() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        ChangeTracker tracker = new ChangeTracker(3);
+        Assert.assertNull(tracker.baseline());
+
+        ReadingDictionary.Frame first = frame(dictionary, 10, 20);
+        tracker.written(first, true);
+        Assert.assertSame(first, tracker.baseline());
+
+        ReadingDictionary.Frame second = frame(dictionary, 11, 20);
+        tracker.written(second, false);
+        ReadingDictionary.Frame third = frame(dictionary, 12, 20);
+        tracker.written(third, false);
+        //Three frames since the keyframe, the next one is written in full
+        Assert.assertNull(tracker.baseline());
+
+        tracker.written(frame(dictionary, 12, 21), true);
+        Assert.assertNotNull(tracker.baseline());
+    }
+
+    @Test
+    public void testResetForcesKeyframe() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        ChangeTracker tracker = new ChangeTracker(60);
+        tracker.written(frame(dictionary, 10, 20), true);
+        tracker.reset();
+        Assert.assertNull(tracker.baseline());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidInterval() {
+        new ChangeTracker(0);
+    }
+}
@@ -0,0 +1,52 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ColumnPlanTest {
+
+    @Test
+    public void testPlan() {
+        List<String> iris = new ArrayList<>(Arrays.asList("iri1", "iri2"));
+        int[] slots = {3, ReadingDictionary.NO_SLOT};
+        ColumnPlan plan = new ColumnPlan(iris, slots, Arrays.asList(String.class, Double.class));
+
+        Assert.assertEquals(2, plan.size());
+        Assert.assertEquals("iri2", plan.getIRI(1));
+        Assert.assertEquals(3, plan.getSlot(0));
+        Assert.assertEquals(ReadingDictionary.NO_SLOT, plan.getSlot(1));
+        Assert.assertEquals(Double.class, plan.getType(1));
+
+        //Later changes to the arguments do not leak into the plan
+        iris.set(0, "other");
+        slots[0] = 7;
+        Assert.assertEquals(Arrays.asList("iri1", "iri2"), plan.getIRIs());
+        Assert.assertEquals(3, plan.getSlot(0));
+    }
+
+    @Test
+    public void testSelect() {
+        ColumnPlan plan = new ColumnPlan(Arrays.asList("iri1", "iri2", "iri3"), new int[]{4, 5, 6}, Arrays.asList(String.class, Double.class, String.class));
+        ColumnPlan selected = plan.select(Arrays.asList(2, 0));
+
+        Assert.assertEquals(Arrays.asList("iri3", "iri1"), selected.getIRIs());
+        Assert.assertEquals(6, selected.getSlot(0));
+        Assert.assertEquals(4, selected.getSlot(1));
+        Assert.assertEquals(String.class, selected.getType(1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIRIsAreImmutable() {
+        ColumnPlan plan = new ColumnPlan(Arrays.asList("iri1"), new int[]{0}, Arrays.asList(String.class));
+        plan.getIRIs().clear();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedColumns() {
+        new ColumnPlan(Arrays.asList("iri1", "iri2"), new int[]{0}, Arrays.asList(String.class, String.class));
+    }
+}
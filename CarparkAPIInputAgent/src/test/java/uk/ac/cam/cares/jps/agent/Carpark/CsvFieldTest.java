@@ -0,0 +1,17 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CsvFieldTest {
+
+    @Test
+    public void testEncode() {
+        Assert.assertEquals("12", CsvField.encode("12"));
+        Assert.assertEquals("", CsvField.encode(""));
+        Assert.assertEquals("\"a,b\"", CsvField.encode("a,b"));
+        Assert.assertEquals("\"say \"\"hi\"\"\"", CsvField.encode("say \"hi\""));
+        Assert.assertEquals("\"two\nlines\"", CsvField.encode("two\nlines"));
+        Assert.assertEquals("\"two\r\nlines\"", CsvField.encode("two\r\nlines"));
+    }
+}
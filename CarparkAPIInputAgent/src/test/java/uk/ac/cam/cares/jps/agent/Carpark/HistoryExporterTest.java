@@ -0,0 +1,76 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HistoryExporterTest {
+
+    @Test
+    public void testSeriesSelection() {
+        Map<String, String> keysByIRI = new HashMap<>();
+        keysByIRI.put("iri1", "AvailableLots_1_C");
+        keysByIRI.put("iri2", "AvailableLots_1_Y");
+        keysByIRI.put("iri3", "AvailableLots_2_C");
+
+        Assert.assertEquals(3, HistoryExportServlet.select(keysByIRI, Collections.emptySet(), Collections.emptySet()).size());
+        Assert.assertEquals(2, HistoryExportServlet.select(keysByIRI, Collections.singleton("1"), Collections.emptySet()).size());
+        Map<String, String> selected = HistoryExportServlet.select(keysByIRI, Collections.emptySet(), Collections.singleton("C"));
+        Assert.assertEquals(2, selected.size());
+        Assert.assertTrue(selected.containsKey("iri3"));
+        Assert.assertTrue(HistoryExportServlet.select(keysByIRI, Collections.singleton("3"), Collections.emptySet()).isEmpty());
+    }
+
+    private static PreparedStatement table(OffsetDateTime[] times, String[] values) throws Exception {
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        Boolean[] more = new Boolean[times.length - 1];
+        Arrays.fill(more, true);
+        Mockito.when(rs.next()).thenReturn(true, more).thenReturn(false);
+        Mockito.when(rs.getObject(1, OffsetDateTime.class)).thenReturn(times[0], Arrays.copyOfRange(times, 1, times.length));
+        Mockito.when(rs.getString(2)).thenReturn(values[0], Arrays.copyOfRange(values, 1, values.length));
+        PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+        Mockito.when(statement.executeQuery()).thenReturn(rs);
+        return statement;
+    }
+
+    @Test
+    public void testRowsMergedByTimeAcrossTables() throws Exception {
+        OffsetDateTime start = OffsetDateTime.parse("2022-06-01T10:00:00Z");
+        Map<String, String> keysByIRI = new HashMap<>();
+        keysByIRI.put("iri1", "AvailableLots_1_C");
+        keysByIRI.put("iri2", "AvailableLots_2_C");
+        Map<String, TimeSeriesDatabase.Column> columns = new HashMap<>();
+        columns.put("iri1", new TimeSeriesDatabase.Column("iri1", "ts1", "tableA", "column1"));
+        columns.put("iri2", new TimeSeriesDatabase.Column("iri2", "ts2", "tableB", "column1"));
+
+        Connection connection = Mockito.mock(Connection.class);
+        TimeSeriesDatabase database = Mockito.mock(TimeSeriesDatabase.class);
+        Mockito.when(database.connect()).thenReturn(connection);
+        Mockito.when(database.lookupColumns(Mockito.eq(connection), Mockito.any())).thenReturn(columns);
+        PreparedStatement tableA = table(new OffsetDateTime[]{start, start.plusMinutes(2)}, new String[]{"10", "12"});
+        PreparedStatement tableB = table(new OffsetDateTime[]{start.plusMinutes(1), start.plusMinutes(3)}, new String[]{"20", null});
+        Mockito.when(connection.prepareStatement(Mockito.contains("\"tableA\""), Mockito.anyInt(), Mockito.anyInt())).thenReturn(tableA);
+        Mockito.when(connection.prepareStatement(Mockito.contains("\"tableB\""), Mockito.anyInt(), Mockito.anyInt())).thenReturn(tableB);
+
+        StringWriter out = new StringWriter();
+        long rows = new HistoryExporter(database, 100).export(keysByIRI, start, start.plusHours(1), HistoryExporter.Format.CSV, out);
+        // The NULL left by a sparse cycle is not exported
+        Assert.assertEquals(3, rows);
+        Assert.assertEquals("time,CarParkID,LotType,AvailableLots\n"
+                + "2022-06-01T10:00Z,1,C,10\n"
+                + "2022-06-01T10:01Z,2,C,20\n"
+                + "2022-06-01T10:02Z,1,C,12\n", out.toString());
+        Mockito.verify(tableA).close();
+        Mockito.verify(tableB).close();
+    }
+}
@@ -0,0 +1,74 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class IngestionJobManagerTest {
+
+    private IngestionJobManager manager;
+
+    @Before
+    public void createManager() {
+        manager = new IngestionJobManager(2);
+    }
+
+    @After
+    public void closeManager() {
+        manager.close();
+    }
+
+    @Test
+    public void testSucceededJob() throws Exception {
+        IngestionJob job = manager.submit(j -> {
+            j.stage(IngestionJob.STAGE_FETCH);
+            j.stage(IngestionJob.STAGE_WRITE);
+            return new JSONObject().put("Result", "done");
+        });
+        Assert.assertSame(job, manager.get(job.getId()));
+        job.getCompletion().get(5, TimeUnit.SECONDS);
+
+        JSONObject status = job.toJSON();
+        Assert.assertEquals(IngestionJob.State.SUCCEEDED.name(), status.getString("state"));
+        Assert.assertEquals("done", status.getJSONObject("result").getString("Result"));
+        JSONObject timings = status.getJSONObject("stageTimingsMillis");
+        Assert.assertTrue(timings.has(IngestionJob.STAGE_FETCH));
+        Assert.assertTrue(timings.has(IngestionJob.STAGE_WRITE));
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+        IngestionJob job = manager.submit(j -> {
+            throw new IllegalStateException("boom");
+        });
+        try {
+            job.getCompletion().get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        }
+        catch (java.util.concurrent.ExecutionException e) {
+            Assert.assertEquals("boom", e.getCause().getMessage());
+        }
+        JSONObject status = job.toJSON();
+        Assert.assertEquals(IngestionJob.State.FAILED.name(), status.getString("state"));
+        Assert.assertEquals("boom", status.getString("error"));
+    }
+
+    @Test
+    public void testOldJobsDropped() throws Exception {
+        IngestionJob first = manager.submit(j -> new JSONObject());
+        first.getCompletion().get(5, TimeUnit.SECONDS);
+        IngestionJob second = manager.submit(j -> new JSONObject());
+        second.getCompletion().get(5, TimeUnit.SECONDS);
+        IngestionJob third = manager.submit(j -> new JSONObject());
+        third.getCompletion().get(5, TimeUnit.SECONDS);
+
+        Assert.assertNull(manager.get(first.getId()));
+        Assert.assertNotNull(manager.get(second.getId()));
+        Assert.assertNotNull(manager.get(third.getId()));
+        Assert.assertNull(manager.get("unknown"));
+    }
+}
@@ -0,0 +1,124 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IngestionSchedulerTest {
+
+    // Only bounds how long a broken scheduler can hang the test, no assertion depends on it
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private IngestionScheduler scheduler;
+
+    @After
+    public void stopScheduler() {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void testInvalidInterval() {
+        try {
+            new IngestionScheduler(0, false, JSONObject::new);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("The schedule interval must be positive", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNextSlot() {
+        //On time or overrunning by less than a slot: the next slot of the fixed-rate schedule, even if already due
+        Assert.assertEquals(150, IngestionScheduler.nextSlot(100, 110, 50));
+        Assert.assertEquals(150, IngestionScheduler.nextSlot(100, 180, 50));
+        //Overrunning by a whole slot or more: re-anchored on the current time
+        Assert.assertEquals(200, IngestionScheduler.nextSlot(100, 200, 50));
+        Assert.assertEquals(420, IngestionScheduler.nextSlot(100, 420, 50));
+    }
+
+    @Test
+    public void testRunsRepeatedly() throws InterruptedException {
+        CountDownLatch fiveRuns = new CountDownLatch(5);
+        List<Long> countsSeen = new CopyOnWriteArrayList<>();
+        scheduler = new IngestionScheduler(10, false, () -> {
+            //Every earlier run has fully finished when the next one starts
+            countsSeen.add(scheduler.getCycleCount());
+            fiveRuns.countDown();
+            return new JSONObject();
+        });
+        scheduler.start();
+        Assert.assertTrue(fiveRuns.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i, countsSeen.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void testNoOverlapAndLag() throws InterruptedException {
+        //Each run takes 30 ms of a fake clock against 20 ms slots, so every run after the first is due straight away
+        AtomicLong clock = new AtomicLong();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch fourRuns = new CountDownLatch(4);
+        List<Long> lagsSeen = new CopyOnWriteArrayList<>();
+        scheduler = new IngestionScheduler(20, false, () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            lagsSeen.add(scheduler.getLastLagMillis());
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(30));
+            running.decrementAndGet();
+            fourRuns.countDown();
+            return new JSONObject();
+        }, clock::get);
+        scheduler.start();
+        Assert.assertTrue(fourRuns.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertEquals(1, maxRunning.get());
+        //10 ms behind its slot, then a whole slot behind which re-anchors the schedule on time, and so on
+        Assert.assertEquals(Arrays.asList(0L, 10L, 0L, 10L), lagsSeen.subList(0, 4));
+        Assert.assertEquals(10, scheduler.getMaxLagMillis());
+        Assert.assertTrue(PipelineMetrics.scrape().contains("carpark_scheduler_lag_seconds{kind=\"max\"} 0.01\n"));
+    }
+
+    @Test
+    public void testFailuresAreCounted() throws InterruptedException {
+        CountDownLatch threeRuns = new CountDownLatch(3);
+        List<Long> failuresSeen = new CopyOnWriteArrayList<>();
+        scheduler = new IngestionScheduler(10, false, () -> {
+            failuresSeen.add(scheduler.getFailureCount());
+            threeRuns.countDown();
+            throw new IllegalStateException("failed cycle");
+        });
+        scheduler.start();
+        Assert.assertTrue(threeRuns.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Assert.assertEquals(2, failuresSeen.get(2).longValue());
+    }
+
+    @Test
+    public void testAdaptiveInterval() throws InterruptedException {
+        CountDownLatch firstRun = new CountDownLatch(1);
+        scheduler = new IngestionScheduler(10, true, () -> {
+            firstRun.countDown();
+            return new JSONObject().put(CarparkAgentContext.NEXT_POLL_KEY, 120);
+        });
+        scheduler.start();
+        Assert.assertTrue(firstRun.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        //The interval is taken from the result once the cycle has returned
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (scheduler.getCycleCount() < 1 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertEquals(1, scheduler.getCycleCount());
+        Assert.assertEquals(120000, scheduler.getIntervalMillis());
+    }
+}
@@ -0,0 +1,51 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineMetricsTest {
+
+    @Before
+    public void resetMetrics() {
+        PipelineMetrics.reset();
+    }
+
+    @Test
+    public void testStageHistogram() {
+        PipelineMetrics.time(PipelineMetrics.STAGE_GET_MAX_TIME).stop();
+        PipelineMetrics.Timer timer = PipelineMetrics.time(PipelineMetrics.STAGE_GET_MAX_TIME);
+        timer.stop();
+        // A second stop is not observed again
+        timer.stop();
+        String scrape = PipelineMetrics.scrape();
+        Assert.assertTrue(scrape.contains("# TYPE carpark_stage_duration_seconds histogram"));
+        Assert.assertTrue(scrape.contains("carpark_stage_duration_seconds_bucket{stage=\"get_max_time\",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(scrape.contains("carpark_stage_duration_seconds_bucket{stage=\"get_max_time\",le=\"60\"} 2\n"));
+        Assert.assertTrue(scrape.contains("carpark_stage_duration_seconds_count{stage=\"get_max_time\"} 2\n"));
+    }
+
+    @Test
+    public void testCumulativeBuckets() {
+        PipelineMetrics.payload("availability", "wire", 2000);
+        PipelineMetrics.payload("availability", "wire", 100000);
+        String scrape = PipelineMetrics.scrape();
+        Assert.assertTrue(scrape.contains("carpark_payload_bytes_bucket{source=\"availability\",encoding=\"wire\",le=\"1024\"} 0\n"));
+        Assert.assertTrue(scrape.contains("carpark_payload_bytes_bucket{source=\"availability\",encoding=\"wire\",le=\"4096\"} 1\n"));
+        Assert.assertTrue(scrape.contains("carpark_payload_bytes_bucket{source=\"availability\",encoding=\"wire\",le=\"262144\"} 2\n"));
+        Assert.assertTrue(scrape.contains("carpark_payload_bytes_sum{source=\"availability\",encoding=\"wire\"} 102000\n"));
+    }
+
+    @Test
+    public void testCountersAndGauges() {
+        PipelineMetrics.error(PipelineMetrics.STAGE_HTTP_FETCH);
+        PipelineMetrics.error(PipelineMetrics.STAGE_HTTP_FETCH);
+        PipelineMetrics.carparks("retrieved", 2000);
+        PipelineMetrics.carparks("retrieved", 1990);
+        PipelineMetrics.timeSparql(PipelineMetrics.SPARQL_UPDATE, "insert_label").stop();
+        String scrape = PipelineMetrics.scrape();
+        Assert.assertTrue(scrape.contains("carpark_stage_errors_total{stage=\"http_fetch\"} 2\n"));
+        Assert.assertTrue(scrape.contains("carpark_readings{kind=\"retrieved\"} 1990\n"));
+        Assert.assertTrue(scrape.contains("carpark_sparql_duration_seconds_count{type=\"update\",operation=\"insert_label\"} 1\n"));
+    }
+}
@@ -0,0 +1,75 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class PricingCacheTest {
+    // Temporary folder to place the snapshot file
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEmptyCache() {
+        PricingCache cache = new PricingCache(60000, null);
+        Assert.assertFalse(cache.hasPrices());
+        Assert.assertFalse(cache.isFresh());
+        Assert.assertNull(cache.getPrices());
+    }
+
+    @Test
+    public void testFreshness() {
+        PricingCache cache = new PricingCache(60000, null);
+        cache.update(examplePrices(), "\"abc\"", null);
+        Assert.assertTrue(cache.isFresh());
+        Assert.assertEquals("\"abc\"", cache.getEtag());
+
+        // A zero TTL expires the data immediately but keeps it available
+        PricingCache expiring = new PricingCache(0, null);
+        expiring.update(examplePrices(), null, null);
+        Assert.assertFalse(expiring.isFresh());
+        Assert.assertTrue(expiring.hasPrices());
+    }
+
+    @Test
+    public void testSnapshotSurvivesRestart() {
+        Path snapshot = Paths.get(folder.getRoot().toString(), "pricing.json");
+        PricingCache cache = new PricingCache(60000, snapshot);
+        cache.update(examplePrices(), "\"abc\"", "Tue, 01 Nov 2022 00:00:00 GMT");
+        Assert.assertTrue(Files.exists(snapshot));
+
+        PricingCache restarted = new PricingCache(60000, snapshot);
+        Assert.assertTrue(restarted.isFresh());
+        Assert.assertEquals(examplePrices().toString(), restarted.getPrices().toString());
+        Assert.assertEquals("\"abc\"", restarted.getEtag());
+        Assert.assertEquals("Tue, 01 Nov 2022 00:00:00 GMT", restarted.getLastModified());
+    }
+
+    @Test
+    public void testBrokenSnapshotIsIgnored() throws IOException {
+        Path snapshot = Paths.get(folder.getRoot().toString(), "pricing.json");
+        Files.write(snapshot, "not json".getBytes(StandardCharsets.UTF_8));
+        PricingCache cache = new PricingCache(60000, snapshot);
+        Assert.assertFalse(cache.hasPrices());
+    }
+
+    private JSONObject examplePrices() {
+        JSONObject record = new JSONObject();
+        record.put("carpark", "Suntec City");
+        record.put("weekdays_rate_1", "$1.07 per 15 mins");
+        JSONObject result = new JSONObject();
+        result.put("records", new JSONArray().put(record));
+        JSONObject prices = new JSONObject();
+        prices.put("result", result);
+        return prices;
+    }
+}
@@ -0,0 +1,54 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+public class ReadingDictionaryTest {
+
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2023, 6, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void testSlotsAreStable() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        Assert.assertEquals(0, dictionary.slot("AvailableLots_A0007_C"));
+        Assert.assertEquals(1, dictionary.slot("1", "Y"));
+        Assert.assertEquals(0, dictionary.slot("A0007", "C"));
+        Assert.assertEquals(1, dictionary.slot("AvailableLots_1_Y"));
+        Assert.assertEquals("AvailableLots_1_Y", dictionary.key(1));
+        Assert.assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void testNonAvailabilityKeyHasNoSlot() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        Assert.assertEquals(ReadingDictionary.NO_SLOT, dictionary.slot("WeekdayRates_A0007"));
+        Assert.assertEquals(0, dictionary.size());
+        Assert.assertNull(CarparkReading.carparkIDFromKey("WeekdayRates_A0007"));
+        Assert.assertEquals("A0007", CarparkReading.carparkIDFromKey("AvailableLots_A0007_C"));
+        Assert.assertEquals("C", CarparkReading.lotTypeFromKey("AvailableLots_A0007_C"));
+    }
+
+    @Test
+    public void testEncode() {
+        ReadingDictionary dictionary = new ReadingDictionary();
+        int mapped = dictionary.slot("AvailableLots_B0001_C");
+        ReadingDictionary.Frame frame = dictionary.encode(Arrays.asList(
+                new CarparkReading("A0007", "", "", "", "C", 4, "HDB"),
+                new CarparkReading("1", "Marina", "Suntec City", "1.29375 103.85718", "C", 1098, "LTA")), TIME);
+
+        Assert.assertEquals(TIME, frame.getTimestamp());
+        Assert.assertEquals(3, frame.size());
+        Assert.assertFalse(frame.has(mapped));
+        Assert.assertEquals(4, frame.get(dictionary.slot("A0007", "C")));
+        Assert.assertEquals(1098, frame.get(dictionary.slot("1", "C")));
+        Assert.assertFalse(frame.has(ReadingDictionary.NO_SLOT));
+
+        //A carpark first seen in a later cycle is missing from earlier frames
+        int later = dictionary.slot("B0002", "H");
+        Assert.assertFalse(frame.has(later));
+    }
+}
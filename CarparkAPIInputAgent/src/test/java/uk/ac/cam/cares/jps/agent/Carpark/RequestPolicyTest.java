@@ -0,0 +1,165 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestPolicyTest {
+
+    private static final String TEST_URL = "http://localhost:8089/";
+
+    private RequestPolicy policy;
+
+    @After
+    public void closePolicy() {
+        if (policy != null) {
+            policy.close();
+        }
+    }
+
+    @Test
+    public void testRetryUntilSuccess() throws IOException {
+        policy = new RequestPolicy(1000, 5000, 3, 1, false, 0.95);
+        AtomicInteger attempts = new AtomicInteger();
+        String result = policy.execute(() -> new HttpGet(TEST_URL), request -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new HttpResponseException(503, "Service Unavailable");
+            }
+            return "ok";
+        });
+        Assert.assertEquals("ok", result);
+        Assert.assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        policy = new RequestPolicy(1000, 5000, 3, 1, false, 0.95);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            policy.execute(() -> new HttpGet(TEST_URL), request -> {
+                attempts.incrementAndGet();
+                throw new HttpResponseException(404, "Not Found");
+            });
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals(404, ((HttpResponseException) e).getStatusCode());
+            Assert.assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test
+    public void testDeadline() {
+        policy = new RequestPolicy(50, 200, 0, 1, false, 0.95);
+        try {
+            policy.execute(() -> new HttpGet(TEST_URL), request -> {
+                sleep(1000);
+                return "too late";
+            });
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals(SocketTimeoutException.class, e.getClass());
+        }
+    }
+
+    @Test
+    public void testHedgedRequestWins() throws IOException {
+        policy = new RequestPolicy(5000, 10000, 0, 1, true, 0.95);
+        // Warm up the latency tracker with fast responses
+        for (int i = 0; i < 20; i++) {
+            policy.execute(() -> new HttpGet(TEST_URL), request -> "warm");
+        }
+        Assert.assertTrue(policy.getHedgeDelay() >= 0);
+
+        // The first attempt hangs, the hedged one answers straight away
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        String result = policy.execute(() -> new HttpGet(TEST_URL), request -> {
+            if (attempts.incrementAndGet() == 1) {
+                sleep(5000);
+                return "slow";
+            }
+            return "hedged";
+        });
+        Assert.assertEquals("hedged", result);
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void testHedgeThreshold() {
+        LatencyTracker tracker = new LatencyTracker(100, 20);
+        for (int i = 1; i < 20; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(-1, tracker.percentile(0.95));
+        for (int i = 20; i <= 100; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(95, tracker.percentile(0.95));
+        // Older samples drop out of the window
+        for (int i = 0; i < 100; i++) {
+            tracker.record(1000);
+        }
+        Assert.assertEquals(1000, tracker.percentile(0.95));
+    }
+
+    @Test
+    public void testFailedAttemptsCountTowardsHedgeDelay() {
+        policy = new RequestPolicy(1000, 5000, 0, 1, true, 0.95);
+        Assert.assertEquals(-1, policy.getHedgeDelay());
+        for (int i = 0; i < 20; i++) {
+            try {
+                policy.execute(() -> new HttpGet(TEST_URL), request -> {
+                    sleep(30);
+                    throw new HttpResponseException(404, "Not Found");
+                });
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals(404, ((HttpResponseException) e).getStatusCode());
+            }
+        }
+        Assert.assertTrue(policy.getHedgeDelay() >= 30);
+    }
+
+    @Test
+    public void testSlowPrimaryRaisesHedgeDelay() throws IOException {
+        policy = new RequestPolicy(200, 5000, 0, 1, true, 0.5);
+        for (int i = 0; i < 20; i++) {
+            policy.execute(() -> new HttpGet(TEST_URL), request -> "warm");
+        }
+        long fastDelay = policy.getHedgeDelay();
+        // Primaries that run into the deadline are still recorded with the time they took
+        for (int i = 0; i < 25; i++) {
+            try {
+                policy.execute(() -> new HttpGet(TEST_URL), request -> {
+                    sleep(1000);
+                    return "too late";
+                });
+                Assert.fail();
+            }
+            catch (IOException e) {
+                Assert.assertEquals(SocketTimeoutException.class, e.getClass());
+            }
+        }
+        Assert.assertTrue(policy.getHedgeDelay() > fastDelay);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        SingleFlight<Integer> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger joined = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            results.add(executor.submit(() -> flight.run(() -> {
+                calls.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 42;
+            }, joined::incrementAndGet)));
+            while (!flight.isInFlight()) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 3; i++) {
+                results.add(executor.submit(() -> flight.run(calls::incrementAndGet, joined::incrementAndGet)));
+            }
+            while (joined.get() < 3) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Integer.valueOf(42), result.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, calls.get());
+            Assert.assertFalse(flight.isInFlight());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureIsSharedAndCleared() {
+        SingleFlight<Integer> flight = new SingleFlight<>();
+        try {
+            flight.run(() -> {
+                throw new IllegalStateException("boom");
+            }, () -> { });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertFalse(flight.isInFlight());
+        Assert.assertEquals(Integer.valueOf(1), flight.run(() -> 1, () -> { }));
+    }
+}
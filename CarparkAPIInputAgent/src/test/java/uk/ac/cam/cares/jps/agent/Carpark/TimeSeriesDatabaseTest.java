@@ -0,0 +1,68 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class TimeSeriesDatabaseTest {
+
+    private final TimeSeriesDatabase database = new TimeSeriesDatabase("jdbc:postgresql://localhost/test", "user", "password");
+
+    @Test
+    public void testLookupColumnsInOneQuery() throws SQLException {
+        List<String> iris = Arrays.asList("iri1", "iri2", "iri3");
+        Connection connection = Mockito.mock(Connection.class);
+        PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+        Array array = Mockito.mock(Array.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(statement);
+        Mockito.when(connection.createArrayOf(Mockito.eq("varchar"), Mockito.any())).thenReturn(array);
+        Mockito.when(statement.executeQuery()).thenReturn(rs);
+        // Only the first two IRIs have a time series, in different tables
+        Mockito.when(rs.next()).thenReturn(true, true, false);
+        Mockito.when(rs.getString(1)).thenReturn("iri1", "iri1", "iri2", "iri2");
+        Mockito.when(rs.getString(2)).thenReturn("ts1", "ts2");
+        Mockito.when(rs.getString(3)).thenReturn("table1", "table2");
+        Mockito.when(rs.getString(4)).thenReturn("column1", "column1");
+
+        Map<String, TimeSeriesDatabase.Column> columns = database.lookupColumns(connection, iris);
+
+        // All IRIs are passed as one array parameter of a single query on the central table
+        Mockito.verify(connection, Mockito.times(1)).prepareStatement(Mockito.anyString());
+        ArgumentCaptor<Object[]> elements = ArgumentCaptor.forClass(Object[].class);
+        Mockito.verify(connection).createArrayOf(Mockito.eq("varchar"), elements.capture());
+        Assert.assertEquals(iris, Arrays.asList(elements.getValue()));
+        Mockito.verify(statement).setArray(1, array);
+        Mockito.verify(array).free();
+
+        Assert.assertEquals(2, columns.size());
+        Assert.assertEquals("table1", columns.get("iri1").getTableName());
+        Assert.assertEquals("ts2", columns.get("iri2").getTimeSeriesIRI());
+        Assert.assertEquals("table2", columns.get("iri2").getTableName());
+        Assert.assertFalse(columns.containsKey("iri3"));
+    }
+
+    @Test
+    public void testLookupColumnsWithoutIRIs() throws SQLException {
+        Connection connection = Mockito.mock(Connection.class);
+        Assert.assertTrue(database.lookupColumns(connection, Collections.emptyList()).isEmpty());
+        Mockito.verifyNoInteractions(connection);
+    }
+
+    @Test
+    public void testMissingCentralTable() {
+        Assert.assertTrue(TimeSeriesDatabase.isMissingCentralTable(new SQLException("relation does not exist", "42P01")));
+        Assert.assertFalse(TimeSeriesDatabase.isMissingCentralTable(new SQLException("connection refused", "08001")));
+    }
+}
@@ -0,0 +1,92 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.cam.cares.jps.base.timeseries.TimeSeries;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class WriteBehindBufferTest {
+
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2023, 6, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+    private static final List<String> MAPPING_A = Arrays.asList("a1", "a2");
+    private static final List<String> MAPPING_B = Collections.singletonList("b1");
+
+    private static TimeSeries<OffsetDateTime> series(List<String> iris, OffsetDateTime time, Object... values) {
+        List<List<?>> columns = new ArrayList<>();
+        for (Object value : values) {
+            columns.add(Collections.singletonList(value));
+        }
+        return new TimeSeries<>(Collections.singletonList(time), iris, columns);
+    }
+
+    @Test
+    public void testMergesCyclesPerMapping() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000, 1 << 20);
+        Assert.assertTrue(buffer.isEmpty());
+        buffer.add(Arrays.asList(series(MAPPING_A, TIME, 1, 2), series(MAPPING_B, TIME, 3)), 0);
+        //Sparse cycles may leave out mappings without changes
+        buffer.add(Collections.singletonList(series(MAPPING_A, TIME.plusMinutes(1), 4, null)), 1000);
+        Assert.assertEquals(2, buffer.getCycles());
+
+        List<TimeSeries<OffsetDateTime>> drained = buffer.getTimeSeries();
+        Assert.assertEquals(2, drained.size());
+        TimeSeries<OffsetDateTime> a = drained.get(0);
+        Assert.assertEquals(MAPPING_A, a.getDataIRIs());
+        Assert.assertEquals(Arrays.asList(TIME, TIME.plusMinutes(1)), a.getTimes());
+        Assert.assertEquals(Arrays.asList(1, 4), a.getValues("a1"));
+        Assert.assertEquals(Arrays.asList(2, null), a.getValues("a2"));
+        Assert.assertEquals(Collections.singletonList(TIME), drained.get(1).getTimes());
+
+        buffer.clear();
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(0, buffer.getBytes());
+    }
+
+    @Test
+    public void testDueOnCount() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(2, 60000, 1 << 20);
+        Assert.assertFalse(buffer.add(Collections.singletonList(series(MAPPING_B, TIME, 1)), 0));
+        Assert.assertTrue(buffer.add(Collections.singletonList(series(MAPPING_B, TIME.plusMinutes(1), 2)), 0));
+    }
+
+    @Test
+    public void testDueOnAge() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000, 1 << 20);
+        Assert.assertFalse(buffer.isDue(100000));
+        buffer.add(Collections.singletonList(series(MAPPING_B, TIME, 1)), 100000);
+        Assert.assertFalse(buffer.isDue(159999));
+        Assert.assertTrue(buffer.isDue(160000));
+    }
+
+    @Test
+    public void testDueOnBytes() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000, 100);
+        Assert.assertFalse(buffer.add(Collections.singletonList(series(MAPPING_B, TIME, 1)), 0));
+        Assert.assertFalse(buffer.isFull());
+        Assert.assertTrue(buffer.add(Collections.singletonList(series(MAPPING_A, TIME, 1, 2)), 0));
+        Assert.assertTrue(buffer.isFull());
+    }
+
+    @Test
+    public void testKeptUntilCleared() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(2, 60000, 1 << 20);
+        buffer.add(Collections.singletonList(series(MAPPING_B, TIME, 1)), 0);
+        Assert.assertTrue(buffer.add(Collections.singletonList(series(MAPPING_B, TIME.plusMinutes(1), 2)), 0));
+        //A flush that fails leaves the cycles in place, the next one writes them together with the newer ones
+        Assert.assertEquals(Arrays.asList(1, 2), buffer.getTimeSeries().get(0).getValues("b1"));
+        buffer.add(Collections.singletonList(series(MAPPING_B, TIME.plusMinutes(2), 3)), 0);
+        Assert.assertEquals(3, buffer.getCycles());
+        Assert.assertTrue(buffer.isDue(0));
+        TimeSeries<OffsetDateTime> retried = buffer.getTimeSeries().get(0);
+        Assert.assertEquals(Arrays.asList(TIME, TIME.plusMinutes(1), TIME.plusMinutes(2)), retried.getTimes());
+        Assert.assertEquals(Arrays.asList(1, 2, 3), retried.getValues("b1"));
+        buffer.clear();
+        Assert.assertFalse(buffer.isDue(0));
+    }
+}
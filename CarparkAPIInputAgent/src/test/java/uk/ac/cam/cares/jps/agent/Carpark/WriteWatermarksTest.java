@@ -0,0 +1,50 @@
+package uk.ac.cam.cares.jps.agent.Carpark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+public class WriteWatermarksTest {
+
+    private static final String IRI = "https://www.theworldavatar.com/kg/ontotimeseries/Carpark_1";
+    private static final OffsetDateTime TIME = OffsetDateTime.of(2023, 6, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void testUnknownUntilSet() {
+        WriteWatermarks watermarks = new WriteWatermarks();
+        Assert.assertFalse(watermarks.isKnown(IRI));
+        Assert.assertNull(watermarks.get(IRI));
+
+        //A series without data is known, with no latest time
+        watermarks.set(IRI, null);
+        Assert.assertTrue(watermarks.isKnown(IRI));
+        Assert.assertNull(watermarks.get(IRI));
+    }
+
+    @Test
+    public void testAdvanceNeverMovesBackwards() {
+        WriteWatermarks watermarks = new WriteWatermarks();
+        watermarks.set(IRI, null);
+        watermarks.advance(IRI, TIME);
+        Assert.assertEquals(TIME, watermarks.get(IRI));
+
+        watermarks.advance(IRI, TIME.minusMinutes(1));
+        Assert.assertEquals(TIME, watermarks.get(IRI));
+
+        watermarks.advance(IRI, TIME.plusMinutes(1));
+        Assert.assertEquals(TIME.plusMinutes(1), watermarks.get(IRI));
+    }
+
+    @Test
+    public void testInvalidate() {
+        WriteWatermarks watermarks = new WriteWatermarks();
+        watermarks.advance(IRI, TIME);
+        Assert.assertEquals(1, watermarks.size());
+
+        watermarks.invalidate(IRI);
+        Assert.assertFalse(watermarks.isKnown(IRI));
+        Assert.assertEquals(0, watermarks.size());
+    }
+}